@@ -13,7 +13,6 @@ package net.sf.j2s.ajax;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,6 +25,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -37,6 +38,11 @@ import org.w3c.dom.Document;
  * This class can be considered as a bridge of Java's AJAX programming and
  * JavaScript/Browser's AJAX programming.
  *
+ * In Java, connections are kept alive and reused by JVM's HTTP client for
+ * later requests to the same server, see system properties "http.keepAlive"
+ * and "http.maxConnections". Other transport may be plugged in by
+ * SimpleRPCRequest#setHttpRequestFactory.
+ *
  * @author zhou renjian
  *
  * 2006-2-11
@@ -162,6 +168,35 @@ public class HttpRequest {
 
 	protected boolean isCometConnection = false;
 
+	/**
+	 * Default value of header "User-Agent", which may be overridden by
+	 * system property "j2s.ajax.user.agent".
+	 */
+	public static final String DEFAULT_USER_AGENT =
+			// "Mozilla/5.0 (Windows; U; Windows NT 6.0; en-US; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5 GTB5 (Java2Script/2.0.0)";
+			"Mozilla/5.0 (Windows; U; Windows NT 6.0; en-US; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5 GTB5";
+
+	private static String userAgent = System.getProperty("j2s.ajax.user.agent", DEFAULT_USER_AGENT);
+
+	/**
+	 * Return value of header "User-Agent" of those requests without such
+	 * header set by {@link #setRequestHeader(String, String)}.
+	 *
+	 * @return user agent
+	 */
+	public static String getUserAgent() {
+		return userAgent;
+	}
+
+	/**
+	 * Set value of header "User-Agent" for all later requests.
+	 *
+	 * @param userAgent null for not sending such header
+	 */
+	public static void setUserAgent(String userAgent) {
+		HttpRequest.userAgent = userAgent;
+	}
+
 	/**
 	 * Return read state of XMLHttpRequest.
 	 * @return int ready state
@@ -310,6 +345,16 @@ public class HttpRequest {
 	public String getResponseHeader(String key) {
 		Map<String, List<String>> headerFields = connection.getHeaderFields();
 		List<String> list = headerFields.get(key);
+		if (list == null && key != null) {
+			// header names are case-insensitive, as in browser
+			for (Iterator<String> itr = headerFields.keySet().iterator(); itr.hasNext();) {
+				String name = itr.next();
+				if (key.equalsIgnoreCase(name)) {
+					list = headerFields.get(name);
+					break;
+				}
+			}
+		}
 		if (list == null) {
 			return null;
 		}
@@ -400,13 +445,18 @@ public class HttpRequest {
 	public void send(String str) {
 		content = str;
 		if (asynchronous) {
-			(new Thread("Java2Script HTTP Request") {
+			Runnable task = new Runnable() {
 				public void run() {
 					if (!toAbort) {
 						request();
 					}
 				}
-			}).start();
+			};
+			if (isCometConnection) { // kept open, not to take short task threads
+				SimpleThreadHelper.runLongTask(task, "Java2Script HTTP Comet Request");
+			} else {
+				SimpleThreadHelper.runTask(task, "Java2Script HTTP Request");
+			}
 		} else {
 			request();
 		}
@@ -458,14 +508,15 @@ public class HttpRequest {
 			connection.setInstanceFollowRedirects(false);
 			connection.setDoInput(true);
 			connection.setRequestMethod(method);
-			connection.setRequestProperty("User-Agent",
-					// "Mozilla/5.0 (Windows; U; Windows NT 6.0; en-US; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5 GTB5 (Java2Script/2.0.0)");
-					"Mozilla/5.0 (Windows; U; Windows NT 6.0; en-US; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5 GTB5");
+			if (userAgent != null) {
+				connection.setRequestProperty("User-Agent", userAgent);
+			}
 			if ("post".equalsIgnoreCase(method)) {
 				connection.setDoOutput(true);
 				connection.setRequestProperty("Content-Type",
 						"application/x-www-form-urlencoded");
 			}
+			connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
 			if (user != null) {
 				String auth = user + ":" + (password != null ? password : "");
 				String base64Auth = HttpRequest.Base64.byteArrayToBase64(auth.getBytes());
@@ -478,14 +529,15 @@ public class HttpRequest {
 			connection.setUseCaches(false);
 			if (checkAbort()) return; // not yet send out a byte
 			if ("post".equalsIgnoreCase(method)) {
-				DataOutputStream dos = new DataOutputStream(connection.getOutputStream());
-				activeOS = dos;
-				if (content != null) {
-					dos.writeBytes(content);
-				}
+				byte[] bytes = toBytes(content);
+				// Known length, so content is written without being buffered again
+				connection.setFixedLengthStreamingMode(bytes.length);
+				OutputStream os = connection.getOutputStream();
+				activeOS = os;
+				os.write(bytes);
 				if (checkAbort()) return; // do not flush anything and close the connection
-				dos.flush();
-				dos.close();
+				os.flush();
+				os.close();
 				activeOS = null;
 			}
 			if (checkAbort()) return; // just disconnect without receiving anything
@@ -495,6 +547,7 @@ public class HttpRequest {
 			} catch (IOException e) {
 				if (checkAbort()) return; // exception caused by abort action
 				//e.printStackTrace();
+				release(connection);
 				readyState = 4;
 				if (onreadystatechange != null) {
 					onreadystatechange.onLoaded();
@@ -508,6 +561,12 @@ public class HttpRequest {
 				*/
 				return;
 			}
+			String encoding = connection.getContentEncoding();
+			if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+				is = new GZIPInputStream(is);
+			} else if ("deflate".equalsIgnoreCase(encoding)) {
+				is = new InflaterInputStream(is);
+			}
 			activeIS = is;
 
 			if (readyState < 2) {
@@ -593,7 +652,7 @@ public class HttpRequest {
 			if (onreadystatechange != null) {
 				onreadystatechange.onLoaded();
 			}
-			connection.disconnect();
+			// Not #disconnect, so the kept-alive connection is reused
 			readyState = 0;
 			/*
 			if (onreadystatechange != null) {
@@ -617,6 +676,50 @@ public class HttpRequest {
 		}
 	}
 
+	/*
+	 * Convert content into bytes, each char into its lower byte, as
+	 * serialized content is in such bytes.
+	 */
+	private static byte[] toBytes(String str) {
+		if (str == null) {
+			return new byte[0];
+		}
+		int length = str.length();
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) str.charAt(i);
+		}
+		return bytes;
+	}
+
+	/*
+	 * Read and close error stream of failed request, so the connection
+	 * can be kept alive and reused.
+	 */
+	private static void release(HttpURLConnection conn) {
+		if (conn == null) {
+			return;
+		}
+		InputStream es = conn.getErrorStream();
+		if (es == null) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[1024];
+			while (es.read(buffer) != -1) {
+				// discard
+			}
+		} catch (IOException e) {
+			// connection will not be reused
+		} finally {
+			try {
+				es.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Enabling Comet mode for HTTP request connection.
 	 * Comet connection is used on Java level to provide SimplePipe connection.
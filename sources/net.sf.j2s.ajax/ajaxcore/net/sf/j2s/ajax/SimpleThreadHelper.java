@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of those background tasks in Java mode, such as asynchronous
+ * HTTP requests, simple RPC or pipe requests and pipe destroying, instead
+ * of starting a new thread for each task.
+ *
+ * By default, tasks are run in a bounded pool of threads, which are
+ * released after being idle for a while. If all pooled threads are busy,
+ * tasks wait in queue, so callers, e.g. the pipe timer thread, are never
+ * blocked. Long-lived tasks, such as comet connections of continuum pipes,
+ * are run by {@link #runLongTask(Runnable, String)} in another pool with
+ * its own bound, so they never take all threads of short tasks.
+ *
+ * Pooled threads are not daemon threads, the same as those threads they
+ * replace, so pending requests keep JVM alive. Idle threads exit after
+ * the keep-alive interval. If system property "j2s.ajax.virtual.threads"
+ * is "true" and virtual threads are supported by JVM, tasks are run in
+ * virtual threads. User may set other executor by {@link #setExecutor(Executor)}.
+ *
+ * @author zhou renjian
+ */
+public class SimpleThreadHelper {
+
+	public static final String PROPERTY_VIRTUAL_THREADS = "j2s.ajax.virtual.threads";
+
+	private static int maxPoolThreads = 256;
+
+	private static int maxLongPoolThreads = 1024;
+
+	private static long keepAliveInterval = 10000; // 10s
+
+	private static Executor executor;
+
+	private static Executor longExecutor;
+
+	private SimpleThreadHelper() {
+		//
+	}
+
+	public static int getMaxPoolThreads() {
+		return maxPoolThreads;
+	}
+
+	/**
+	 * Set maximum number of threads of default executor. Should be set
+	 * before any task is run.
+	 *
+	 * @param maxPoolThreads
+	 */
+	public static void setMaxPoolThreads(int maxPoolThreads) {
+		SimpleThreadHelper.maxPoolThreads = maxPoolThreads;
+	}
+
+	public static int getMaxLongPoolThreads() {
+		return maxLongPoolThreads;
+	}
+
+	/**
+	 * Set maximum number of threads for long-lived tasks of default
+	 * executor. Should be set before any task is run.
+	 *
+	 * @param maxLongPoolThreads
+	 */
+	public static void setMaxLongPoolThreads(int maxLongPoolThreads) {
+		SimpleThreadHelper.maxLongPoolThreads = maxLongPoolThreads;
+	}
+
+	public synchronized static Executor getExecutor() {
+		if (executor == null) {
+			executor = createDefaultExecutor(maxPoolThreads, "Simple Thread Pool Worker-");
+		}
+		return executor;
+	}
+
+	public synchronized static Executor getLongExecutor() {
+		if (longExecutor == null) {
+			longExecutor = createDefaultExecutor(maxLongPoolThreads, "Simple Long Thread Pool Worker-");
+		}
+		return longExecutor;
+	}
+
+	/**
+	 * Set executor for background tasks. Previous executor is not shut down.
+	 *
+	 * @param executor null for default executor
+	 */
+	public synchronized static void setExecutor(Executor executor) {
+		SimpleThreadHelper.executor = executor;
+	}
+
+	/**
+	 * Set executor for long-lived tasks. Previous executor is not shut down.
+	 *
+	 * @param executor null for default executor
+	 */
+	public synchronized static void setLongExecutor(Executor executor) {
+		SimpleThreadHelper.longExecutor = executor;
+	}
+
+	private static Executor createDefaultExecutor(int maxThreads, final String prefix) {
+		if ("true".equals(System.getProperty(PROPERTY_VIRTUAL_THREADS))) {
+			try {
+				Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (Executor) m.invoke(null);
+			} catch (Throwable e) {
+				// not supported, use thread pool
+			}
+		}
+		final AtomicInteger count = new AtomicInteger();
+		// Core threads are the bound, as threads beyond core threads are only
+		// started if queue is full
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+				keepAliveInterval, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r, prefix + count.incrementAndGet());
+					}
+				});
+		try {
+			pool.allowCoreThreadTimeOut(true);
+		} catch (NoSuchMethodError e) {
+			// Java 5, idle threads are kept
+		}
+		return pool;
+	}
+
+	/**
+	 * Run given short task in background. Task waits in queue if all pooled
+	 * threads are busy.
+	 *
+	 * If executor rejects the task, for example, it is shut down, a new
+	 * thread is started for the task. Task is never run in the caller's
+	 * thread, which may be the pipe timer thread.
+	 *
+	 * @param task
+	 * @param name name of the task, which is used as name of thread while
+	 * task is running
+	 */
+	public static void runTask(final Runnable task, final String name) {
+		runTask(getExecutor(), task, name);
+	}
+
+	/**
+	 * Run given long-lived task, e.g. a comet connection, in background.
+	 *
+	 * @param task
+	 * @param name
+	 * @see #runTask(Runnable, String)
+	 */
+	public static void runLongTask(final Runnable task, final String name) {
+		runTask(getLongExecutor(), task, name);
+	}
+
+	private static void runTask(Executor executor, final Runnable task, final String name) {
+		Runnable r = new Runnable() {
+			public void run() {
+				Thread thread = Thread.currentThread();
+				String oldName = thread.getName();
+				if (name != null) {
+					thread.setName(name);
+				}
+				try {
+					task.run();
+				} finally {
+					if (name != null) {
+						thread.setName(oldName);
+					}
+				}
+			}
+		};
+		try {
+			executor.execute(r);
+		} catch (RejectedExecutionException e) {
+			new Thread(task, name != null ? name : "Simple Thread").start();
+		}
+	}
+
+}
@@ -12,7 +12,9 @@ public class CompoundPipeRPCHttpServlet extends SimplePipeRPCHttpServlet {
 			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(session.pipeKey);
 			if (pipe instanceof CompoundPipeRunnable) {
 				CompoundPipeRunnable p = (CompoundPipeRunnable) pipe;
-				p.weave(session);
+				if (p.weave(session) && p.pipeManaged) {
+					SimplePipeHelper.monitoringSession(p, session);
+				}
 			}
 		}
 		return runnable;
@@ -1,19 +1,36 @@
 package net.sf.j2s.ajax;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
 public class CompoundPipeRunnable extends SimplePipeRunnable {
 	
 	private static String nextSessionKey() {
 		String hexStr = "0123456789abcdef";
 		String key = "";
 		for (int i = 0; i < 4; i++) {
-			int hex = (int) Math.round(15 * Math.random());
+			int hex = (int) Math.floor(16 * Math.random());
 			key += "" + hexStr.charAt(hex);
 		}
 		return key;
 	}
 	
-	CompoundPipeSession[] pipes;
+	/*
+	 * Woven sessions. Array is replaced instead of being modified, so it
+	 * is safe to iterate it without locking.
+	 */
+	volatile CompoundPipeSession[] pipes;
 
+	/*
+	 * Index of woven sessions by session keys, for Java.
+	 */
+	@J2SIgnore
+	private Map<String, CompoundPipeSession> sessions;
+
+	private Object sessionsLock = new Object();
+	
 	int status;
 	
 	String id; // id for CompoundPipeRequest
@@ -29,6 +46,9 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 	
 	public CompoundPipeRunnable() {
 		pipes = new CompoundPipeSession[4];
+		/**
+		 * @j2sNative
+		 */ { sessions = new ConcurrentHashMap<String, CompoundPipeSession>(); }
 		status = 0; // starting
 		setupFailedRetries = 0;
 		lastSetupRetried = 0;
@@ -43,19 +63,100 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 		if (session == null) {
 			return null;
 		}
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null && session.equals(pipes[i].session)) {
-				return pipes[i];
+		/**
+		 * @j2sNative
+		 */ {
+			if (sessions != null) {
+				return sessions.get(session);
+			}
+		}
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null && session.equals(ps[i].session)) {
+				return ps[i];
 			}
 		}
 		return null;
 	}
 	
+	/*
+	 * Put given session at given index, in a new array. Should be called
+	 * while holding sessions lock.
+	 */
+	private void setSession(int index, CompoundPipeSession pipe) {
+		CompoundPipeSession[] ps = pipes;
+		CompoundPipeSession[] newPipes = new CompoundPipeSession[Math.max(ps.length, index + 4)];
+		System.arraycopy(ps, 0, newPipes, 0, ps.length);
+		CompoundPipeSession old = newPipes[index];
+		newPipes[index] = pipe;
+		pipes = newPipes;
+		/**
+		 * @j2sNative
+		 */ {
+			if (old != null && old.session != null) {
+				sessions.remove(old.session);
+			}
+			if (pipe != null && pipe.session != null) {
+				sessions.put(pipe.session, pipe);
+			}
+		}
+	}
+
+	/*
+	 * Return index of given session, or -1.
+	 */
+	private int indexOf(CompoundPipeSession pipe) {
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (pipe == ps[i] || (pipe.session != null && ps[i] != null
+					&& pipe.session.equals(ps[i].session))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Remove all sessions, and return those removed sessions.
+	 */
+	private CompoundPipeSession[] clearSessions() {
+		CompoundPipeSession[] ps = null;
+		synchronized (sessionsLock) {
+			ps = pipes;
+			pipes = new CompoundPipeSession[ps.length];
+			/**
+			 * @j2sNative
+			 */ { sessions.clear(); }
+		}
+		return ps;
+	}
+
+	/**
+	 * Remove session of given session key.
+	 *
+	 * @param session
+	 * @return removed session or null
+	 */
+	CompoundPipeSession removeSession(String session) {
+		synchronized (sessionsLock) {
+			CompoundPipeSession pipe = getSession(session);
+			if (pipe == null) {
+				return null;
+			}
+			int index = indexOf(pipe);
+			if (index != -1) {
+				setSession(index, null);
+			}
+			return pipe;
+		}
+	}
+
 	@Override
 	public boolean pipeDestroy() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				pipes[i].pipeDestroy();
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				ps[i].pipeDestroy();
 			}
 		}
 		//pipeKey = null;
@@ -66,9 +167,10 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 	@Override
 	public void pipeInit() {
 		super.pipeInit();
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				pipes[i].pipeInit();
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				ps[i].pipeInit();
 			}
 		}
 	}
@@ -87,8 +189,9 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 			return true;
 		}
 		if (super.isPipeLive()) {
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipes[i] != null && pipes[i].isPipeLive()) {
+			CompoundPipeSession[] ps = pipes;
+			for (int i = 0; i < ps.length; i++) {
+				if (ps[i] != null && ps[i].isPipeLive()) {
 					return true;
 				}
 			}
@@ -98,14 +201,14 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 
 	@Override
 	public void pipeClosed() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				if (pipes[i].closer != null) {
-					pipes[i].closer.helpClosing(pipes[i]);
+		CompoundPipeSession[] ps = clearSessions();
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				if (ps[i].closer != null) {
+					ps[i].closer.helpClosing(ps[i]);
 				} else {
-					pipes[i].pipeClosed();
+					ps[i].pipeClosed();
 				}
-				pipes[i] = null;
 			}
 		}
 		super.pipeClosed();
@@ -113,10 +216,10 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 
 	@Override
 	public void pipeLost() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				pipes[i].pipeLost();
-				pipes[i] = null;
+		CompoundPipeSession[] ps = clearSessions();
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				ps[i].pipeLost();
 			}
 		}
 		super.pipeLost();
@@ -124,18 +227,20 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 
 	@Override
 	public void keepPipeLive() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null && pipes[i].isPipeLive()) {
-				pipes[i].keepPipeLive();
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null && ps[i].isPipeLive()) {
+				ps[i].keepPipeLive();
 			}
 		}
 	}
 
 	@Override
 	protected void updateStatus(boolean live) {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				pipes[i].updateStatus(live);
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				ps[i].updateStatus(live);
 			}
 		}
 		super.updateStatus(live);
@@ -143,60 +248,46 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 
 	public boolean weave(CompoundPipeSession pipe) {
 		pipe.pipeReset();
-		synchronized (pipes) {
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipe == pipes[i]) {
-					pipe.pipeKey = this.pipeKey;
-					pipe.parent = this;
-					initPipeSession(pipe);
-					return false;
-				}
+		synchronized (sessionsLock) {
+			CompoundPipeSession existed = getSession(pipe.session);
+			if (existed == pipe) {
+				pipe.pipeKey = this.pipeKey;
+				pipe.parent = this;
+				return false;
 			}
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipe.session != null && pipes[i] != null
-						&& pipe.session.equals(pipes[i].session)) {
-					if (pipes[i].isPipeLive()) {
-						System.out.println("pipe session " + pipes[i].session + " is still live!!");
-					}
-					pipes[i] = pipe; // replace it!!!
-					lastSetup = System.currentTimeMillis();
-					pipe.pipeKey = this.pipeKey;
-					pipe.parent = this;
-					return true;
+			if (existed != null) {
+				if (existed.isPipeLive()) {
+					System.out.println("pipe session " + existed.session + " is still live!!");
 				}
+				setSession(indexOf(existed), pipe); // replace it!!!
+				lastSetup = System.currentTimeMillis();
+				pipe.pipeKey = this.pipeKey;
+				pipe.parent = this;
+				return true;
 			}
-			boolean added = false;
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipes[i] == null) {
-					pipes[i] = pipe;
-					added = true;
+			initPipeSession(pipe);
+			CompoundPipeSession[] ps = pipes;
+			int index = ps.length;
+			for (int i = 0; i < ps.length; i++) {
+				if (ps[i] == null) {
+					index = i;
 					break;
 				}
 			}
-			if (!added) {
-				CompoundPipeSession[] newPipes = new CompoundPipeSession[pipes.length + 4];
-				System.arraycopy(pipes, 0, newPipes, 0, pipes.length);
-				newPipes[pipes.length] = pipe;
+			setSession(index, pipe);
+			if (index >= ps.length) {
 				lastSetup = System.currentTimeMillis();
 			}
 		}
 		pipe.pipeKey = this.pipeKey;
 		pipe.parent = this;
-		initPipeSession(pipe);
 		return true;
 	}
 
 	private void initPipeSession(CompoundPipeSession pipe) {
 		while (pipe.session == null) {
 			String key = nextSessionKey();
-			boolean isKeyOK = true;
-			for (int i = 0; i < pipes.length; i++) {
-				if (pipes[i] != null && key.equals(pipes[i].session)) {
-					isKeyOK = false;
-					break;
-				}
-			}
-			if (isKeyOK) {
+			if (getSession(key) == null) {
 				pipe.session = key;
 				break;
 			}
@@ -209,22 +300,23 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 			return false;
 		}
 		//*/
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipe == pipes[i] || (pipe.session != null && pipes[i] != null
-					&& pipe.session.equals(pipes[i].session))) {
-				pipes[i] = null;
-				lastSetup = System.currentTimeMillis();
-				pipe.pipeKey = null;
-				return true;
+		synchronized (sessionsLock) {
+			int index = indexOf(pipe);
+			if (index == -1) {
+				return false;
 			}
+			setSession(index, null);
 		}
-		return false;
+		lastSetup = System.currentTimeMillis();
+		pipe.pipeKey = null;
+		return true;
 	}
 	
 	public int getActivePipeSessionCount() {
 		int count = 0;
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
 				count++;
 			}
 		}
@@ -232,8 +324,9 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 	}
 	
 	public boolean isEmpty() {
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
 				return false;
 			}
 		}
@@ -268,13 +361,9 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 			if ("net.sf.j2s.ajax.CompoundSerializable".equals(clazz.getName())) {
 				return true; // seldom or never reach this branch, just ignore
 			}
-			for (int i = 0; i < pipes.length; i++) {
-				CompoundPipeSession p = pipes[i];
-				if (p != null && p.session != null 
-						&& p.session.equals(cs.session) 
-						&& p.deal(cs)) {
-					return true;
-				}
+			CompoundPipeSession p = getSession(cs.session);
+			if (p != null && p.deal(cs)) {
+				return true;
 			}
 		}
 		return false;
@@ -303,9 +392,10 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 	@Override
 	protected long pipeMonitoringInterval() {
 		long monitorInterval = super.pipeMonitoringInterval();
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				monitorInterval = Math.min(monitorInterval, pipes[i].pipeWaitClosingInterval());
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				monitorInterval = Math.min(monitorInterval, ps[i].pipeWaitClosingInterval());
 			}
 		}
 		return monitorInterval;
@@ -314,9 +404,10 @@ public class CompoundPipeRunnable extends SimplePipeRunnable {
 	@Override
 	public long pipeWaitClosingInterval() {
 		long closingInterval = super.pipeWaitClosingInterval();
-		for (int i = 0; i < pipes.length; i++) {
-			if (pipes[i] != null) {
-				closingInterval = Math.max(closingInterval, pipes[i].pipeWaitClosingInterval());
+		CompoundPipeSession[] ps = pipes;
+		for (int i = 0; i < ps.length; i++) {
+			if (ps[i] != null) {
+				closingInterval = Math.max(closingInterval, ps[i].pipeWaitClosingInterval());
 			}
 		}
 		return closingInterval;
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+/**
+ * Cacheable pipe data which may be sent as delta. Once an object is
+ * delivered through a pipe, later versions of the same object (see
+ * {@link Object#equals(Object)}) only carry those fields changed since
+ * the last delivered version. Java pipe clients patch the existing
+ * instance in place and pass it to SimplePipeRunnable#deal again.
+ * 
+ * Deltas are only sent to Java clients, browsers always receive whole
+ * objects.
+ * 
+ * @author zhou renjian
+ */
+public interface ISimpleDeltaCacheable extends ISimpleCacheable {
+
+	/**
+	 * Return names of those fields which identify this object. These fields
+	 * are always sent, so the client can find the existing instance.
+	 * 
+	 * @return field names, should be consistent with #equals and #hashCode
+	 */
+	public String[] identityFields();
+	
+}
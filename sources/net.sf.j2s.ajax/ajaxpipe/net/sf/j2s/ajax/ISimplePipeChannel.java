@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Channel to other servers of cluster, which delivers pipe data to those
+ * pipes held by other servers.
+ * 
+ * @author zhou renjian
+ * 
+ * @see ISimplePipeDirectory
+ */
+@J2SIgnore
+public interface ISimplePipeChannel {
+
+	/**
+	 * Deliver pipe data to the pipe on given node. Pipe data should be
+	 * piped in by {@link SimplePipeHelper#pipeIn(String, SimpleSerializable[])}
+	 * on that node. This method should not block for long.
+	 * 
+	 * @param node node returned by {@link ISimplePipeDirectory#getPipeNode(String)}
+	 * @param key pipe key
+	 * @param ss pipe data, null for terminating signal
+	 */
+	public void forward(String node, String key, SimpleSerializable[] ss);
+	
+}
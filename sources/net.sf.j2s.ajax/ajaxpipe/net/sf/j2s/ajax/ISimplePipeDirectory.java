@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Directory of pipes in a cluster of servers. With directory and
+ * {@link ISimplePipeChannel}, pipe data piped in on any server are
+ * delivered to the server which holds the pipe.
+ * 
+ * @author zhou renjian
+ * 
+ * @see SimplePipeHelper#setPipeDirectory(ISimplePipeDirectory, ISimplePipeChannel)
+ */
+@J2SIgnore
+public interface ISimplePipeDirectory {
+
+	/**
+	 * Return key for new pipe on this server. Directory may encode the
+	 * server in the key, so the pipe can be located without lookup.
+	 * 
+	 * @param key random key generated by SimplePipeHelper
+	 * @return key of the same length
+	 */
+	public String assignPipeKey(String key);
+	
+	/**
+	 * Pipe of given key is registered on this server.
+	 * 
+	 * @param key
+	 */
+	public void pipeRegistered(String key);
+	
+	/**
+	 * Pipe of given key is removed from this server.
+	 * 
+	 * @param key
+	 */
+	public void pipeRemoved(String key);
+	
+	/**
+	 * Return node which holds the pipe of given key.
+	 * 
+	 * @param key
+	 * @return node, or null if pipe is on this server or is unknown
+	 */
+	public String getPipeNode(String key);
+	
+}
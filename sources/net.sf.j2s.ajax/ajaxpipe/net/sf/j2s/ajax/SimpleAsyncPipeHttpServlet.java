@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Pipe servlet for Servlet 3.0 containers. Continuum, query and script
+ * pipes are kept open by AsyncContext instead of container threads. A
+ * pending response is woken up by {@link SimplePipeHelper#pipeIn(String, SimpleSerializable[])},
+ * and heart beats of all idle pipes are sent by a single timer thread.
+ * 
+ * If the request is not asynchronous supported, it is served the same
+ * way as {@link SimplePipeHttpServlet}.
+ * 
+ * @author zhou renjian
+ */
+public class SimpleAsyncPipeHttpServlet extends SimplePipeHttpServlet {
+
+	private static final long serialVersionUID = 3016548225733264532L;
+
+	protected long pipeTimerTick = 100; // 0.1 second
+	
+	SimplePipeTimerWheel timer;
+
+	/*
+	 * Example of web.xml:
+    <servlet>
+        <servlet-name>simplepipe</servlet-name>
+        <servlet-class>net.sf.j2s.ajax.SimpleAsyncPipeHttpServlet</servlet-class>
+        <async-supported>true</async-supported>
+		<init-param>
+			<param-name>simple.pipe.timer.tick</param-name>
+			<param-value>100</param-value>
+		</init-param>
+    </servlet>
+	 */
+	@Override
+	public void init() throws ServletException {
+		String tickStr = getInitParameter("simple.pipe.timer.tick");
+		if (tickStr != null) {
+			try {
+				pipeTimerTick = Long.parseLong(tickStr);
+				if (pipeTimerTick < 10 || pipeTimerTick > 1000) {
+					pipeTimerTick = 100;
+				}
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		timer = new SimplePipeTimerWheel("Simple Pipe Timer", pipeTimerTick, 512);
+		super.init();
+	}
+
+	@Override
+	public void destroy() {
+		if (timer != null) {
+			timer.stop();
+		}
+		super.destroy();
+	}
+
+	@Override
+	protected void doPipe(HttpServletRequest req, HttpServletResponse resp, String key,
+			String type, String domain, boolean binary) throws IOException {
+		if (SimplePipeRequest.PIPE_TYPE_NOTIFY.equals(type)
+				|| SimplePipeRequest.PIPE_TYPE_SUBDOMAIN_QUERY.equals(type)
+				|| !req.isAsyncSupported()) {
+			super.doPipe(req, resp, key, type, domain, binary);
+			return;
+		}
+		SimpleCompressedResponse compressed = compressPipe(req, resp, type);
+		if (compressed != null) {
+			resp = compressed; // finished by session
+		}
+		resp.setHeader("Pragma", "no-cache");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setDateHeader("Expires", 0);
+		
+		if (!acceptsBinary(type)) {
+			binary = false; // browsers only know "WLL201"
+		}
+		PrintWriter writer = startPipe(resp, type, domain, binary);
+		SimpleAsyncPipeSession session = new SimpleAsyncPipeSession(this, writer, key, type, binary, timer);
+		if (!SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
+			session.end(); // pipe is already closed or in other statuses
+			writer.close();
+			return;
+		}
+		AsyncContext context = req.startAsync(req, resp);
+		context.setTimeout(0); // timeouts are managed by the session
+		session.start(context);
+	}
+
+}
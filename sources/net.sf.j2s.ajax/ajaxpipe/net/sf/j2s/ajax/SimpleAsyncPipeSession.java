@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * Pipe response which holds no thread while waiting. It is stepped in
+ * container threads when new pipe data is piped in, or when the timer
+ * wheel reaches its next heart beat or timeout.
+ *
+ * @author zhou renjian
+ */
+class SimpleAsyncPipeSession extends SimplePipeSession
+		implements Runnable, AsyncListener, SimplePipeHelper.IPipeWaking {
+
+	private final SimplePipeTimerWheel timer;
+
+	private AsyncContext context;
+
+	private SimplePipeTimerWheel.Timeout timeout;
+
+	/**
+	 * Whether a step is already dispatched but not yet started.
+	 */
+	private final AtomicBoolean dispatched = new AtomicBoolean(false);
+
+	private volatile boolean completed;
+
+	SimpleAsyncPipeSession(SimpleAsyncPipeHttpServlet servlet, PrintWriter writer, String key,
+			String type, boolean binary, SimplePipeTimerWheel timer) {
+		super(servlet, writer, key, type, binary);
+		this.timer = timer;
+	}
+
+	/**
+	 * Start waiting for pipe data asynchronously after the first step.
+	 *
+	 * @param context
+	 */
+	synchronized void start(AsyncContext context) {
+		this.context = context;
+		context.addListener(this);
+		if (pipe != null) {
+			pipe.waker = this;
+		}
+		run();
+	}
+
+	/*
+	 * New pipe data or pipe is removed.
+	 */
+	public void helpWaking(SimplePipeRunnable pipe) {
+		dispatch();
+	}
+
+	private void dispatch() {
+		if (completed || !dispatched.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			context.start(this);
+		} catch (IllegalStateException e) {
+			// response is already completed
+			dispatched.set(false);
+		}
+	}
+
+	public void run() {
+		dispatched.set(false);
+		synchronized (this) {
+			if (completed) {
+				return;
+			}
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			boolean more = false;
+			try {
+				more = step();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (more) {
+				timeout = timer.schedule(new Runnable() {
+					public void run() {
+						dispatch();
+					}
+				}, nextStepDelay());
+				return;
+			}
+			try {
+				end();
+				writer.close(); // finish compressed content, if any
+			} catch (RuntimeException e) {
+				// HTTP connection may be closed already!
+			}
+			complete();
+			try {
+				context.complete();
+			} catch (IllegalStateException e) {
+				// completed or timed out by container
+			}
+		}
+	}
+
+	private synchronized void complete() {
+		completed = true;
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+		if (pipe != null && pipe.waker == this) {
+			pipe.waker = null;
+		}
+	}
+
+	public void onComplete(AsyncEvent event) throws IOException {
+		complete();
+	}
+
+	public void onTimeout(AsyncEvent event) throws IOException {
+		complete();
+		try {
+			context.complete();
+		} catch (IllegalStateException e) {
+			// already completed
+		}
+	}
+
+	public void onError(AsyncEvent event) throws IOException {
+		complete();
+	}
+
+	public void onStartAsync(AsyncEvent event) throws IOException {
+		// not restarted
+	}
+
+}
@@ -10,13 +10,16 @@
  *******************************************************************************/
 package net.sf.j2s.ajax;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.sf.j2s.ajax.SimpleSerializable;
 import net.sf.j2s.annotation.J2SIgnore;
@@ -36,18 +39,40 @@ public class SimplePipeHelper {
 		public void helpClosing(SimplePipeRunnable pipe);
 	}
 	
+	/**
+	 * Pending asynchronous pipe response, which is woken up directly on
+	 * new pipe data instead of waiting on the pipe.
+	 */
+	public static interface IPipeWaking {
+		public void helpWaking(SimplePipeRunnable pipe);
+	}
+	
+	/**
+	 * @deprecated Pipe data are always taken by priority, see SimplePipeQueue
+	 */
+	@Deprecated
 	@J2SIgnore
 	public static int MAX_ITEMS_PER_QUERY = 100;
 	
 	@J2SIgnore
-	private static Map<String, List<SimpleSerializable>> pipeMap = null;
+	private static SecureRandom keyRandom = null;
 	
 	@J2SIgnore
-	private static boolean monitored = false;
+	private static SimplePipeTimerWheel timer = null;
 	
 	@J2SIgnore
 	private static long monitoringInterval = 10000; // 10s
 	
+	@J2SIgnore
+	private static ISimplePipeDirectory directory = null;
+	
+	@J2SIgnore
+	private static ISimplePipeChannel channel = null;
+	
+	/*
+	 * Pipes by keys. On server side, each pipe holds its own data queue,
+	 * so pipe and its queue are fetched by one lookup without locks.
+	 */
 	static Map<String, SimplePipeRunnable> pipes;
 
 	@J2SIgnore
@@ -67,51 +92,116 @@ public class SimplePipeHelper {
 	})
 	public static void registerPipe(String key, SimplePipeRunnable pipe) {
 		if (key == null || pipe == null) return;
+		initPipes();
+		pipes.put(key, pipe);
+	}
+	
+	@J2SIgnore
+	private synchronized static void initPipes() {
 		if (pipes == null) {
-			pipes = Collections.synchronizedMap(new HashMap<String, SimplePipeRunnable>(50));
+			pipes = new ConcurrentHashMap<String, SimplePipeRunnable>(256);
+			SimpleMetrics.addSource(new SimpleMetrics.Source() {
+				public void collect(Map<String, Number> metrics) {
+					collectMetrics(metrics);
+				}
+			});
 		}
-		pipes.put(key, pipe);
+	}
+	
+	/*
+	 * Number of open pipes and percentiles of queue depths, which are
+	 * computed on taking metrics snapshot.
+	 */
+	@J2SIgnore
+	private static void collectMetrics(Map<String, Number> metrics) {
+		Map<String, SimplePipeRunnable> ps = pipes;
+		int[] depths = new int[ps.size()];
+		int count = 0;
+		for (SimplePipeRunnable p : ps.values()) {
+			SimplePipeQueue queue = p.queue;
+			if (queue != null && count < depths.length) {
+				depths[count++] = queue.size();
+			}
+		}
+		Arrays.sort(depths, 0, count);
+		metrics.put(SimpleMetrics.PIPE_OPEN, Integer.valueOf(ps.size()));
+		String name = SimpleMetrics.PIPE_QUEUE_DEPTH;
+		metrics.put(name + ".p50", Integer.valueOf(count == 0 ? 0 : depths[(count - 1) / 2]));
+		metrics.put(name + ".p90", Integer.valueOf(count == 0 ? 0 : depths[(int) Math.ceil(count * 0.9) - 1]));
+		metrics.put(name + ".p99", Integer.valueOf(count == 0 ? 0 : depths[(int) Math.ceil(count * 0.99) - 1]));
+		metrics.put(name + ".max", Integer.valueOf(count == 0 ? 0 : depths[count - 1]));
 	}
 	
 	/*
 	 * Server side
 	 */
 	@J2SIgnore
-	synchronized static String registerPipe(SimplePipeRunnable pipe) {
+	static String registerPipe(SimplePipeRunnable pipe) {
 		if (pipe.pipeKey != null) {
 			System.out.println("ERROR!!! pipeKey should be null here! " + pipe.pipeKey);
 		}
 		// if (pipe == null) return null; // should never register null pipe!
-		if (pipes == null) {
-			pipes = Collections.synchronizedMap(new HashMap<String, SimplePipeRunnable>(50));
-		}
-		
-		String key = nextPipeKey();
-		while (pipes.get(key) != null) {
-			key = nextPipeKey();;
+		initPipes();
+		// queue is ready before pipe is visible to other threads
+		pipe.queue = new SimplePipeQueue(pipe.pipeQueueCapacity(), pipe.pipeQueuePolicy());
+		int replayCapacity = pipe.pipeReplayCapacity();
+		if (replayCapacity > 0) {
+			pipe.replayLog = new SimplePipeReplayLog(replayCapacity);
 		}
-		pipes.put(key, pipe);
-		
-		if (pipeMap == null) {
-			pipeMap = Collections.synchronizedMap(new HashMap<String, List<SimpleSerializable>>());
-		}
-		List<SimpleSerializable> list = pipeMap.get(key);
-		if (list == null) {
-			list = new Vector<SimpleSerializable>();
-			pipeMap.put(key, list);
+		ConcurrentHashMap<String, SimplePipeRunnable> map = (ConcurrentHashMap<String, SimplePipeRunnable>) pipes;
+		ISimplePipeDirectory dir = directory;
+		String key = null;
+		do {
+			key = nextPipeKey();
+			if (dir != null) {
+				key = dir.assignPipeKey(key);
+			}
+		} while (map.putIfAbsent(key, pipe) != null);
+		if (dir != null) {
+			dir.pipeRegistered(key);
 		}
-		
 		return key;
 	}
 
+	/**
+	 * Set directory and channel of clustered servers, so pipe data of
+	 * pipes on other servers are forwarded to those servers.
+	 * 
+	 * @param dir null for single server
+	 * @param ch
+	 */
+	@J2SIgnore
+	public static void setPipeDirectory(ISimplePipeDirectory dir, ISimplePipeChannel ch) {
+		channel = ch;
+		directory = dir;
+	}
+
+	@J2SIgnore
+	public static ISimplePipeDirectory getPipeDirectory() {
+		return directory;
+	}
+
+	@J2SIgnore
+	public static ISimplePipeChannel getPipeChannel() {
+		return channel;
+	}
+
 	/*
-	 * Generate random pipe key.
+	 * Generate random pipe key from secure random numbers, in which each
+	 * of those 62 chars is equally likely.
 	 */
 	@J2SIgnore
 	static String nextPipeKey() {
+		SecureRandom random = keyRandom;
+		if (random == null) {
+			random = new SecureRandom();
+			keyRandom = random;
+		}
+		long bits = random.nextLong() >>> 1; // 63 bits, more than 62^6 keys
 		StringBuffer buf = new StringBuffer();
 		for (int i = 0; i < SimplePipeRequest.PIPE_KEY_LENGTH; i++) {
-			int r = (int) Math.round((float) Math.random() * 61); // 0..61, total 62 numbers
+			int r = (int) (bits % 62); // 0..61, total 62 numbers
+			bits /= 62;
 			if (r < 10) {
 				buf.append((char) (r + '0'));
 			} else if (r < 10 + 26) {
@@ -131,19 +221,25 @@ public class SimplePipeHelper {
 			System.out.println("Removing pipe for null key???");
 			return;
 		}
-		SimplePipeRunnable pipe = null;
-		if (pipes != null) {
-			pipe = pipes.remove(key);
-			if (pipe != null) {
-				pipe.pipeAlive = false;
-			}
+		if (pipes == null) {
+			return;
 		}
-		if (pipeMap != null) {
-			if (pipeMap.remove(key) != null && pipe != null) {
-				synchronized (pipe) {
-					pipe.notifyAll();
-				}
+		SimplePipeRunnable pipe = pipes.remove(key);
+		if (pipe == null) {
+			return;
+		}
+		pipe.pipeAlive = false;
+		SimplePipeQueue queue = pipe.queue;
+		if (queue != null) {
+			ISimplePipeDirectory dir = directory;
+			if (dir != null) {
+				dir.pipeRemoved(key);
 			}
+			queue.close();
+			synchronized (pipe) {
+				pipe.notifyAll();
+			}
+			wakePipe(pipe);
 		}
 	}
 
@@ -171,80 +267,285 @@ public class SimplePipeHelper {
 		return true;
 	}
 	
+	/**
+	 * Return snapshot of queued pipe data, or null if there is no such
+	 * pipe. Modifying the returned list does not affect the pipe.
+	 * 
+	 * @deprecated Use {@link #getPipeQueue(String)} instead
+	 */
+	@Deprecated
 	@J2SIgnore
 	public static List<SimpleSerializable> getPipeDataList(String key) {
-		if (pipeMap == null) {
+		SimplePipeQueue queue = getPipeQueue(key);
+		if (queue == null) {
 			return null;
 		}
-		return pipeMap.get(key);
+		return queue.toList();
+	}
+
+	@J2SIgnore
+	public static SimplePipeQueue getPipeQueue(String key) {
+		SimplePipeRunnable pipe = getPipe(key);
+		if (pipe == null) {
+			return null;
+		}
+		return pipe.queue;
 	}
 
 	@J2SIgnore
 	public static void pipeIn(String key, SimpleSerializable[] ss) {
 		SimplePipeRunnable pipe = getPipe(key);
-		List<SimpleSerializable> list = getPipeDataList(key);
-		if (pipe == null || list == null) {
+		SimplePipeQueue queue = pipe == null ? null : pipe.queue;
+		if (queue == null) {
+			ISimplePipeDirectory dir = directory;
+			ISimplePipeChannel ch = channel;
+			if (pipe == null && dir != null && ch != null) {
+				String node = dir.getPipeNode(key);
+				if (node != null) {
+					ch.forward(node, key, ss);
+					return;
+				}
+			}
 			System.out.println("There are no pipe listening?!!!!");
 			return; // throw exception?
 		}
-		synchronized (list) {
-			boolean hasNewPriority = false;
-			for (int i = 0; i < ss.length; i++) {
-				SimpleSerializable s = ss[i];
-				if (s instanceof ISimpleCacheable) {
-					ISimpleCacheable c = (ISimpleCacheable) s;
-					if (c.isCached()) {
-						// already buffered
-						continue;
-					} else {
-						int idx = list.indexOf(s);
-						if (idx != -1) {
-							// same object but may be with updated properties!
-							SimpleSerializable existed = list.get(idx);
-							if (existed instanceof ISimpleCacheable) {
-								ISimpleCacheable ec = (ISimpleCacheable) existed;
-								ec.synchronizeFrom(c);
-							}
-							continue;
-						}
-					}
-					c.setCached(true);
-					list.add(s);
-				} else {
-					list.add(s);
-				}
-				if (!hasNewPriority && s instanceof ISimplePipePriority) {
-					hasNewPriority = true;
+		for (int i = 0; i < ss.length; i++) {
+			queue.put(ss[i]);
+		}
+		synchronized (pipe) {
+			// Notify pipe in!
+			pipe.notify();
+		}
+		wakePipe(pipe);
+	}
+
+	/*
+	 * Pipe given data into given server side pipe, for SimplePipeTopic.
+	 */
+	@J2SIgnore
+	static boolean pipeIn(SimplePipeRunnable pipe, SimpleSerializable ss) {
+		SimplePipeQueue queue = pipe.queue;
+		if (queue == null || !queue.put(ss)) {
+			return false;
+		}
+		synchronized (pipe) {
+			// Notify pipe in!
+			pipe.notify();
+		}
+		wakePipe(pipe);
+		return true;
+	}
+
+	@J2SIgnore
+	private static void wakePipe(SimplePipeRunnable pipe) {
+		IPipeWaking waker = pipe.waker;
+		if (waker != null) {
+			waker.helpWaking(pipe);
+		}
+	}
+
+	/*
+	 * ISimpleDeltaCacheable objects for deltas, in the order of being
+	 * delivered. The least recently delivered objects are evicted beyond
+	 * capacity. Server side and Java client side touch objects in the same
+	 * order, so they evict the same objects. On server side, value is the
+	 * last version which is known to be flushed, or null.
+	 */
+	@J2SIgnore
+	static class DeltaItems extends LinkedHashMap<SimpleSerializable, SimpleSerializable> {
+
+		private static final long serialVersionUID = 6306219340157432386L;
+
+		private final int capacity;
+
+		DeltaItems(int capacity) {
+			this.capacity = capacity;
+		}
+
+		/*
+		 * Put the given object as the most recently delivered one.
+		 */
+		void touch(SimpleSerializable ss, SimpleSerializable version) {
+			remove(ss);
+			put(ss, version);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SimpleSerializable, SimpleSerializable> eldest) {
+			return size() > capacity;
+		}
+
+	}
+
+	/**
+	 * Serialize the given pipe data. If the pipe's client accepts deltas,
+	 * an ISimpleDeltaCacheable object which is already delivered is
+	 * serialized with only its identity fields and those fields changed
+	 * since the last delivered version, and is marked by
+	 * {@link SimplePipeRequest#PIPE_STATUS_DELTA}.
+	 * 
+	 * Delivered versions are not updated until the response is flushed,
+	 * see {@link #deltaFlushed(SimplePipeRunnable, Map, boolean)}.
+	 * 
+	 * @param pipe
+	 * @param ss
+	 * @param binary
+	 * @param pendings collecting versions to be delivered
+	 * @return serialized string
+	 */
+	@J2SIgnore
+	static String serializePipeData(SimplePipeRunnable pipe, SimpleSerializable ss, boolean binary,
+			Map<SimpleSerializable, SimpleSerializable> pendings) {
+		if (ss instanceof SimplePipeTopic.Payload) {
+			SimpleSerializable data = ((SimplePipeTopic.Payload) ss).data;
+			if (pipe == null || !pipe.deltaSupported || !(data instanceof ISimpleDeltaCacheable)) {
+				return ss.serialize(null, binary); // shared by all subscribed pipes
+			}
+			ss = data;
+		}
+		if (pipe == null || !pipe.deltaSupported || !(ss instanceof ISimpleDeltaCacheable)) {
+			return ss.serialize(null, binary);
+		}
+		synchronized (pipe) {
+			return serializeDelta(pipe, ss, binary, pendings);
+		}
+	}
+
+	@J2SIgnore
+	private static String serializeDelta(SimplePipeRunnable pipe, SimpleSerializable ss, boolean binary,
+			Map<SimpleSerializable, SimpleSerializable> pendings) {
+		if (pipe.deltaItems == null) {
+			pipe.deltaItems = new DeltaItems(pipe.pipeDeltaCapacity());
+		}
+		final SimpleSerializable last = pipe.deltaItems.get(ss); // flushed version
+		final Set<String> accepted = new HashSet<String>();
+		if (last != null) {
+			String[] ids = ((ISimpleDeltaCacheable) ss).identityFields();
+			if (ids != null) {
+				for (int i = 0; i < ids.length; i++) {
+					accepted.add(ids[i]);
 				}
 			}
-			if (hasNewPriority && ss.length > MAX_ITEMS_PER_QUERY) { // 100 by default
-				// sort list!
-				Collections.sort(list, new Comparator<SimpleSerializable>() {
-					
-					public int compare(SimpleSerializable o1, SimpleSerializable o2) {
-						boolean v1 = o1 instanceof ISimplePipePriority;
-						boolean v2 = o2 instanceof ISimplePipePriority;
-						if (v1 && v2) {
-							ISimplePipePriority sp1 = (ISimplePipePriority) o1;
-							ISimplePipePriority sp2 = (ISimplePipePriority) o2;
-							return sp2.getPriority() - sp1.getPriority();
-						} else if (v1) {
-							ISimplePipePriority sp1 = (ISimplePipePriority) o1;
-							return ISimplePipePriority.IMPORTANT - sp1.getPriority();
-						} else if (v2) {
-							ISimplePipePriority sp2 = (ISimplePipePriority) o2;
-							return sp2.getPriority() - ISimplePipePriority.IMPORTANT;
+			String[] diffs = SimpleSerializableCodec.getCodec(ss).compareDiffs(ss, last);
+			for (int i = 0; i < diffs.length; i++) {
+				accepted.add(diffs[i]);
+			}
+		}
+		/*
+		 * Default values are also sent, so the client can patch its existing
+		 * instance with either whole object or delta.
+		 */
+		String str = ss.serialize(new SimpleFilter() {
+			
+			public boolean accept(String field) {
+				return last == null || accepted.contains(field);
+			}
+			
+			public boolean ignoreDefaultFields() {
+				return false;
+			}
+			
+		}, binary);
+		pendings.remove(ss);
+		try {
+			SimpleSerializable snapshot = (SimpleSerializable) ss.clone();
+			pendings.put(snapshot, snapshot);
+			// keep the order of delivering, version is updated after flushing
+			pipe.deltaItems.touch(snapshot, last);
+		} catch (CloneNotSupportedException e) {
+			// next version will be sent as whole object
+			pipe.deltaItems.remove(ss);
+		}
+		return last == null ? str : SimplePipeRequest.PIPE_STATUS_DELTA + str;
+	}
+
+	/**
+	 * Update delivered versions after pipe response is flushed. If flushing
+	 * fails, client may or may not receive those versions, so they will be
+	 * sent as whole objects next time.
+	 * 
+	 * @param pipe
+	 * @param pendings versions collected by serializing, cleared after updating
+	 * @param flushed
+	 */
+	@J2SIgnore
+	static void deltaFlushed(SimplePipeRunnable pipe, Map<SimpleSerializable, SimpleSerializable> pendings,
+			boolean flushed) {
+		if (pendings.isEmpty()) {
+			return;
+		}
+		synchronized (pipe) {
+			if (pipe.deltaItems != null) {
+				for (Iterator<SimpleSerializable> itr = pendings.values().iterator(); itr.hasNext();) {
+					SimpleSerializable snapshot = itr.next();
+					if (flushed) {
+						if (pipe.deltaItems.containsKey(snapshot)) { // not evicted
+							pipe.deltaItems.put(snapshot, snapshot);
 						}
-						return 0;
+					} else {
+						pipe.deltaItems.remove(snapshot);
 					}
-					
-				});
+				}
 			}
 		}
+		pendings.clear();
+	}
+
+	/**
+	 * Java client misses some delivered versions, send whole objects again.
+	 * 
+	 * @param pipe
+	 */
+	@J2SIgnore
+	static void resetDeltas(SimplePipeRunnable pipe) {
 		synchronized (pipe) {
-			// Notify pipe in!
-			pipe.notify();
+			if (pipe.deltaItems != null) {
+				pipe.deltaItems.clear();
+			}
+		}
+	}
+
+	/**
+	 * Patch the existing instance with the received data on Java client
+	 * side. If there is no existing instance, the given whole object is kept
+	 * for later deltas. A delta without existing instance is incomplete,
+	 * it is dropped and server is asked to send whole objects again.
+	 * 
+	 * @param pipe
+	 * @param ss object deserialized from the given string
+	 * @param str
+	 * @param start
+	 * @param delta whether the given string is a delta
+	 * @return patched instance, the given object, or null if delta is dropped
+	 */
+	@J2SIgnore
+	static SimpleSerializable patchPipeData(SimplePipeRunnable pipe, SimpleSerializable ss,
+			String str, int start, boolean delta) {
+		if (!(ss instanceof ISimpleDeltaCacheable)) {
+			return ss;
+		}
+		SimpleSerializable existed = null;
+		synchronized (pipe) {
+			if (pipe.deltaItems == null) {
+				pipe.deltaItems = new DeltaItems(pipe.pipeDeltaCapacity());
+			}
+			existed = pipe.deltaItems.get(ss);
+			if (existed == null) {
+				if (delta) {
+					pipe.deltaReset = true;
+				} else {
+					pipe.deltaItems.touch(ss, ss);
+				}
+			} else {
+				existed.deserialize(str, start);
+				pipe.deltaItems.touch(existed, existed);
+			}
+		}
+		if (existed == null && delta) {
+			pipe.pipeDataMissed(1);
+			return null;
 		}
+		return existed == null ? ss : existed;
 	}
 
 	@J2SIgnore
@@ -281,12 +582,11 @@ public class SimplePipeHelper {
 		buffer.append("Pipe monitor<br />\r\n");
 		if (pipes != null) {
 			buffer.append("Totoal pipe count: " + pipes.size() + "<br />\r\n");
-			buffer.append("Totoal pipe map count: " + pipeMap.size() + "<br />\r\n");
-			Object[] keys = pipeMap.keySet().toArray();
+			Object[] keys = pipes.keySet().toArray();
 			for (int i = 0; i < keys.length; i++) {
 				String key = (String) keys[i];
-				List<SimpleSerializable> list = pipeMap.get(key);
 				SimplePipeRunnable p = pipes.get(key);
+				SimplePipeQueue list = p == null ? null : p.queue;
 				if (p instanceof CompoundPipeRunnable) {
 					CompoundPipeRunnable cp = (CompoundPipeRunnable) p;
 					int activeCount = 0;
@@ -320,12 +620,11 @@ public class SimplePipeHelper {
 		buffer.append("Pipe monitor<br />\r\n");
 		if (pipes != null) {
 			buffer.append("Totoal pipe count: " + pipes.size() + "<br />\r\n");
-			buffer.append("Totoal pipe map count: " + pipeMap.size() + "<br />\r\n");
-			Object[] keys = pipeMap.keySet().toArray();
+			Object[] keys = pipes.keySet().toArray();
 			for (int i = 0; i < keys.length; i++) {
 				String key = (String) keys[i];
-				List<SimpleSerializable> list = pipeMap.get(key);
 				SimplePipeRunnable p = pipes.get(key);
+				SimplePipeQueue list = p == null ? null : p.queue;
 				if (p instanceof CompoundPipeRunnable) {
 					CompoundPipeRunnable cp = (CompoundPipeRunnable) p;
 					buffer.append(i + "Pipe " + cp.pipeKey + " status=" + cp.status + " pipeAlive=" + cp.isPipeLive() + " created=" + new Date(cp.lastSetup) + "<br />\r\n");
@@ -361,96 +660,157 @@ public class SimplePipeHelper {
 		SimplePipeHelper.monitoringInterval = monitoringInterval;
 	}
 
+	/**
+	 * Return the timer shared by pipe monitors and pipe live notifiers.
+	 * Timer tasks should return quickly.
+	 */
 	@J2SIgnore
-	private static void monitoringAllPipes() {
-		while (true) {
-			try {
-				Thread.sleep(monitoringInterval);
-			} catch (InterruptedException e) {
+	synchronized static SimplePipeTimerWheel getTimer() {
+		if (timer == null) {
+			timer = new SimplePipeTimerWheel("Simple Pipe Timer", 100, 512);
+		}
+		return timer;
+	}
+
+	/*
+	 * Check managed pipe's status, and destroy it if it is no longer live.
+	 * Return whether to check it again.
+	 */
+	@J2SIgnore
+	private static boolean monitoringManagedPipe(SimplePipeRunnable pipe, String key) {
+		if (getPipe(key) != pipe) {
+			return false; // removed
+		}
+		long now = System.currentTimeMillis();
+		try {
+			if (!pipe.isPipeLive() || (pipe instanceof CompoundPipeRunnable
+					&& ((CompoundPipeRunnable) pipe).isEmpty()
+					&& now - ((CompoundPipeRunnable) pipe).lastSetup > 30000)) {
+				//System.out.println("Pipe " + pipe.pipeKey + " live status is " + pipe.isPipeLive());
+				if (now - pipe.lastLiveDetected > pipe.pipeWaitClosingInterval()) {
+					asyncDestroyPipe(pipe);
+					removePipe(key);
+					return false;
+				}
+			} else {
+				// sessions of compound pipe are checked by #monitoringSession
+				pipe.lastLiveDetected = now;
 			}
-			if (pipes == null) {
-				System.err.println("Pipe sessions are null or empty! Managed pipe session monitor exited!");
-				break;
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/*
+	 * Check unmanaged pipe's status, and destroy and close it if it is no
+	 * longer live. Return whether to check it again.
+	 */
+	@J2SIgnore
+	private static boolean monitoringUnmanagedPipe(final SimplePipeRunnable pipe) {
+		if (pipe.isPipeLive()) {
+			pipe.lastLiveDetected = System.currentTimeMillis();
+			return true;
+		}
+		if (System.currentTimeMillis() - pipe.lastLiveDetected <= pipe.pipeWaitClosingInterval()) {
+			return true;
+		}
+		SimpleThreadHelper.runTask(new Runnable() {
+			public void run() {
+				pipe.pipeDestroy();
+				if (pipe.closer != null) {
+					pipe.closer.helpClosing(pipe);
+				} else {
+					pipe.pipeClosed();
+				}
 			}
-			Object[] allPipes = pipes.values().toArray();
-			for (int i = 0; i < allPipes.length; i++) {
-			    final SimplePipeRunnable pipe = (SimplePipeRunnable) allPipes[i];
-			    if (!pipe.pipeManaged) {
-			    	continue;
-			    }
+		}, "Pipe Monitor");
+		return false;
+	}
+
+	/**
+	 * Start monitoring given session of managed compound pipe on its own
+	 * deadline, so compound pipe's monitor need not check all sessions.
+	 * Session is no longer checked after it is unwoven or replaced.
+	 * 
+	 * @param pipe
+	 * @param session
+	 */
+	@J2SIgnore
+	static void monitoringSession(final CompoundPipeRunnable pipe, final CompoundPipeSession session) {
+		session.lastLiveDetected = System.currentTimeMillis();
+		final String key = session.session;
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				if (getPipe(pipe.pipeKey) != pipe || pipe.getSession(key) != session) {
+					return; // removed
+				}
 				long now = System.currentTimeMillis();
-			    try {
-					if (!pipe.isPipeLive() || (pipe instanceof CompoundPipeRunnable
-							&& ((CompoundPipeRunnable) pipe).isEmpty()
-							&& now - ((CompoundPipeRunnable) pipe).lastSetup > 30000)) {
-						//System.out.println("Pipe " + pipe.pipeKey + " live status is " + pipe.isPipeLive());
-                        if (now - pipe.lastLiveDetected > pipe.pipeWaitClosingInterval()) {
-                        	String pipeKey = pipe.pipeKey;
-                        	asyncDestroyPipe(pipe);
-                        	removePipe(pipeKey);
-                        }
-					} else {
-						if (pipe instanceof CompoundPipeRunnable) {
-							CompoundPipeRunnable cp = (CompoundPipeRunnable) pipe;
-							for (int j = 0; j < cp.pipes.length; j++) {
-								CompoundPipeSession ps = cp.pipes[j];
-								if (ps == null) {
-									continue;
-								}
-								if (ps.isPipeLive()) {
-									ps.lastLiveDetected = now;
-								} else if (now - ps.lastLiveDetected > SimplePipeRequest.pipeLiveNotifyInterval * 3 + monitoringInterval + ps.pipeWaitClosingInterval()) {
-		                        	asyncDestroyPipe(ps);
-								}
-							}
-						}
-					    pipe.lastLiveDetected = now;
+				try {
+					if (!pipe.isPipeLive()) {
+						// leave it to pipe's monitor
+					} else if (session.isPipeLive()) {
+						session.lastLiveDetected = now;
+					} else if (now - session.lastLiveDetected > SimplePipeRequest.pipeLiveNotifyInterval * 3
+							+ monitoringInterval + session.pipeWaitClosingInterval()) {
+						asyncDestroyPipe(session);
+						return;
 					}
-            	} catch (Throwable e) {
-            		e.printStackTrace();
-            	}
-			}
-			if (pipes == null || pipes.isEmpty()) {
-				monitored = false;
-				break;
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+				getTimer().schedule(this, monitoringInterval);
 			}
-		}
-		System.err.println("Pipe sessions are null or empty! Pipe session monitor exited!");
+		}, monitoringInterval);
 	}
 
 	@J2SIgnore
 	static void asyncDestroyPipe(final SimplePipeRunnable pipe) {
-    	(new Thread("Destroy Pipe Thread") {
-    		@Override
-    		public void run() {
-    			try {
-    				if (pipe.closer != null) {
-    					pipe.closer.helpClosing(pipe); // will call pipe.pipeDestroy()
-    				} else {
-    					pipe.pipeClosed(); // will call pipe.pipeDestroy()
-    				}
-    			} catch (Throwable e) {
-    				e.printStackTrace();
-    			}
-    		}
-    	}).start();
+		SimpleThreadHelper.runTask(new Runnable() {
+			public void run() {
+				try {
+					if (pipe.closer != null) {
+						pipe.closer.helpClosing(pipe); // will call pipe.pipeDestroy()
+					} else {
+						pipe.pipeClosed(); // will call pipe.pipeDestroy()
+					}
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+			}
+		}, "Destroy Pipe Thread");
 	}
 	
+	/**
+	 * Start monitoring given pipe. Each pipe is checked on its own deadline
+	 * by the shared timer, instead of scanning all pipes periodically.
+	 * Managed pipes are checked every {@link #getMonitoringInterval()}, and
+	 * other pipes are checked every {@link SimplePipeRunnable#pipeMonitoringInterval()}.
+	 * 
+	 * @param pipe
+	 */
 	@J2SIgnore
-	static void monitoringPipe(SimplePipeRunnable pipe) {
-		long now = System.currentTimeMillis();
-		pipe.lastLiveDetected = now;
-		if (monitored) {
-			return;
-		}
-		monitored = true;
-		Thread thread = new Thread("Managed Pipe Session Monitor") {
+	static void monitoringPipe(final SimplePipeRunnable pipe) {
+		pipe.lastLiveDetected = System.currentTimeMillis();
+		final String key = pipe.pipeKey;
+		final boolean managed = pipe.pipeManaged;
+		getTimer().schedule(new Runnable() {
 			public void run() {
-				monitoringAllPipes();
+				long start = System.nanoTime();
+				boolean more = managed ? monitoringManagedPipe(pipe, key)
+						: monitoringUnmanagedPipe(pipe);
+				SimpleMetrics.histogram(SimpleMetrics.PIPE_MONITOR_CHECK).recordSince(start);
+				if (more) {
+					getTimer().schedule(this, monitoringDelay(pipe, managed));
+				}
 			}
-		};
-		thread.setDaemon(true);
-		thread.start();
+		}, monitoringDelay(pipe, managed));
+	}
+
+	@J2SIgnore
+	private static long monitoringDelay(SimplePipeRunnable pipe, boolean managed) {
+		long interval = managed ? monitoringInterval : pipe.pipeMonitoringInterval();
+		return interval > 0 ? interval : 1000;
 	}
 	
 }
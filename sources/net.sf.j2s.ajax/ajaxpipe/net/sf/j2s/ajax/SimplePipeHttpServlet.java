@@ -12,15 +12,12 @@ package net.sf.j2s.ajax;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.sf.j2s.ajax.SimpleSerializable;
-
 /**
  * 
  * @author zhou renjian
@@ -35,6 +32,10 @@ public class SimplePipeHttpServlet extends HttpServlet {
 
 	protected int pipeMaxItemsPerQuery = -1; // infinite
 
+	protected boolean supportCompression = false;
+
+	protected int compressionThreshold = 1024; // 1k, for query and script pipes
+
 	/*
 	 * Example of web.xml:
     <servlet>
@@ -52,6 +53,14 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			<param-name>simple.pipe.max.items.per.query</param-name>
 			<param-value>60</param-value>
 		</init-param>
+		<init-param>
+			<param-name>simple.pipe.compression</param-name>
+			<param-value>true</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.pipe.compression.threshold</param-name>
+			<param-value>1024</param-value>
+		</init-param>
     </servlet>
     <servlet-mapping>
         <servlet-name>simplepipe</servlet-name>
@@ -101,6 +110,18 @@ public class SimplePipeHttpServlet extends HttpServlet {
 				e.printStackTrace();
 			}
 		}
+		String compressionStr = getInitParameter("simple.pipe.compression");
+		if (compressionStr != null) {
+			supportCompression = "true".equals(compressionStr);
+		}
+		String thresholdStr = getInitParameter("simple.pipe.compression.threshold");
+		if (thresholdStr != null) {
+			try {
+				compressionThreshold = Integer.parseInt(thresholdStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
 		super.init();
 	}
 
@@ -117,7 +138,94 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			type = SimplePipeRequest.PIPE_TYPE_CONTINUUM;
 		}
 		String domain = req.getParameter(SimplePipeRequest.FORM_PIPE_DOMAIN);
-		doPipe(resp, key, type, domain);
+		boolean binary = SimplePipeRequest.SERIALIZATION_BINARY.equals(
+				req.getHeader(SimplePipeRequest.HEADER_SERIALIZATION));
+		acceptClientHeaders(req, key);
+		doPipe(req, resp, key, type, domain, binary);
+	}
+
+	/*
+	 * Java client accepts deltas, or asks for whole objects again, and
+	 * acknowledges sequence of received pipe data.
+	 */
+	static void acceptClientHeaders(HttpServletRequest req, String key) {
+		acceptClientHeaders(key, req.getHeader(SimplePipeRequest.HEADER_PIPE_DELTA),
+				req.getHeader(SimplePipeRequest.HEADER_PIPE_SEQUENCE));
+	}
+
+	static void acceptClientHeaders(String key, String delta, String sequence) {
+		if ("true".equals(delta) || "reset".equals(delta)) {
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+			if (pipe != null) {
+				pipe.deltaSupported = true; // Java client, see ISimpleDeltaCacheable
+				if ("reset".equals(delta)) {
+					SimplePipeHelper.resetDeltas(pipe);
+				}
+			}
+		}
+		if (sequence != null) {
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+			if (pipe != null && pipe.replayLog != null) {
+				try {
+					pipe.replayLog.acknowledge(Long.parseLong(sequence));
+				} catch (NumberFormatException e) {
+					// ignore invalid sequence
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subclasses may override this method to handle pipe requests with
+	 * the request object, e.g. asynchronously.
+	 * 
+	 * @see #doPipe(HttpServletResponse, String, String, String, boolean)
+	 */
+	protected void doPipe(HttpServletRequest req, HttpServletResponse resp, String key,
+			String type, String domain, boolean binary) throws IOException {
+		SimpleCompressedResponse compressed = compressPipe(req, resp, type);
+		if (compressed != null) {
+			try {
+				doPipe(compressed, key, type, domain, binary);
+			} finally {
+				compressed.finish();
+			}
+			return;
+		}
+		doPipe(resp, key, type, domain, binary);
+	}
+
+	/**
+	 * Wrap pipe response for compression, if it is supported by both
+	 * servlet and client. Continuum responses are always compressed, and
+	 * are sync flushed, so pipe data are delivered at once. Query and
+	 * script responses are compressed only if their content reaches the
+	 * threshold, so small heart beats are not enlarged by compression.
+	 * 
+	 * @param req
+	 * @param resp
+	 * @param type
+	 * @return compressed response or null
+	 */
+	protected SimpleCompressedResponse compressPipe(HttpServletRequest req,
+			HttpServletResponse resp, String type) {
+		if (!supportCompression || SimplePipeRequest.PIPE_TYPE_NOTIFY.equals(type)
+				|| SimplePipeRequest.PIPE_TYPE_SUBDOMAIN_QUERY.equals(type)) {
+			return null;
+		}
+		if (SimplePipeRequest.PIPE_TYPE_CONTINUUM.equals(type)) {
+			return SimpleCompressedResponse.wrap(req, resp, 0, true);
+		}
+		if (SimplePipeRequest.PIPE_TYPE_SCRIPT.equals(type)
+				&& !SimpleCompressedResponse.isSyncFlushSupported()) {
+			return null; // script data would not be delivered at once
+		}
+		return SimpleCompressedResponse.wrap(req, resp, compressionThreshold, false);
+	}
+
+	protected void doPipe(final HttpServletResponse resp, String key, String type, String domain)
+			throws IOException {
+		doPipe(resp, key, type, domain, false);
 	}
 
 	/**
@@ -138,9 +246,12 @@ public class SimplePipeHttpServlet extends HttpServlet {
 	 * 
 	 * type = notify
 	 * Notify that client (browser) still keeps the pipe connection.
+	 * 
+	 * Java clients may ask for "WLB101" binary serialization, which is only
+	 * used for query and continuum types.
 	 */ 
-	protected void doPipe(final HttpServletResponse resp, String key, String type, String domain)
-			throws IOException {
+	protected void doPipe(final HttpServletResponse resp, String key, String type, String domain,
+			boolean binary) throws IOException {
 		PrintWriter writer = null;
 		resp.setHeader("Pragma", "no-cache");
 		resp.setHeader("Cache-Control", "no-cache");
@@ -151,6 +262,7 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			 * Client send in "notify" request to execute #notifyPipeStatus, see below comments
 			 */
 			boolean updated = SimplePipeHelper.notifyPipeStatus(key, true); // update it!
+			SimpleMetrics.counter(SimpleMetrics.PIPE_NOTIFIES).increase();
 			resp.setContentType("text/javascript; charset=utf-8");
 			writer = resp.getWriter();
 			writer.write("$p1p3b$ (\""); // $p1p3b$ = net.sf.j2s.ajax.SimplePipeRequest.pipeNotifyCallBack
@@ -189,9 +301,67 @@ public class SimplePipeHttpServlet extends HttpServlet {
 			writer.write(buffer.toString());
 			return;
 		}
+		if (!acceptsBinary(type)) {
+			binary = false; // browsers only know "WLL201"
+		}
+		writer = startPipe(resp, type, domain, binary);
+
+		stream(new SimplePipeSession(this, writer, key, type, binary));
+	}
+
+	/*
+	 * Write pipe data of given session until pipe response should end.
+	 */
+	static void stream(SimplePipeSession session) {
+		String key = session.key;
+		if (SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
+			SimplePipeRunnable pipe = session.pipe;
+			while (session.step()) {
+				if (!session.live) { // sleep 1s and continue to check pipe status again
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+					}
+					continue;
+				}
+				synchronized (pipe) {
+					try {
+						pipe.wait(1000);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			} // end of while
+		} // else pips is already closed or in other statuses
+		session.end();
+	}
+
+	/*
+	 * Only query and continuum pipes may be serialized in "WLB101" format.
+	 */
+	static boolean acceptsBinary(String type) {
+		return SimplePipeRequest.PIPE_TYPE_CONTINUUM.equals(type)
+				|| SimplePipeRequest.PIPE_TYPE_QUERY.equals(type);
+	}
+
+	/**
+	 * Set content type and write the leading content of pipe response.
+	 * 
+	 * @param resp
+	 * @param type
+	 * @param domain
+	 * @param binary
+	 * @return writer of pipe response
+	 * @throws IOException
+	 */
+	protected PrintWriter startPipe(HttpServletResponse resp, String type, String domain,
+			boolean binary) throws IOException {
+		PrintWriter writer = null;
 		boolean isContinuum = SimplePipeRequest.PIPE_TYPE_CONTINUUM.equals(type);
 		if (isContinuum) {
 			resp.setHeader("Transfer-Encoding", "chunked");
+			// Open connection keeps pipe live, see SimplePipeSession#step
+			resp.setHeader(SimplePipeRequest.HEADER_PIPE_LIVE, SimplePipeRequest.PIPE_LIVE_STREAM);
 		}
 		boolean isScripting = SimplePipeRequest.PIPE_TYPE_SCRIPT.equals(type);
 		if (isScripting) { // iframe
@@ -213,135 +383,17 @@ public class SimplePipeHttpServlet extends HttpServlet {
 		} else {
 			if (SimplePipeRequest.PIPE_TYPE_QUERY.equals(type)
 					|| isContinuum) {
-				resp.setContentType("text/plain; charset=utf-8");
+				if (binary) {
+					resp.setContentType("text/plain; charset=iso-8859-1");
+				} else {
+					resp.setContentType("text/plain; charset=utf-8");
+				}
 			} else {
 				resp.setContentType("text/javascript; charset=utf-8");
 			}
 			writer = resp.getWriter();
 		}
-
-		long lastPipeDataWritten = -1;
-		long beforeLoop = System.currentTimeMillis();
-		int items = 0;
-		if (SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
-			List<SimpleSerializable> list = null;
-			int priority = 0;
-	        long lastLiveDetected = System.currentTimeMillis();
-	        SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
-	        long waitClosingInterval = pipe == null ? 5000 : pipe.pipeWaitClosingInterval();
-			while ((list = SimplePipeHelper.getPipeDataList(key)) != null
-					/* && SimplePipeHelper.isPipeLive(key) */ // check it!
-					&& !writer.checkError()) {
-				StringBuffer buffer = new StringBuffer();
-				synchronized (list) {
-					int size = list.size();
-					if (size > 0) {
-						boolean live = SimplePipeHelper.isPipeLive(key);
-						for (int i = 0; i < size; i++) {
-							SimpleSerializable ss = null;
-							ss = list.remove(0);
-							if (ss == null) break; // terminating signal
-							if (ss instanceof ISimpleCacheable) {
-								ISimpleCacheable sc = (ISimpleCacheable) ss;
-								sc.setCached(false);
-							}
-							buffer.append(output(type, key, ss.serialize()));
-							items++;
-							if (live && pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery
-									&& !isContinuum) {
-								break;
-							}
-							lastPipeDataWritten = System.currentTimeMillis();
-							if (ss instanceof ISimplePipePriority) {
-								ISimplePipePriority spp = (ISimplePipePriority) ss;
-								int p = spp.getPriority();
-								if (p <= 0) {
-									p = ISimplePipePriority.IMPORTANT;
-								}
-								priority += p;
-							} else {
-								priority += ISimplePipePriority.IMPORTANT;
-							}
-						}
-					}
-				}
-				if (buffer.length() > 0) {
-					writer.write(buffer.toString());
-				}
-				writer.flush();
-				if (!SimplePipeHelper.isPipeLive(key)) {
-					if (System.currentTimeMillis() - lastLiveDetected > waitClosingInterval) {
-						// break out while loop so pipe connection will be closed
-						break;
-					} else { // sleep 1s and continue to check pipe status again
-						try {
-							Thread.sleep(1000);
-						} catch (InterruptedException e) {
-						}
-						continue;
-					}
-				} else {
-					lastLiveDetected = System.currentTimeMillis();
-				}
-				// Client should send in "notify" request to simulate the following #notifyPipeStatus
-				// SimplePipeHelper.notifyPipeStatus(key, true);
-				
-				long now = System.currentTimeMillis();
-				if ((lastPipeDataWritten == -1 && now - beforeLoop >= pipeQueryTimeout)
-						|| (lastPipeDataWritten > 0
-								&& now - lastPipeDataWritten >= pipeQueryTimeout
-								&& (isContinuum || isScripting))) {
-					writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
-					lastPipeDataWritten = System.currentTimeMillis();
-				}
-				
-				now = System.currentTimeMillis();
-				if (SimplePipeHelper.getPipeDataList(key) != null // may be broken down already!!
-						&& (pipeMaxItemsPerQuery <= 0 || items < pipeMaxItemsPerQuery || isContinuum)
-						&& (isContinuum || (isScripting && now - beforeLoop < pipeScriptBreakout)
-						|| (priority < ISimplePipePriority.IMPORTANT && now - beforeLoop < pipeQueryTimeout))) {
-					synchronized (pipe) {
-						try {
-							pipe.wait(1000);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-				} else {
-					break;
-				}
-			} // end of while
-		} // else pips is already closed or in other statuses
-		if (SimplePipeHelper.getPipeDataList(key) == null
-				|| !SimplePipeHelper.isPipeLive(key)) { // pipe is tore down!
-			//SimplePipeHelper.notifyPipeStatus(key, false); // Leave for pipe monitor to destroy it
-			SimplePipeHelper.removePipe(key);
-			try {
-				writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_DESTROYED));
-				lastPipeDataWritten = System.currentTimeMillis();
-			} catch (Exception e) {
-				// HTTP connection may be closed already!
-			}
-		} else if (isScripting
-				&& (System.currentTimeMillis() - beforeLoop >= pipeScriptBreakout
-						|| (pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery))) {
-			try {
-				writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_CONTINUE));
-				lastPipeDataWritten = System.currentTimeMillis();
-			} catch (Exception e) {
-				// HTTP connection may be closed already!
-			}
-		}
-		if (lastPipeDataWritten == -1) {
-			writer.write(output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
-		}
-		if (isScripting) { // iframe
-			try {
-				writer.write("</body></html>\r\n");
-			} catch (Exception e) {
-				// HTTP connection may be closed already!
-			}
-		}
+		return writer;
 	}
 
 	protected static String output(String type, String key,
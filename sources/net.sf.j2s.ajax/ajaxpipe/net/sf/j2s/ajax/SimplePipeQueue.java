@@ -0,0 +1,587 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Pipe data queue with many producers, which call
+ * {@link SimplePipeHelper#pipeIn(String, SimpleSerializable[])}, and one
+ * consumer at a time, which writes pipe response.
+ *
+ * Producers put data into a ring without locks. Consumer moves data from
+ * the ring into a binary heap, and takes data of higher priority first,
+ * while data in both the ring and the heap are counted against capacity,
+ * unless policy is {@link #POLICY_UNBOUNDED}, see {@link ISimplePipePriority}. Data of the same priority are taken in
+ * the order they are piped in. Data without priority are considered as
+ * {@link ISimplePipePriority#IMPORTANT}.
+ *
+ * Queued ISimpleCacheable
+ * objects are indexed, so an equal object piped in later is merged into
+ * the queued one by {@link ISimpleCacheable#synchronizeFrom(ISimpleCacheable)}
+ * instead of being queued again. Such objects should implement both
+ * #equals and #hashCode.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+public class SimplePipeQueue {
+
+	/**
+	 * Queue is never full, so no pipe data are lost and producers are never
+	 * blocked, as the queue grows while client is slow. Capacity is only
+	 * the size of the lock-free ring, and more data are moved into the
+	 * heap. It is the default policy, see {@link SimplePipeRunnable#pipeQueuePolicy()}.
+	 */
+	public static final int POLICY_UNBOUNDED = 0;
+
+	/**
+	 * If queue is full, drop the oldest queued data for the new one. Client
+	 * is not told which data are dropped, so it should only be used by
+	 * pipes whose data are superseded by later data.
+	 */
+	public static final int POLICY_DROP_OLDEST = 1;
+
+	/**
+	 * If queue is full, only merge new data into those queued equal
+	 * ISimpleCacheable objects, and drop other new data.
+	 */
+	public static final int POLICY_COALESCE = 2;
+
+	/**
+	 * If queue is full, block producer until there is space or the pipe
+	 * is closed. Should only be used by pipes whose producers can afford
+	 * waiting for a slow client.
+	 */
+	public static final int POLICY_BLOCK = 3;
+
+	/*
+	 * Null is used as terminating signal in pipe data, which is queued as
+	 * this object.
+	 */
+	private static final SimpleSerializable TERMINATOR = new SimpleSerializable();
+
+	private final int policy;
+
+	private final int mask;
+
+	private final AtomicReferenceArray<SimpleSerializable> buffer;
+
+	/*
+	 * Slot i is free for position p if sequences[i] == p, and is filled
+	 * for position p if sequences[i] == p + 1.
+	 */
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	private final AtomicLong head = new AtomicLong();
+
+	/*
+	 * Number of data in ring and heap. Producer acquires one before putting
+	 * data into ring, and consumer releases it after data is taken or
+	 * dropped, so ring never overflows.
+	 */
+	private final AtomicInteger count = new AtomicInteger();
+
+	private final ConcurrentHashMap<SimpleSerializable, SimpleSerializable> cachedItems
+			= new ConcurrentHashMap<SimpleSerializable, SimpleSerializable>();
+
+	/*
+	 * Lock of consumer side. Producers only take it to drop oldest data.
+	 */
+	private final Object consumerLock = new Object();
+
+	private final Object notFull = new Object();
+
+	private volatile int blockedProducers;
+
+	private volatile boolean closed;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	/*
+	 * Entries of data taken from ring, which are kept both in a binary heap
+	 * ordered by priority and then by sequence, and in a list ordered by
+	 * sequence, so the oldest entry is found at once for dropping. Each
+	 * entry is an index into the following arrays. Only accessed while
+	 * holding consumer lock.
+	 */
+	private SimpleSerializable[] entryItems = new SimpleSerializable[16];
+
+	private int[] entryPriorities = new int[16];
+
+	private long[] entrySequences = new long[16];
+
+	private int[] entryHeapIndexes = new int[16];
+
+	private int[] entryPrevs = new int[16];
+
+	private int[] entryNexts = new int[16]; // or next free entry
+
+	private int entriesUsed;
+
+	private int freeEntries = -1;
+
+	private int oldestEntry = -1;
+
+	private int newestEntry = -1;
+
+	private int[] heap = new int[16];
+
+	private volatile int heapSize;
+
+	private long sequence;
+
+	/**
+	 * @param capacity rounded up to power of 2
+	 * @param policy one of POLICY_* constants
+	 */
+	SimplePipeQueue(int capacity, int policy) {
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.policy = policy;
+		buffer = new AtomicReferenceArray<SimpleSerializable>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Put given pipe data into queue.
+	 *
+	 * @param s
+	 * @return false if the data is dropped
+	 */
+	boolean put(SimpleSerializable s) {
+		if (!(s instanceof ISimpleCacheable)) {
+			return enqueue(s == null ? TERMINATOR : s);
+		}
+		ISimpleCacheable c = (ISimpleCacheable) s;
+		if (c.isCached()) {
+			// already buffered
+			return true;
+		}
+		while (true) {
+			SimpleSerializable existed = cachedItems.putIfAbsent(s, s);
+			if (existed == null) {
+				break;
+			}
+			synchronized (existed) {
+				if (cachedItems.get(s) == existed) {
+					// same object but may be with updated properties!
+					((ISimpleCacheable) existed).synchronizeFrom(c);
+					return true;
+				}
+			}
+			// existed one is taken by consumer, try again
+		}
+		c.setCached(true);
+		if (!enqueue(s)) {
+			release(s);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean enqueue(SimpleSerializable s) {
+		while (!acquire()) {
+			if (closed) {
+				return false;
+			}
+			if (policy == POLICY_DROP_OLDEST) {
+				if (!dropOldest()) {
+					dropped.incrementAndGet();
+					return false; // only terminating signal is queued
+				}
+			} else if (policy == POLICY_BLOCK) {
+				synchronized (notFull) {
+					if (size() > mask && !closed) {
+						blockedProducers++;
+						try {
+							notFull.wait(1000);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return false;
+						} finally {
+							blockedProducers--;
+						}
+					}
+				}
+			} else {
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		while (!offer(s)) {
+			if (policy == POLICY_UNBOUNDED) {
+				synchronized (consumerLock) {
+					schedule(); // ring is full, move data into heap
+				}
+			}
+			// or slot is still being taken by consumer
+			Thread.yield();
+		}
+		return true;
+	}
+
+	private boolean acquire() {
+		if (policy == POLICY_UNBOUNDED) {
+			count.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			int c = count.get();
+			if (c > mask) {
+				return false; // full
+			}
+			if (count.compareAndSet(c, c + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Drop the oldest queued data, except terminating signal. Data in ring
+	 * are always newer than those in heap.
+	 */
+	private boolean dropOldest() {
+		SimpleSerializable oldest = null;
+		synchronized (consumerLock) {
+			schedule();
+			int entry = oldestEntry;
+			while (entry != -1 && entryItems[entry] == TERMINATOR) {
+				entry = entryNexts[entry];
+			}
+			if (entry == -1) {
+				return false;
+			}
+			oldest = heapRemove(entryHeapIndexes[entry]);
+		}
+		count.decrementAndGet();
+		release(oldest);
+		dropped.incrementAndGet();
+		return true;
+	}
+
+	private boolean offer(SimpleSerializable s) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer.set(index, s);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false; // full
+			} else {
+				pos = tail.get(); // taken by other producer
+			}
+		}
+	}
+
+	/*
+	 * Should be called while holding consumer lock.
+	 */
+	private SimpleSerializable dequeue() {
+		long pos = head.get();
+		int index = (int) (pos & mask);
+		if (sequences.get(index) != pos + 1) {
+			return null; // empty, or producer is still writing this slot
+		}
+		SimpleSerializable s = buffer.get(index);
+		buffer.set(index, null);
+		sequences.set(index, pos + mask + 1);
+		head.set(pos + 1);
+		return s;
+	}
+
+	private void release(SimpleSerializable s) {
+		if (s instanceof ISimpleCacheable) {
+			synchronized (s) {
+				cachedItems.remove(s, s);
+				((ISimpleCacheable) s).setCached(false);
+			}
+		}
+	}
+
+	/**
+	 * Take the oldest pipe data. The returned ISimpleCacheable object is
+	 * no longer merged with later data, so it is safe to serialize it.
+	 *
+	 * @return pipe data, or null if queue is empty or terminating signal
+	 * is reached
+	 */
+	SimpleSerializable poll() {
+		SimpleSerializable s = null;
+		synchronized (consumerLock) {
+			schedule();
+			s = heapPoll();
+		}
+		if (s == null) {
+			return null;
+		}
+		count.decrementAndGet();
+		release(s);
+		if (blockedProducers > 0) {
+			synchronized (notFull) {
+				notFull.notifyAll();
+			}
+		}
+		return s == TERMINATOR ? null : s;
+	}
+
+	/**
+	 * @return number of queued pipe data
+	 */
+	int size() {
+		return count.get();
+	}
+
+	/*
+	 * Move data from ring into heap. Total size is already limited by
+	 * capacity on putting.
+	 */
+	private void schedule() {
+		while (true) {
+			SimpleSerializable s = dequeue();
+			if (s == null) {
+				break;
+			}
+			heapAdd(s, priorityOf(s), sequence++);
+		}
+	}
+
+	static int priorityOf(SimpleSerializable s) {
+		if (s instanceof ISimplePipePriority) {
+			int p = ((ISimplePipePriority) s).getPriority();
+			if (p > 0) {
+				return p;
+			}
+		}
+		return ISimplePipePriority.IMPORTANT;
+	}
+
+	/*
+	 * Whether entry a should be taken before entry b.
+	 */
+	private boolean entryBefore(int a, int b) {
+		if (entryPriorities[a] != entryPriorities[b]) {
+			return entryPriorities[a] > entryPriorities[b];
+		}
+		return entrySequences[a] < entrySequences[b];
+	}
+
+	private boolean heapBefore(int i, int j) {
+		return entryBefore(heap[i], heap[j]);
+	}
+
+	private void heapSwap(int i, int j) {
+		int entry = heap[i];
+		heap[i] = heap[j];
+		heap[j] = entry;
+		entryHeapIndexes[heap[i]] = i;
+		entryHeapIndexes[heap[j]] = j;
+	}
+
+	private int newEntry() {
+		if (freeEntries != -1) {
+			int entry = freeEntries;
+			freeEntries = entryNexts[entry];
+			return entry;
+		}
+		if (entriesUsed == entryItems.length) {
+			int size = entriesUsed;
+			int length = size << 1;
+			SimpleSerializable[] items = new SimpleSerializable[length];
+			System.arraycopy(entryItems, 0, items, 0, size);
+			entryItems = items;
+			entryPriorities = grow(entryPriorities, length);
+			long[] seqs = new long[length];
+			System.arraycopy(entrySequences, 0, seqs, 0, size);
+			entrySequences = seqs;
+			entryHeapIndexes = grow(entryHeapIndexes, length);
+			entryPrevs = grow(entryPrevs, length);
+			entryNexts = grow(entryNexts, length);
+			heap = grow(heap, length);
+		}
+		return entriesUsed++;
+	}
+
+	private static int[] grow(int[] array, int length) {
+		int[] newArray = new int[length];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	private void heapAdd(SimpleSerializable s, int priority, long seq) {
+		int entry = newEntry();
+		entryItems[entry] = s;
+		entryPriorities[entry] = priority;
+		entrySequences[entry] = seq;
+		// sequence is increasing, so entry is the newest one
+		entryPrevs[entry] = newestEntry;
+		entryNexts[entry] = -1;
+		if (newestEntry == -1) {
+			oldestEntry = entry;
+		} else {
+			entryNexts[newestEntry] = entry;
+		}
+		newestEntry = entry;
+		int i = heapSize;
+		heap[i] = entry;
+		entryHeapIndexes[entry] = i;
+		heapSize = i + 1;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (!heapBefore(i, parent)) {
+				break;
+			}
+			heapSwap(i, parent);
+			i = parent;
+		}
+	}
+
+	private SimpleSerializable heapPoll() {
+		if (heapSize == 0) {
+			return null;
+		}
+		return heapRemove(0);
+	}
+
+	private SimpleSerializable heapRemove(int index) {
+		int entry = heap[index];
+		int size = heapSize - 1;
+		heapSwap(index, size);
+		heapSize = size;
+		int i = index;
+		while (i < size && i > 0) {
+			int parent = (i - 1) >> 1;
+			if (!heapBefore(i, parent)) {
+				break;
+			}
+			heapSwap(i, parent);
+			i = parent;
+		}
+		while (true) {
+			int child = (i << 1) + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heapBefore(child + 1, child)) {
+				child++;
+			}
+			if (!heapBefore(child, i)) {
+				break;
+			}
+			heapSwap(i, child);
+			i = child;
+		}
+		int prev = entryPrevs[entry];
+		int next = entryNexts[entry];
+		if (prev == -1) {
+			oldestEntry = next;
+		} else {
+			entryNexts[prev] = next;
+		}
+		if (next == -1) {
+			newestEntry = prev;
+		} else {
+			entryPrevs[next] = prev;
+		}
+		SimpleSerializable s = entryItems[entry];
+		entryItems[entry] = null;
+		entryNexts[entry] = freeEntries;
+		freeEntries = entry;
+		return s;
+	}
+
+	/**
+	 * @return snapshot of queued pipe data, in the order of being taken
+	 */
+	List<SimpleSerializable> toList() {
+		List<SimpleSerializable> list = new ArrayList<SimpleSerializable>();
+		synchronized (consumerLock) {
+			schedule();
+			Integer[] entries = new Integer[heapSize];
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = Integer.valueOf(heap[i]);
+			}
+			Arrays.sort(entries, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if (entryBefore(a.intValue(), b.intValue())) {
+						return -1;
+					}
+					return entryBefore(b.intValue(), a.intValue()) ? 1 : 0;
+				}
+			});
+			for (int i = 0; i < entries.length; i++) {
+				list.add(unwrap(entryItems[entries[i].intValue()]));
+			}
+			long end = tail.get();
+			for (long pos = head.get(); pos < end; pos++) {
+				int index = (int) (pos & mask);
+				if (sequences.get(index) != pos + 1) {
+					break;
+				}
+				list.add(unwrap(buffer.get(index)));
+			}
+		}
+		return list;
+	}
+
+	private static SimpleSerializable unwrap(SimpleSerializable s) {
+		if (s == TERMINATOR) {
+			return null;
+		}
+		if (s instanceof SimplePipeTopic.Payload) {
+			return ((SimplePipeTopic.Payload) s).data;
+		}
+		return s;
+	}
+
+	/**
+	 * @return number of dropped pipe data since queue is created
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Close queue, and release blocked producers.
+	 */
+	void close() {
+		closed = true;
+		synchronized (notFull) {
+			notFull.notifyAll();
+		}
+	}
+
+}
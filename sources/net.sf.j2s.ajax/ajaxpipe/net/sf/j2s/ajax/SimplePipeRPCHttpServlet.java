@@ -10,6 +10,13 @@
  *******************************************************************************/
 package net.sf.j2s.ajax;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import net.sf.j2s.ajax.SimpleRPCHttpServlet;
 import net.sf.j2s.ajax.SimpleRPCRunnable;
 import net.sf.j2s.ajax.SimpleSerializable;
@@ -22,6 +29,86 @@ public class SimplePipeRPCHttpServlet extends SimpleRPCHttpServlet {
 
 	private static final long serialVersionUID = 3141977053834098092L;
 
+	/**
+	 * Heart beat interval of continuum pipes which are set up and streamed
+	 * in one request.
+	 */
+	protected long pipeQueryTimeout = 5000; // 5 seconds
+
+	private SimplePipeTCPCluster cluster;
+
+	/*
+	 * Example of web.xml for the first of two clustered servers, the other
+	 * server has the same nodes and node index 1:
+    <servlet>
+        <servlet-name>piperpc</servlet-name>
+        <servlet-class>net.sf.j2s.ajax.SimplePipeRPCHttpServlet</servlet-class>
+		<init-param>
+			<param-name>simple.pipe.query.timeout</param-name>
+			<param-value>5000</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.pipe.cluster.nodes</param-name>
+			<param-value>10.0.0.1:7071, 10.0.0.2:7071</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.pipe.cluster.node</param-name>
+			<param-value>0</param-value>
+		</init-param>
+    </servlet>
+	 */
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		String timeoutStr = getInitParameter("simple.pipe.query.timeout");
+		if (timeoutStr != null) {
+			try {
+				pipeQueryTimeout = Long.parseLong(timeoutStr);
+				if (pipeQueryTimeout < 0 || pipeQueryTimeout > 20000) {
+					pipeQueryTimeout = 20000; // same as SimplePipeHttpServlet
+				}
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		String nodesStr = getInitParameter("simple.pipe.cluster.nodes");
+		if (nodesStr == null || nodesStr.trim().length() == 0
+				|| SimplePipeHelper.getPipeChannel() != null) {
+			return; // single server, or cluster is already set up
+		}
+		int index = 0;
+		String indexStr = getInitParameter("simple.pipe.cluster.node");
+		if (indexStr != null) {
+			try {
+				index = Integer.parseInt(indexStr.trim());
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			SimplePipeTCPCluster c = new SimplePipeTCPCluster(nodesStr.trim().split("\\s*[,;]\\s*"), index);
+			c.start();
+			SimplePipeHelper.setPipeDirectory(c, c);
+			cluster = c;
+		} catch (IOException e) {
+			throw new ServletException(e);
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(e);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (cluster != null) {
+			if (SimplePipeHelper.getPipeChannel() == cluster) {
+				SimplePipeHelper.setPipeDirectory(null, null);
+			}
+			cluster.stop();
+			cluster = null;
+		}
+		super.destroy();
+	}
+
 	@Override
 	protected SimpleRPCRunnable getRunnableByRequest(String request) {
 		SimpleRPCRunnable runnable = super.getRunnableByRequest(request);
@@ -40,4 +127,53 @@ public class SimplePipeRPCHttpServlet extends SimpleRPCHttpServlet {
 		return runnable;
 	}
 
+	@Override
+	protected boolean isStreamingRequest(HttpServletRequest req) {
+		return super.isStreamingRequest(req)
+				|| req.getHeader(SimplePipeRequest.HEADER_PIPE_SETUP) != null;
+	}
+
+	/**
+	 * If Java client asks for it, keep the response of pipe setup request
+	 * open as continuum pipe. Pipe data, including those piped through in
+	 * {@link SimplePipeRunnable#pipeSetup()}, are written right after the
+	 * setup response, without waiting for another pipe request.
+	 * 
+	 * @see SimplePipeRequest#HEADER_PIPE_SETUP
+	 */
+	@Override
+	protected void doRunnable(HttpServletRequest req, HttpServletResponse resp,
+			SimpleRPCRunnable runnable, boolean binary) throws IOException {
+		if (!(runnable instanceof SimplePipeRunnable)
+				|| !SimplePipeRequest.PIPE_TYPE_CONTINUUM.equals(
+						req.getHeader(SimplePipeRequest.HEADER_PIPE_SETUP))) {
+			super.doRunnable(req, resp, runnable, binary);
+			return;
+		}
+		resp.setHeader("Pragma", "no-cache");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setDateHeader("Expires", 0);
+		String charset = binary ? "iso-8859-1" : "utf-8";
+		resp.setContentType("text/plain; charset=" + charset);
+		String serialize = runAndSerialize(runnable, binary);
+		String key = ((SimplePipeRunnable) runnable).pipeKey; // null if setup failed
+		resp.setHeader(SimplePipeRequest.HEADER_PIPE_SETUP,
+				String.valueOf(serialize.getBytes(charset).length));
+		if (key != null) {
+			resp.setHeader("Transfer-Encoding", "chunked");
+			// Open connection keeps pipe live, see SimplePipeSession#step
+			resp.setHeader(SimplePipeRequest.HEADER_PIPE_LIVE, SimplePipeRequest.PIPE_LIVE_STREAM);
+		}
+		PrintWriter writer = resp.getWriter();
+		writer.write(serialize);
+		runnable.ajaxOut();
+		if (key == null) {
+			return;
+		}
+		writer.flush(); // client starts pipe on receiving setup response
+		SimplePipeHttpServlet.acceptClientHeaders(req, key);
+		SimplePipeHttpServlet.stream(new SimplePipeSession(writer, key,
+				SimplePipeRequest.PIPE_TYPE_CONTINUUM, binary, pipeQueryTimeout, 0, -1));
+	}
+
 }
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Bounded log of pipe data delivered to a pipe's client, by sequence
+ * numbers starting from 1. Java clients acknowledge the last sequence
+ * they received on each pipe request, and those delivered but not
+ * acknowledged data are written again, e.g. after reconnecting.
+ *
+ * If more data are delivered than capacity before being acknowledged,
+ * the oldest data are discarded, and client sees a gap in sequences.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+class SimplePipeReplayLog {
+
+	private final SimpleSerializable[] items;
+
+	private final String[] serialized;
+
+	private final boolean[] binaries;
+
+	/**
+	 * Sequence of the next delivered data.
+	 */
+	private long next = 1;
+
+	/**
+	 * Sequence of the oldest logged data.
+	 */
+	private long first = 1;
+
+	/**
+	 * Whether client acknowledges sequences.
+	 */
+	private volatile boolean sequenced;
+
+	SimplePipeReplayLog(int capacity) {
+		items = new SimpleSerializable[capacity];
+		serialized = new String[capacity];
+		binaries = new boolean[capacity];
+	}
+
+	boolean isSequenced() {
+		return sequenced;
+	}
+
+	/**
+	 * Log delivered pipe data.
+	 *
+	 * @param ss
+	 * @param str serialized string
+	 * @param binary
+	 * @return sequence of the data
+	 */
+	synchronized long append(SimpleSerializable ss, String str, boolean binary) {
+		int capacity = items.length;
+		if (next - first >= capacity) {
+			first = next - capacity + 1; // discard the oldest
+		}
+		int index = (int) (next % capacity);
+		items[index] = ss;
+		serialized[index] = str;
+		binaries[index] = binary;
+		return next++;
+	}
+
+	/**
+	 * Discard those data which are received by client.
+	 *
+	 * @param sequence the last sequence received by client
+	 */
+	synchronized void acknowledge(long sequence) {
+		sequenced = true;
+		if (sequence >= next) {
+			sequence = next - 1; // client is newer than this log?
+		}
+		int capacity = items.length;
+		while (first <= sequence) {
+			int index = (int) (first % capacity);
+			items[index] = null;
+			serialized[index] = null;
+			first++;
+		}
+	}
+
+	/**
+	 * @return sequence of the last delivered data, or 0
+	 */
+	synchronized long getLastSequence() {
+		return next - 1;
+	}
+
+	/**
+	 * Return sequence of the oldest logged data after given sequence.
+	 *
+	 * @param sequence
+	 * @return sequence, or -1 if there are no such data
+	 */
+	synchronized long nextSequence(long sequence) {
+		long seq = Math.max(sequence + 1, first);
+		return seq < next ? seq : -1;
+	}
+
+	/**
+	 * Return serialized string of logged data in given format.
+	 *
+	 * @param sequence
+	 * @param binary
+	 * @return serialized string, or null if data is already discarded
+	 */
+	String get(long sequence, boolean binary) {
+		SimpleSerializable ss = null;
+		synchronized (this) {
+			if (sequence < first || sequence >= next) {
+				return null;
+			}
+			int index = (int) (sequence % items.length);
+			if (binaries[index] == binary) {
+				return serialized[index];
+			}
+			ss = items[index];
+		}
+		return ss.serialize(null, binary); // client switches format, serialize whole object
+	}
+
+}
@@ -11,7 +11,7 @@
 package net.sf.j2s.ajax;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 
 import net.sf.j2s.ajax.HttpRequest;
 import net.sf.j2s.ajax.SimpleRPCRequest;
@@ -55,6 +55,21 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 	 * Status of pipe: lost.
 	 */
 	public static final String PIPE_STATUS_LOST = "l"; // "lost";
+	
+	/**
+	 * Status of pipe: sequence of the next pipe data, followed by the
+	 * number and ";". Only for Java clients, see {@link #HEADER_PIPE_SEQUENCE}.
+	 */
+	@J2SIgnore
+	public static final String PIPE_STATUS_SEQUENCE = "s"; // "sequence";
+
+	/**
+	 * Status of pipe data: delta, followed by the serialized delta of an
+	 * ISimpleDeltaCacheable object. Only for Java clients, see
+	 * {@link #HEADER_PIPE_DELTA}.
+	 */
+	@J2SIgnore
+	public static final String PIPE_STATUS_DELTA = "p"; // "patch";
 
 	
 	/**
@@ -108,12 +123,66 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 	 */
 	public static final String FORM_PIPE_RANDOM = "r"; // "pipernd";
 	
+	/**
+	 * Request header, with which Java clients tell that they accept deltas
+	 * of ISimpleDeltaCacheable objects, with value "true", or that they miss
+	 * some delivered objects and need whole objects again, with value
+	 * "reset".
+	 */
+	@J2SIgnore
+	public static final String HEADER_PIPE_DELTA = "X-J2S-Pipe-Delta";
+	
+	/**
+	 * Response header of continuum pipe, with value "stream", with which
+	 * server tells that pipe is kept live as long as the connection is
+	 * open. Java clients need not send "notify" requests while pipe data
+	 * or heart beats keep arriving.
+	 */
+	@J2SIgnore
+	public static final String HEADER_PIPE_LIVE = "X-J2S-Pipe-Live";
+	
+	@J2SIgnore
+	public static final String PIPE_LIVE_STREAM = "stream";
+	
+	/**
+	 * Request header of query or continuum pipe, with the sequence of the
+	 * last pipe data received by Java client, or 0. If the pipe keeps
+	 * delivered pipe data for replaying, see {@link SimplePipeRunnable#pipeReplayCapacity()},
+	 * server writes the sequence before each pipe data, and writes those
+	 * pipe data after the given sequence again.
+	 */
+	@J2SIgnore
+	public static final String HEADER_PIPE_SEQUENCE = "X-J2S-Pipe-Sequence";
+	
+	/**
+	 * Request header of pipe setup request, with value "c" (continuum),
+	 * with which Java client asks server to keep the setup response open
+	 * as continuum pipe. Server responds with the same header, whose value
+	 * is the length in bytes of the setup response, followed by pipe data.
+	 * Servers which do not support it respond without the header, and the
+	 * pipe is started by another request as usual.
+	 * 
+	 * @see SimplePipeRPCHttpServlet
+	 */
+	@J2SIgnore
+	public static final String HEADER_PIPE_SETUP = "X-J2S-Pipe-Setup";
+	
 	static final int PIPE_KEY_LENGTH = 6;
 
 	public static final int MODE_PIPE_QUERY = 3;
 	
 	public static final int MODE_PIPE_CONTINUUM = 4;
 	
+	/**
+	 * Pipe data and pipe status are carried by one WebSocket connection,
+	 * and no "notify" requests are sent while it is open. It falls back to
+	 * continuum or query pipe if WebSocket is not supported by client or
+	 * server.
+	 * 
+	 * Server side is SimpleWebSocketPipeHttpServlet in ajaxwebsocket.jar.
+	 */
+	public static final int MODE_PIPE_WEBSOCKET = 5;
+	
 	private static int pipeMode = MODE_PIPE_CONTINUUM;
 	
 	private static long pipeQueryInterval = 1000;
@@ -128,6 +197,9 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 	
 	private static boolean escKeyAbortingDisabled = false;
 	
+	@J2SIgnore
+	private static boolean setupStreaming = true;
+	
 	public static int getPipeMode() {
 		return pipeMode;
 	}
@@ -153,6 +225,37 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 		pipeMode = MODE_PIPE_CONTINUUM;
 	}
 	
+	/**
+	 * Pipe over WebSocket if it is supported. Java client needs ajaxwebsocket.jar
+	 * and a JSR-356 client implementation in class path.
+	 * 
+	 * @see #MODE_PIPE_WEBSOCKET
+	 */
+	public static void switchToWebSocketMode() {
+		pipeMode = MODE_PIPE_WEBSOCKET;
+	}
+	
+	/**
+	 * Ask server to keep the response of pipe setup request open as
+	 * continuum pipe, so pipe data are received one round trip earlier.
+	 * It is enabled by default, and is only used in continuum mode.
+	 * 
+	 * This method only makes sense for Java client not for
+	 * Java2Script client!
+	 * 
+	 * @param streaming
+	 * @see #HEADER_PIPE_SETUP
+	 */
+	@J2SIgnore
+	public static void switchToSetupStreaming(boolean streaming) {
+		setupStreaming = streaming;
+	}
+	
+	@J2SIgnore
+	public static boolean isSetupStreaming() {
+		return setupStreaming;
+	}
+	
 	/**
 	 * Construct request string for pipe.
 	 * @param pipeKey
@@ -168,12 +271,46 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 	
 	protected static void sendRequest(HttpRequest request, String method, String url, 
 			String data, boolean async) {
-		if ("GET".equals(method.toUpperCase())) {
+		boolean isGet = "GET".equals(method.toUpperCase());
+		if (isGet) {
 			request.open(method, url + (url.indexOf('?') != -1 ? "&" : "?") + data, async);
-			request.send(null);
 		} else {
 			request.open(method, url, async);
-			request.send(data);
+		}
+		/**
+		 * @j2sNative
+		 */ { preparePipeRequest(request, data); }
+		request.send(isGet ? null : data);
+	}
+	
+	/*
+	 * Java client asks for binary serialization if it is enabled, accepts
+	 * deltas of ISimpleDeltaCacheable objects, and acknowledges received
+	 * pipe data of query or continuum pipe.
+	 */
+	@J2SIgnore
+	static void preparePipeRequest(HttpRequest request, String data) {
+		prepareSerialization(request);
+		String keyPrefix = FORM_PIPE_KEY + "=";
+		if (data == null || !data.startsWith(keyPrefix)
+				|| data.length() < keyPrefix.length() + PIPE_KEY_LENGTH) {
+			request.setRequestHeader(HEADER_PIPE_DELTA, "true");
+			return;
+		}
+		SimplePipeRunnable runnable = SimplePipeHelper.getPipe(
+				data.substring(keyPrefix.length(), keyPrefix.length() + PIPE_KEY_LENGTH));
+		if (runnable != null && runnable.deltaReset) {
+			runnable.deltaReset = false;
+			request.setRequestHeader(HEADER_PIPE_DELTA, "reset");
+		} else {
+			request.setRequestHeader(HEADER_PIPE_DELTA, "true");
+		}
+		String rest = data.substring(keyPrefix.length() + PIPE_KEY_LENGTH);
+		if (rest.startsWith("&" + FORM_PIPE_TYPE + "=" + PIPE_TYPE_CONTINUUM + "&")
+				|| rest.startsWith("&" + FORM_PIPE_TYPE + "=" + PIPE_TYPE_QUERY + "&")) {
+			if (runnable != null) {
+				request.setRequestHeader(HEADER_PIPE_SEQUENCE, String.valueOf(runnable.pipeSequence));
+			}
 		}
 	}
 	
@@ -188,7 +325,7 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 	public static void pipe(final SimplePipeRunnable runnable) {
 		runnable.ajaxIn();
 		if (getRequstMode() == MODE_LOCAL_JAVA_THREAD) {
-			(new Thread("Pipe Request Thread") {
+			SimpleThreadHelper.runTask(new Runnable() {
 				public void run() {
 					try {
 						runnable.ajaxRun();
@@ -200,7 +337,7 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 					keepPipeLive(runnable);
 					runnable.ajaxOut();
 				}
-			}).start();
+			}, "Pipe Request Thread");
 		} else {
 			pipeRequest(runnable);
 		}
@@ -211,76 +348,121 @@ public class SimplePipeRequest extends SimpleRPCRequest {
 	 */
 	@J2SIgnore
 	static void keepPipeLive(final SimplePipeRunnable runnable) {
+		keepPipeLive(runnable, false);
+	}
+
+	/*
+	 * If streamLive is true, server keeps pipe live while continuum
+	 * connection is open, and notify request is only sent after no data
+	 * is received for a while.
+	 * 
+	 * Only one checker is running for a pipe, later calls on reconnecting
+	 * only update the streamLive flag.
+	 */
+	@J2SIgnore
+	static void keepPipeLive(final SimplePipeRunnable runnable, boolean streamLive) {
 		runnable.updateStatus(true);
+		runnable.pipeStreamLive = streamLive;
+		synchronized (runnable) {
+			if (runnable.pipeLiveKept) {
+				return;
+			}
+			runnable.pipeLiveKept = true;
+		}
 		//if (true) return;
-		Thread thread = new Thread(new Runnable() {
+		/*
+		 * Pipe status is checked every second on the shared timer, and the
+		 * blocking notify request is sent in a pooled thread.
+		 */
+		class PipeLiveChecker implements Runnable {
+			
+			long lastLiveDetected = System.currentTimeMillis();
+			
+			long interval;
+			
+			void next() {
+				interval = pipeLiveNotifyInterval;
+				SimplePipeHelper.getTimer().schedule(this, Math.max(Math.min(interval, 1000), 0));
+			}
 			
 			public void run() {
-				long lastLiveDetected = System.currentTimeMillis();
-				do {
-					long interval = pipeLiveNotifyInterval;
-					
-					while (interval > 0) {
-						try {
-							Thread.sleep(Math.min(interval, 1000));
-							interval -= 1000;
-						} catch (InterruptedException e) {
-							//e.printStackTrace();
-						}
-						if (getRequstMode() == MODE_LOCAL_JAVA_THREAD) {
-							if (!runnable.isPipeLive()) {
-								break;
-							}
+				interval -= 1000;
+				if (interval > 0 && isLive() && !runnable.deltaReset) {
+					SimplePipeHelper.getTimer().schedule(this, Math.min(interval, 1000));
+					return;
+				}
+				SimpleThreadHelper.runTask(new Runnable() {
+					public void run() {
+						if (notifyLive()) {
+							next();
 						} else {
-							SimplePipeRunnable pipeRunnable = SimplePipeHelper.getPipe(runnable.pipeKey);
-							if (pipeRunnable == null || !pipeRunnable.isPipeLive()) {
-								break;
+							synchronized (runnable) {
+								runnable.pipeLiveKept = false;
 							}
 						}
 					}
-					
-					if (getRequstMode() == MODE_LOCAL_JAVA_THREAD) {
-						boolean pipeLive = runnable.isPipeLive();
-						if (pipeLive) {
-							runnable.keepPipeLive();
-							lastLiveDetected = System.currentTimeMillis();
-						} else {
-							if (System.currentTimeMillis() - lastLiveDetected > runnable.pipeWaitClosingInterval()) {
-								runnable.pipeDestroy(); // Pipe's server side destroying
-								runnable.pipeClosed(); // Pipe's client side closing
-								break;
-							}
-						}
+				}, "Pipe Live Notifier Thread");
+			}
+			
+			boolean isLive() {
+				if (getRequstMode() == MODE_LOCAL_JAVA_THREAD) {
+					return runnable.isPipeLive();
+				}
+				SimplePipeRunnable pipeRunnable = SimplePipeHelper.getPipe(runnable.pipeKey);
+				return pipeRunnable != null && pipeRunnable.isPipeLive();
+			}
+			
+			/*
+			 * Return whether to keep on notifying.
+			 */
+			boolean notifyLive() {
+				if (getRequstMode() == MODE_LOCAL_JAVA_THREAD) {
+					boolean pipeLive = runnable.isPipeLive();
+					if (pipeLive) {
+						runnable.keepPipeLive();
+						lastLiveDetected = System.currentTimeMillis();
 					} else {
-						SimplePipeRunnable r = SimplePipeHelper.getPipe(runnable.pipeKey);
-						if (r != null) {
-							HttpRequest request = getRequest();
-							String pipeKey = runnable.pipeKey;
-							String pipeMethod = runnable.getPipeMethod();
-							String pipeURL = runnable.getPipeURL();
+						if (System.currentTimeMillis() - lastLiveDetected > runnable.pipeWaitClosingInterval()) {
+							runnable.pipeDestroy(); // Pipe's server side destroying
+							runnable.pipeClosed(); // Pipe's client side closing
+							return false;
+						}
+					}
+				} else {
+					SimplePipeRunnable r = SimplePipeHelper.getPipe(runnable.pipeKey);
+					if (r != null) {
+						long last = Math.max(runnable.lastPipeDataReceived, lastLiveDetected);
+						if (runnable.pipeStreamLive && !runnable.deltaReset // notify asks for whole objects
+								&& System.currentTimeMillis() - last <= 3 * pipeLiveNotifyInterval) {
+							runnable.updateStatus(true);
+							return true;
+						}
+						HttpRequest request = getRequest();
+						String pipeKey = runnable.pipeKey;
+						String pipeMethod = runnable.getPipeMethod();
+						String pipeURL = runnable.getPipeURL();
 
-							String pipeRequestData = constructRequest(pipeKey, PIPE_TYPE_NOTIFY);
-							sendRequest(request, pipeMethod, pipeURL, pipeRequestData, false);
-							String response = request.getResponseText();
-							if (response != null && response.indexOf("\"" + PIPE_STATUS_LOST + "\"") != -1) {
-								runnable.pipeAlive = false;
-								runnable.pipeLost();
-								SimplePipeHelper.removePipe(pipeKey);
-								// may need to inform user that connection is already lost!
-								break;
-							} else {
-								runnable.updateStatus(true);
-							}
+						String pipeRequestData = constructRequest(pipeKey, PIPE_TYPE_NOTIFY);
+						sendRequest(request, pipeMethod, pipeURL, pipeRequestData, false);
+						String response = request.getResponseText();
+						if (response != null && response.indexOf("\"" + PIPE_STATUS_LOST + "\"") != -1) {
+							runnable.pipeAlive = false;
+							runnable.pipeLost();
+							SimplePipeHelper.removePipe(pipeKey);
+							// may need to inform user that connection is already lost!
+							return false;
 						} else {
-							break;
+							runnable.updateStatus(true);
 						}
+					} else {
+						return false;
 					}
-				} while (true);
+				}
+				return true;
 			}
 		
-		}, "Pipe Live Notifier Thread");
-		thread.setDaemon(true);
-		thread.start();
+		}
+		new PipeLiveChecker().next();
 	}
 
 	/**
@@ -315,7 +497,11 @@ Clazz.addEvent (document, "keydown", function (e) {
 		}
 		String url = runnable.getHttpURL();
 		String method = runnable.getHttpMethod();
-		String serialize = runnable.serialize();
+		String serialize = null;
+		/**
+		 * @j2sNative
+		 * serialize = runnable.serialize();
+		 */ { serialize = serializeRequest(runnable); }
 		if (method == null) {
 			method = "POST";
 		}
@@ -348,8 +534,20 @@ Clazz.addEvent (document, "keydown", function (e) {
 		if (url2 != url) {
 			serialize = null;
 		}
+		/**
+		 * @j2sNative
+		 */ {
+			if (setupStreaming && pipeMode == MODE_PIPE_CONTINUUM
+					&& "POST".equals(method.toUpperCase())) {
+				pipeSetupContinuum(runnable, method, url, serialize);
+				return;
+			}
+		}
 		final HttpRequest request = getRequest();
 		request.open(method, url, true);
+		/**
+		 * @j2sNative
+		 */ { prepareSerialization(request); }
 		request.registerOnReadyStateChange(new XHRCallbackAdapter() {
 			public void onLoaded() {
 				String responseText = request.getResponseText();
@@ -798,22 +996,29 @@ var fun = (function (key, created) {
 window.setTimeout (fun, spr.pipeLiveNotifyInterval);
 	 */
 	static void pipeContinuum(final SimplePipeRunnable runnable) {
-		HttpRequest pipeRequest = getRequestWithMonitor(new HttpRequest.IXHRReceiving() {
+		final HttpRequest pipeRequest = getRequestWithMonitor(new HttpRequest.IXHRReceiving() {
+			
+			/*
+			 * Received but not yet parsed data.
+			 */
+			private StringBuffer pending = new StringBuffer();
+			
 			public boolean receiving(ByteArrayOutputStream baos, byte b[], int off, int len) {
-				baos.write(b, off, len);
 				/*
-				 * It is OK to convert to string, because SimpleSerialize's
-				 * serialized string contains only ASCII chars.
+				 * It is OK to convert bytes to chars one by one, because
+				 * SimpleSerialize's serialized string contains only ASCII
+				 * chars, or chars in range 0-255 for binary serialization.
 				 */
-				String string = baos.toString();
-				String resetString = parseReceived(string);
+				for (int i = off; i < off + len; i++) {
+					pending.append((char) (b[i] & 0xff));
+				}
+				if (!isReceivedCompleted(pending)) {
+					return true; // wait for more data
+				}
+				String resetString = parseReceived(pending.toString());
 				if (resetString != null) {
-					baos.reset();
-					try {
-						baos.write(resetString.getBytes());
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+					pending.setLength(0);
+					pending.append(resetString);
 				}
 				return true;
 			}
@@ -824,16 +1029,13 @@ window.setTimeout (fun, spr.pipeLiveNotifyInterval);
 		
 			@Override
 			public void onReceiving() {
-				keepPipeLive(runnable);
+				keepPipeLive(runnable, PIPE_LIVE_STREAM.equals(
+						pipeRequest.getResponseHeader(HEADER_PIPE_LIVE)));
 			}
 
 			@Override
 			public void onLoaded() { // on case that no destroy event is sent to client
-				String pipeKey = runnable.pipeKey;
-				if (SimplePipeHelper.getPipe(pipeKey) != null) {
-					runnable.pipeClosed(); // may set runnable.pipeKey = null;
-					SimplePipeHelper.removePipe(pipeKey);
-				}
+				continuumEnded(runnable);
 			}
 		
 		});
@@ -847,6 +1049,276 @@ window.setTimeout (fun, spr.pipeLiveNotifyInterval);
 		sendRequest(pipeRequest, pipeMethod, pipeURL, pipeRequestData, true);
 	}
 	
+	/*
+	 * Continuum connection ends without destroy event. Reconnect if server
+	 * replays pipe data, or close the pipe.
+	 * 
+	 * Reconnecting is delayed on the shared timer, not in the callback
+	 * thread of the ended connection.
+	 */
+	@J2SIgnore
+	static void continuumEnded(final SimplePipeRunnable runnable) {
+		String pipeKey = runnable.pipeKey;
+		if (SimplePipeHelper.getPipe(pipeKey) != null) {
+			if (runnable.pipeNextSequence > 0 && runnable.pipeAlive
+					&& runnable.pipeReconnects < 3) {
+				// Server replays pipe data after the acknowledged sequence
+				runnable.pipeReconnects++;
+				SimplePipeHelper.getTimer().schedule(new Runnable() {
+					public void run() {
+						pipeContinuum(runnable);
+					}
+				}, 500 * runnable.pipeReconnects);
+				return;
+			}
+			runnable.pipeClosed(); // may set runnable.pipeKey = null;
+			SimplePipeHelper.removePipe(pipeKey);
+		}
+	}
+	
+	/**
+	 * Create pipe connection over WebSocket for the SimplePipeRunnable. Pipe
+	 * is kept live by the open connection on server side, and it is closed
+	 * on client side if no data or heart beats arrive for a while.
+	 * 
+	 * @param runnable
+	 * @return false if WebSocket is not supported by client
+	 * 
+	 * @j2sNative
+if (window["WebSocket"] == null) {
+	return false;
+}
+var spr = net.sf.j2s.ajax.SimplePipeRequest;
+var pipeKey = runnable.pipeKey;
+var a = document.createElement ("A");
+a.href = runnable.getPipeURL(); // to absolute URL
+var url = a.href.replace (/^http/, "ws");
+var ws = null;
+try {
+	ws = new WebSocket (url + (url.indexOf('?') != -1 ? "&" : "?")
+			+ spr.constructRequest(pipeKey, spr.PIPE_TYPE_CONTINUUM));
+} catch (e) {
+	return false;
+}
+var pending = "";
+ws.onmessage = function (e) {
+	var rest = spr.parseReceived (pending + e.data);
+	pending = (rest == null) ? pending + e.data : rest;
+};
+ws.onclose = function () {
+	spr.webSocketEnded (runnable);
+};
+var fun = (function (key, created) {
+	return function () {
+		var sph = net.sf.j2s.ajax.SimplePipeHelper;
+		var runnable = sph.getPipe(key);
+		if (runnable == null || ws.readyState == 3) { // closed
+			return;
+		}
+		var spr = net.sf.j2s.ajax.SimplePipeRequest;
+		var last = runnable.lastPipeDataReceived;
+		if (last <= 0) {
+			last = created;
+		}
+		if (new Date ().getTime () - last > 3 * spr.pipeLiveNotifyInterval) {
+			runnable.pipeAlive = false;
+			runnable.pipeClosed();
+			sph.removePipe(key);
+			ws.close ();
+		} else {
+			window.setTimeout (arguments.callee, spr.pipeLiveNotifyInterval);
+		}
+	};
+}) (pipeKey, new Date ().getTime ());
+window.setTimeout (fun, spr.pipeLiveNotifyInterval);
+return true;
+	 */
+	static boolean pipeWebSocket(final SimplePipeRunnable runnable) {
+		SimpleThreadHelper.runTask(new Runnable() {
+			public void run() {
+				boolean connected = false;
+				try {
+					/*
+					 * Loaded by reflection, so this class does not depend
+					 * on JSR-356 API, see ajaxwebsocket source folder.
+					 */
+					Class<?> clazz = Class.forName("net.sf.j2s.ajax.SimpleWebSocketPipeClient");
+					java.lang.reflect.Method connect = clazz.getDeclaredMethod("connect", SimplePipeRunnable.class);
+					connect.setAccessible(true);
+					connected = Boolean.TRUE.equals(connect.invoke(null, runnable));
+				} catch (Exception e) {
+					// no WebSocket client in class path
+				} catch (LinkageError e) {
+					// no JSR-356 API in class path
+				}
+				if (!connected) {
+					webSocketEnded(runnable);
+				}
+			}
+		}, "Pipe WebSocket Thread");
+		return true;
+	}
+	
+	/*
+	 * WebSocket connection fails, or ends without destroy event. Fall back
+	 * to continuum or query pipe, unless pipe is already closed.
+	 */
+	static void webSocketEnded(SimplePipeRunnable runnable) {
+		if (runnable.webSocketFailed
+				|| SimplePipeHelper.getPipe(runnable.pipeKey) == null) {
+			return;
+		}
+		runnable.webSocketFailed = true;
+		/**
+		 * @j2sNative
+		 */ { runnable.pipeStreamLive = false; }
+		ajaxPipe(runnable);
+	}
+	
+	/*
+	 * Java client sends pipe setup request, whose response is kept open by
+	 * server as continuum pipe, see HEADER_PIPE_SETUP. If server responds
+	 * without the header, pipe is started by another request as usual.
+	 */
+	@J2SIgnore
+	static void pipeSetupContinuum(final SimplePipeRunnable runnable, String method,
+			String url, String serialize) {
+		class SetupReceiving implements HttpRequest.IXHRReceiving {
+			
+			HttpRequest request;
+			
+			/*
+			 * Length of setup response in bytes, -1 if response is not
+			 * received yet, or -2 if it is a normal setup response.
+			 */
+			int setupLength = -1;
+			
+			boolean setupReceived;
+			
+			private ByteArrayOutputStream setup = new ByteArrayOutputStream();
+			
+			/*
+			 * Received but not yet parsed pipe data.
+			 */
+			private StringBuffer pending = new StringBuffer();
+			
+			public boolean receiving(ByteArrayOutputStream baos, byte b[], int off, int len) {
+				if (setupLength == -1) {
+					setupLength = -2;
+					String length = request.getResponseHeader(HEADER_PIPE_SETUP);
+					if (length != null) {
+						try {
+							setupLength = Integer.parseInt(length.trim());
+						} catch (NumberFormatException e) {
+							// not a pipe setup stream
+						}
+					}
+				}
+				if (setupLength < 0) {
+					return false; // normal setup response, parsed on loaded
+				}
+				if (!setupReceived) {
+					int count = Math.min(len, setupLength - setup.size());
+					setup.write(b, off, count);
+					off += count;
+					len -= count;
+					if (setup.size() < setupLength) {
+						return true; // wait for more data
+					}
+					setupReceived = true;
+					if (!pipeSetupReceived(runnable, request, setup)) {
+						return true; // setup failed, no pipe data
+					}
+				}
+				// The same as #pipeContinuum
+				for (int i = off; i < off + len; i++) {
+					pending.append((char) (b[i] & 0xff));
+				}
+				if (!isReceivedCompleted(pending)) {
+					return true; // wait for more data
+				}
+				String resetString = parseReceived(pending.toString());
+				if (resetString != null) {
+					pending.setLength(0);
+					pending.append(resetString);
+				}
+				return true;
+			}
+			
+		}
+		final SetupReceiving receiving = new SetupReceiving();
+		final HttpRequest request = getRequestWithMonitor(receiving);
+		receiving.request = request;
+		request.registerOnReadyStateChange(new XHRCallbackAdapter() {
+			
+			@Override
+			public void onLoaded() {
+				if (receiving.setupLength < 0) {
+					// The same as #pipeRequest
+					String responseText = request.getResponseText();
+					if (responseText == null || responseText.length() == 0) {
+						runnable.ajaxFail(); // should seldom fail!
+						return;
+					}
+					runnable.deserialize(responseText);
+					runnable.ajaxOut();
+					ajaxPipe(runnable);
+					return;
+				}
+				if (!receiving.setupReceived) {
+					runnable.ajaxFail(); // connection is broken
+					return;
+				}
+				continuumEnded(runnable);
+			}
+			
+		});
+		request.setCometConnection(true);
+		// New pipe on server side, whose sequences start from 1
+		runnable.pipeSequence = 0;
+		runnable.pipeNextSequence = 0;
+		runnable.pipeReconnects = 0;
+		request.open(method, url, true);
+		prepareSerialization(request);
+		request.setRequestHeader(HEADER_PIPE_SETUP, PIPE_TYPE_CONTINUUM);
+		request.setRequestHeader(HEADER_PIPE_DELTA, "true");
+		request.setRequestHeader(HEADER_PIPE_SEQUENCE, "0");
+		request.send(serialize);
+	}
+	
+	/*
+	 * Deserialize setup response, and start receiving pipe data from the
+	 * same connection if pipe is set up.
+	 * 
+	 * Return whether pipe is set up or not.
+	 */
+	@J2SIgnore
+	static boolean pipeSetupReceived(SimplePipeRunnable runnable, HttpRequest request,
+			ByteArrayOutputStream setup) {
+		String charset = "utf-8";
+		String type = request.getResponseHeader("Content-Type");
+		if (type != null) {
+			int idx = type.toLowerCase().indexOf("charset=");
+			if (idx != -1) {
+				charset = type.substring(idx + 8).trim();
+			}
+		}
+		String responseText = null;
+		try {
+			responseText = setup.toString(charset);
+		} catch (UnsupportedEncodingException e) {
+			responseText = setup.toString();
+		}
+		runnable.deserialize(responseText);
+		runnable.ajaxOut();
+		if (!runnable.pipeAlive || runnable.pipeKey == null) {
+			return false;
+		}
+		SimplePipeHelper.registerPipe(runnable.pipeKey, runnable);
+		keepPipeLive(runnable, PIPE_LIVE_STREAM.equals(request.getResponseHeader(HEADER_PIPE_LIVE)));
+		return true;
+	}
+	
 	/**
 	 * Clean pipe's IFRAME elements
 	 * @param pipeKey
@@ -907,6 +1379,7 @@ for (var i = 0; i < iframes.length; i++) {
 		}
 		SimpleSerializable ss = null;
 		int start = 0;
+		boolean delta = false;
 		while (string.length() > start + PIPE_KEY_LENGTH) { // should be bigger than 48 ( 32 + 6 + 1 + 8 + 1)
 			String destroyedKey = PIPE_STATUS_DESTROYED;
 			int end = start + PIPE_KEY_LENGTH;
@@ -934,6 +1407,25 @@ for (var i = 0; i < iframes.length; i++) {
 					return string.substring(start);
 				}
 			}
+			/**
+			 * @j2sNative
+			 */ {
+				int seqEnd = start + PIPE_KEY_LENGTH;
+				if (string.length() > seqEnd && string.startsWith(PIPE_STATUS_SEQUENCE, seqEnd)) {
+					int idx = string.indexOf(';', seqEnd);
+					if (idx == -1) {
+						break; // not completed
+					}
+					SimplePipeRunnable runnable = SimplePipeHelper.getPipe(string.substring(start, seqEnd));
+					if (runnable != null) {
+						receivedSequence(runnable, Long.parseLong(string.substring(
+								seqEnd + PIPE_STATUS_SEQUENCE.length(), idx)));
+					}
+					start = idx + 1;
+					continue;
+				}
+				delta = string.startsWith(PIPE_STATUS_DELTA, seqEnd);
+			}
 			boolean isJavaScript = false;
 			/**
 			 * @j2sNative
@@ -964,16 +1456,36 @@ for (var i = 0; i < iframes.length; i++) {
 					return string.substring(end + continueKey.length());
 				}
 			}
-			ss = SimpleSerializable.parseInstance(string, end);
-			if (ss == null || !ss.deserialize(string, end)) {
+			int dataStart = end;
+			/**
+			 * @j2sNative
+			 */ {
+				if (delta) {
+					dataStart += PIPE_STATUS_DELTA.length();
+				}
+			}
+			ss = SimpleSerializable.parseInstance(string, dataStart);
+			if (ss == null || !ss.deserialize(string, dataStart)) {
 				break;
 			}
-			if (ss != SimpleSerializable.UNKNOWN) {
+			boolean replayed = false;
+			/**
+			 * @j2sNative
+			 */ {
+				SimplePipeRunnable runnable = SimplePipeHelper.getPipe(string.substring(start, end));
+				replayed = runnable != null && isReplayed(runnable);
+			}
+			if (ss != SimpleSerializable.UNKNOWN && !replayed) {
 				String key = string.substring(start, end);
 				SimplePipeRunnable runnable = SimplePipeHelper.getPipe(key);
 				if (runnable != null) { // should always satisfy this condition
 					runnable.lastPipeDataReceived = System.currentTimeMillis();
-					runnable.deal(ss);
+					/**
+					 * @j2sNative
+					 */ { ss = SimplePipeHelper.patchPipeData(runnable, ss, string, dataStart, delta); }
+					if (ss != null) { // incomplete delta is dropped
+						runnable.deal(ss);
+					}
 				}
 			}
 			
@@ -985,6 +1497,84 @@ for (var i = 0; i < iframes.length; i++) {
 		return string;
 	}
 
+	/*
+	 * Server tells sequence of the next pipe data. Pipe data missed by a
+	 * broken connection are replayed after reconnecting, and those which
+	 * are discarded by server are reported to the pipe.
+	 */
+	@J2SIgnore
+	static void receivedSequence(SimplePipeRunnable runnable, long sequence) {
+		runnable.pipeNextSequence = sequence;
+		if (sequence > runnable.pipeSequence + 1) {
+			runnable.pipeDataMissed(sequence - runnable.pipeSequence - 1);
+			runnable.pipeSequence = sequence - 1;
+		}
+	}
+	
+	/*
+	 * Return whether pipe data of the next sequence is already received.
+	 */
+	@J2SIgnore
+	static boolean isReplayed(SimplePipeRunnable runnable) {
+		long sequence = runnable.pipeNextSequence;
+		if (sequence <= 0) {
+			return false; // no sequences
+		}
+		runnable.pipeNextSequence = sequence + 1;
+		if (sequence <= runnable.pipeSequence) {
+			return true;
+		}
+		runnable.pipeSequence = sequence;
+		runnable.pipeReconnects = 0;
+		return false;
+	}
+	
+	/*
+	 * Return whether the first pipe data in the given received chars is
+	 * completed, so {@link #parseReceived(String)} is not called again and
+	 * again on a large object which is still being received.
+	 */
+	@J2SIgnore
+	static boolean isReceivedCompleted(CharSequence received) {
+		int length = received.length();
+		if (length <= PIPE_KEY_LENGTH) {
+			return false;
+		}
+		int offset = PIPE_KEY_LENGTH;
+		if (received.charAt(offset) == PIPE_STATUS_DELTA.charAt(0)) {
+			offset++; // delta of pipe data
+			if (length <= offset) {
+				return false;
+			}
+		}
+		if (received.charAt(offset) != 'W') {
+			return true; // pipe status or unknown data
+		}
+		// Format: WLL201ClassName#NNNNNN$SerializedData...
+		int idx1 = -1;
+		for (int i = PIPE_KEY_LENGTH; i < length; i++) {
+			if (received.charAt(i) == '#') {
+				idx1 = i + 1;
+				break;
+			}
+		}
+		if (idx1 == -1) {
+			return false;
+		}
+		int size = 0;
+		for (int i = idx1; i < length; i++) {
+			char c = received.charAt(i);
+			if (c == '$') {
+				return length - i - 1 >= size;
+			}
+			if (c < '0' || c > '9' || size > 0x1000000) {
+				return true; // malformed, let it be parsed
+			}
+			size = size * 10 + (c - '0');
+		}
+		return false;
+	}
+
 	/*
 	 * Return the string index from beginning of next SimpleSerializable
 	 * instance.
@@ -993,15 +1583,14 @@ for (var i = 0; i < iframes.length; i++) {
 		// Format: WLL101ClassName#NNNNNN$SerializedData...
 		int idx1 = string.indexOf('#', start) + 1;
 		int idx2 = string.indexOf('$', idx1);
-		String sizeStr = string.substring(idx1, idx2);
-		sizeStr = sizeStr.replaceFirst("^0+", "");
 		int size = 0;
-		if (sizeStr.length() != 0) {
-			try {
-				size = Integer.parseInt(sizeStr);
-			} catch (NumberFormatException e) {
-				//
+		for (int i = idx1; i < idx2; i++) {
+			char c = string.charAt(i);
+			if (c < '0' || c > '9' || size > 0x1000000) {
+				size = 0; // malformed
+				break;
 			}
+			size = size * 10 + (c - '0');
 		}
 		int end = idx2 + size + 1;
 		if (end <= string.length()) {
@@ -1058,7 +1647,13 @@ for (var i = 0; i < iframes.length; i++) {
 			isSubdomain = isSubdomain(pipeURL);
 		}
 
-		if ((!isXSS || isSubdomain) && pipeMode == MODE_PIPE_CONTINUUM)
+		if (pipeMode == MODE_PIPE_WEBSOCKET && !runnable.webSocketFailed
+				&& pipeWebSocket(runnable)) {
+			return;
+		}
+
+		if ((!isXSS || isSubdomain)
+				&& (pipeMode == MODE_PIPE_CONTINUUM || pipeMode == MODE_PIPE_WEBSOCKET))
 			/**
 			 * @j2sNative
 			 * var spr = net.sf.j2s.ajax.SimplePipeRequest;
@@ -1067,11 +1662,11 @@ for (var i = 0; i < iframes.length; i++) {
 			 */
 		{
 			//pipeQuery(runnable, "continuum");
-			(new Thread(){
+			SimpleThreadHelper.runTask(new Runnable() {
 				public void run() {
 					pipeContinuum(runnable);
 				}
-			}).start();
+			}, "Pipe Continuum Thread");
 		} else
 			/**
 			 * @j2sNative
@@ -1122,35 +1717,36 @@ runnable.queryEnded = true;
 		{
 			final String key = runnable.pipeKey;
 			final long created = System.currentTimeMillis();
-			Thread thread = new Thread("Pipe Monitor Thread") {
+			// Query in pooled thread, and wait for next query on the shared timer
+			SimpleThreadHelper.runTask(new Runnable() {
 				public void run() {
-					SimplePipeRunnable runnable = null;
-					while ((runnable = SimplePipeHelper.getPipe(key)) != null) {
-						pipeQuery(runnable);
-						
-						long now = System.currentTimeMillis();
-						long last = runnable.lastPipeDataReceived;
-						if (last <= 0) {
-							last = created;
-						}
-						if (runnable.queryFailedRetries >= 3
-								|| now - last > 3 * pipeLiveNotifyInterval) {
-							runnable.pipeAlive = false;
-							runnable.pipeClosed();
-							SimplePipeHelper.removePipe(key);
-							return;
-						}
+					SimplePipeRunnable runnable = SimplePipeHelper.getPipe(key);
+					if (runnable == null) {
+						return;
+					}
+					pipeQuery(runnable);
+					
+					long now = System.currentTimeMillis();
+					long last = runnable.lastPipeDataReceived;
+					if (last <= 0) {
+						last = created;
+					}
+					if (runnable.queryFailedRetries >= 3
+							|| now - last > 3 * pipeLiveNotifyInterval) {
+						runnable.pipeAlive = false;
+						runnable.pipeClosed();
+						SimplePipeHelper.removePipe(key);
+						return;
+					}
 
-						try {
-							Thread.sleep(pipeQueryInterval);
-						} catch (InterruptedException e) {
-							//e.printStackTrace();
+					final Runnable query = this;
+					SimplePipeHelper.getTimer().schedule(new Runnable() {
+						public void run() {
+							SimpleThreadHelper.runTask(query, "Pipe Monitor Thread");
 						}
-					}
+					}, pipeQueryInterval);
 				}
-			};
-			thread.setDaemon(true);
-			thread.start();
+			}, "Pipe Monitor Thread");
 		}
 	}
 
@@ -35,12 +35,17 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 	@J2SIgnore
 	SimplePipeHelper.IPipeClosing closer; // For Java server side
 	
+	@J2SIgnore
+	volatile SimplePipeHelper.IPipeWaking waker; // For Java server side's asynchronous response
+	
 	boolean destroyed;
 	
 	int queryFailedRetries; // >=3 will mark pipe broken
 	
 	boolean queryEnded;
 	
+	boolean webSocketFailed; // WebSocket is not supported or is broken, fall back to continuum or query
+	
 	long lastPipeDataReceived;
 	
 	@J2SIgnore
@@ -52,6 +57,40 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 	@J2SIgnore
 	long lastHash;
 	
+	@J2SIgnore
+	boolean deltaSupported; // For Java server side, client accepts deltas
+	
+	/*
+	 * Server side: last delivered versions of ISimpleDeltaCacheable objects.
+	 * Java client side: received instances, which are patched by deltas.
+	 */
+	@J2SIgnore
+	SimplePipeHelper.DeltaItems deltaItems;
+	
+	@J2SIgnore
+	boolean deltaReset; // For Java client side, server should send whole objects again
+	
+	@J2SIgnore
+	SimplePipeQueue queue; // For Java server side, pipe data queue
+	
+	@J2SIgnore
+	SimplePipeReplayLog replayLog; // For Java server side, delivered pipe data
+	
+	@J2SIgnore
+	long pipeSequence; // For Java client side, sequence of the last received pipe data
+	
+	@J2SIgnore
+	long pipeNextSequence; // For Java client side, sequence of the next pipe data, or 0
+	
+	@J2SIgnore
+	int pipeReconnects; // For Java client side, continuum reconnections without pipe data
+	
+	@J2SIgnore
+	boolean pipeLiveKept; // For Java client side, pipe live checker is running
+	
+	@J2SIgnore
+	boolean pipeStreamLive; // For Java client side, server keeps pipe live while continuum is open
+	
 	@J2SIgnore
 	public void setPipeHelper(SimplePipeHelper.IPipeThrough helper) {
 		pipeManaged = true;
@@ -205,42 +244,7 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 	 */
 	protected void pipeMonitoring() {
 		lastLiveDetected = System.currentTimeMillis();
-		if (pipeManaged) {
-			SimplePipeHelper.monitoringPipe(this);
-			return;
-		}
-		Thread thread = new Thread("Pipe Monitor") {
-			
-			public void run() {
-				long interval = pipeMonitoringInterval();
-				if (interval <= 0) {
-					interval = 1000;
-				}
-				while (true) {
-					try {
-						Thread.sleep(interval);
-					} catch (InterruptedException e) {
-						//e.printStackTrace();
-					}
-					if (!isPipeLive()) {
-						if (System.currentTimeMillis() - lastLiveDetected > pipeWaitClosingInterval()) {
-							pipeDestroy();
-							if (closer != null) {
-								closer.helpClosing(SimplePipeRunnable.this);
-							} else {
-								pipeClosed();
-							}
-							break;
-						}
-					} else {
-						lastLiveDetected = System.currentTimeMillis();
-					}
-				}
-			}
-		
-		};
-		thread.setDaemon(true);
-		thread.start();
+		SimplePipeHelper.monitoringPipe(this);
 	}
 
 	/**
@@ -262,6 +266,64 @@ public abstract class SimplePipeRunnable extends SimpleRPCRunnable {
 		return 5000;
 	}
 	
+	/**
+	 * Return capacity of pipe data queue on server side. Queue with default
+	 * policy keeps more data than capacity, see {@link #pipeQueuePolicy()}.
+	 * @return capacity, rounded up to power of 2
+	 */
+	@J2SIgnore
+	public int pipeQueueCapacity() {
+		return 1024;
+	}
+	
+	/**
+	 * Return what to do if pipe data queue is full on server side.
+	 * 
+	 * By default, queue is unbounded, so no pipe data are lost, and
+	 * producers, such as RPC threads, topic publishers or cluster receivers,
+	 * are never blocked by a slow client. Return SimplePipeQueue.POLICY_BLOCK
+	 * to bound memory by blocking producers, or SimplePipeQueue.POLICY_DROP_OLDEST
+	 * or POLICY_COALESCE if pipe data may be lost.
+	 * @return one of SimplePipeQueue.POLICY_* constants
+	 */
+	@J2SIgnore
+	public int pipeQueuePolicy() {
+		return SimplePipeQueue.POLICY_UNBOUNDED;
+	}
+	
+	/**
+	 * Return number of delivered pipe data kept on server side, which are
+	 * delivered again if Java client does not acknowledge them, e.g. after
+	 * continuum connection is broken and reconnected.
+	 * @return capacity, 0 for no replaying
+	 */
+	@J2SIgnore
+	public int pipeReplayCapacity() {
+		return 0;
+	}
+	
+	/**
+	 * Return number of delivered ISimpleDeltaCacheable objects kept for
+	 * deltas, on both server side and Java client side. Objects delivered
+	 * before them are sent as whole objects again.
+	 * @return capacity
+	 */
+	@J2SIgnore
+	public int pipeDeltaCapacity() {
+		return 1024;
+	}
+	
+	/**
+	 * Some pipe data are lost on Java client side, as they are no longer
+	 * kept on server side for replaying. Client may synchronize its states
+	 * again.
+	 * @param count number of lost pipe data
+	 */
+	@J2SIgnore
+	protected void pipeDataMissed(long count) {
+		// to be override
+	}
+	
 	/**
 	 * Update pipe's live status.
 	 * 
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * State of a pipe response, which is written step by step, either by the
+ * blocking loop of {@link SimplePipeHttpServlet} or asynchronously by
+ * {@link SimpleAsyncPipeHttpServlet}. Continuum pipe may also be written
+ * after its setup response by {@link SimplePipeRPCHttpServlet}, or over
+ * WebSocket by SimpleWebSocketPipeHttpServlet in ajaxwebsocket.jar.
+ *
+ * @author zhou renjian
+ */
+class SimplePipeSession {
+
+	private static final SimpleMetrics.Histogram serializeTime = SimpleMetrics.histogram(SimpleMetrics.PIPE_SERIALIZE);
+
+	private static final SimpleMetrics.Histogram flushItems = SimpleMetrics.histogram(SimpleMetrics.PIPE_FLUSH_ITEMS);
+
+	private static final SimpleMetrics.Counter heartbeats = SimpleMetrics.counter(SimpleMetrics.PIPE_HEARTBEATS);
+
+	final long pipeQueryTimeout;
+
+	final long pipeScriptBreakout;
+
+	final int pipeMaxItemsPerQuery;
+
+	final PrintWriter writer;
+
+	final String key;
+
+	final String type;
+
+	final boolean binary;
+
+	final boolean isContinuum;
+
+	final boolean isScripting;
+
+	final SimplePipeRunnable pipe;
+
+	/**
+	 * Log of delivered pipe data, if client acknowledges sequences.
+	 */
+	final SimplePipeReplayLog replayLog;
+
+	final long waitClosingInterval;
+
+	final long beforeLoop;
+
+	long lastPipeDataWritten = -1;
+
+	long lastLiveDetected;
+
+	/**
+	 * Last time that open continuum connection notified pipe is live.
+	 */
+	long lastStreamNotified;
+
+	/**
+	 * Sequence of the last pipe data written, or logged by other sessions.
+	 */
+	long lastSequence;
+
+	int items;
+
+	int priority;
+
+	/**
+	 * Whether pipe was live on last step.
+	 */
+	boolean live = true;
+
+	/**
+	 * Versions of ISimpleDeltaCacheable objects written but not flushed.
+	 */
+	private Map<SimpleSerializable, SimpleSerializable> deltaPendings = new HashMap<SimpleSerializable, SimpleSerializable>();
+
+	/**
+	 * Number of open connections of this pipe type, until session ends.
+	 */
+	private SimpleMetrics.Counter connections;
+
+	SimplePipeSession(SimplePipeHttpServlet servlet, PrintWriter writer, String key,
+			String type, boolean binary) {
+		this(writer, key, type, binary, servlet.pipeQueryTimeout, servlet.pipeScriptBreakout,
+				servlet.pipeMaxItemsPerQuery);
+	}
+
+	/**
+	 * Create session with given settings, e.g. for pipe response which is
+	 * not written by {@link SimplePipeHttpServlet}.
+	 */
+	SimplePipeSession(PrintWriter writer, String key, String type, boolean binary,
+			long pipeQueryTimeout, long pipeScriptBreakout, int pipeMaxItemsPerQuery) {
+		this.pipeQueryTimeout = pipeQueryTimeout;
+		this.pipeScriptBreakout = pipeScriptBreakout;
+		this.pipeMaxItemsPerQuery = pipeMaxItemsPerQuery;
+		this.writer = writer;
+		this.key = key;
+		this.type = type;
+		this.binary = binary;
+		isContinuum = SimplePipeRequest.PIPE_TYPE_CONTINUUM.equals(type);
+		isScripting = SimplePipeRequest.PIPE_TYPE_SCRIPT.equals(type);
+		pipe = SimplePipeHelper.getPipe(key);
+		SimplePipeReplayLog log = pipe == null ? null : pipe.replayLog;
+		replayLog = log != null && log.isSequenced() && SimplePipeHttpServlet.acceptsBinary(type) ? log : null;
+		waitClosingInterval = pipe == null ? 5000 : pipe.pipeWaitClosingInterval();
+		beforeLoop = System.currentTimeMillis();
+		lastLiveDetected = beforeLoop;
+		lastStreamNotified = beforeLoop;
+		connections = SimpleMetrics.counter(SimpleMetrics.PIPE_CONNECTIONS + "." + type);
+		connections.increase();
+	}
+
+	/**
+	 * Write those pipe data in queue, and heart beat if no data is written
+	 * for a while.
+	 *
+	 * @return whether to wait for more pipe data and step again
+	 */
+	boolean step() {
+		SimplePipeQueue queue = SimplePipeHelper.getPipeQueue(key);
+		if (queue == null /* || !SimplePipeHelper.isPipeLive(key) */ // check it!
+				|| writer.checkError()) {
+			return false;
+		}
+		StringBuffer buffer = new StringBuffer();
+		int itemsBefore = items;
+		if (replayLog != null) {
+			replay(buffer);
+		}
+		int size = queue.size();
+		if (size > 0) {
+			boolean pipeLive = SimplePipeHelper.isPipeLive(key);
+			for (int i = 0; i < size; i++) {
+				SimpleSerializable ss = queue.poll(); // higher priority first, no longer cached
+				if (ss == null) break; // terminating signal
+				long start = System.nanoTime();
+				String str = SimplePipeHelper.serializePipeData(pipe, ss, binary, deltaPendings);
+				serializeTime.recordSince(start);
+				if (replayLog != null) {
+					lastSequence = replayLog.append(ss, str, binary);
+					appendSequence(buffer, lastSequence);
+				}
+				buffer.append(SimplePipeHttpServlet.output(type, key, str));
+				items++;
+				if (pipeLive && pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery
+						&& !isContinuum) {
+					break;
+				}
+				lastPipeDataWritten = System.currentTimeMillis();
+				priority += SimplePipeQueue.priorityOf(ss);
+			}
+		}
+		if (buffer.length() > 0) {
+			writer.write(buffer.toString());
+			flushItems.record(items - itemsBefore);
+		}
+		writer.flush();
+		if (pipe != null) {
+			SimplePipeHelper.deltaFlushed(pipe, deltaPendings, !writer.checkError());
+		}
+		if (!SimplePipeHelper.isPipeLive(key)) {
+			live = false;
+			// break out so pipe connection will be closed, or check pipe status again later
+			return System.currentTimeMillis() - lastLiveDetected <= waitClosingInterval;
+		}
+		live = true;
+		lastLiveDetected = System.currentTimeMillis();
+		// Scripting or query clients send in "notify" requests to simulate the following
+		// #notifyPipeStatus. Continuum connection is open, which stands for those requests.
+		if (isContinuum && lastLiveDetected - lastStreamNotified >= SimplePipeRequest.pipeLiveNotifyInterval / 2) {
+			SimplePipeHelper.notifyPipeStatus(key, true);
+			lastStreamNotified = lastLiveDetected;
+		}
+
+		long now = System.currentTimeMillis();
+		if ((lastPipeDataWritten == -1 && now - beforeLoop >= pipeQueryTimeout)
+				|| (lastPipeDataWritten > 0
+						&& now - lastPipeDataWritten >= pipeQueryTimeout
+						&& (isContinuum || isScripting))) {
+			writer.write(SimplePipeHttpServlet.output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
+			lastPipeDataWritten = System.currentTimeMillis();
+			heartbeats.increase();
+		}
+
+		now = System.currentTimeMillis();
+		return SimplePipeHelper.getPipeQueue(key) != null // may be broken down already!!
+				&& (pipeMaxItemsPerQuery <= 0 || items < pipeMaxItemsPerQuery || isContinuum)
+				&& (isContinuum || (isScripting && now - beforeLoop < pipeScriptBreakout)
+				|| (priority < ISimplePipePriority.IMPORTANT && now - beforeLoop < pipeQueryTimeout));
+	}
+
+	/*
+	 * Write those logged pipe data which are not acknowledged by client,
+	 * or are delivered by other sessions of the same pipe, e.g. a broken
+	 * connection which is not yet closed.
+	 */
+	private void replay(StringBuffer buffer) {
+		long sequence = replayLog.nextSequence(lastSequence);
+		while (sequence != -1) {
+			String str = replayLog.get(sequence, binary);
+			if (str != null) {
+				appendSequence(buffer, sequence);
+				buffer.append(SimplePipeHttpServlet.output(type, key, str));
+				items++;
+				lastPipeDataWritten = System.currentTimeMillis();
+			}
+			lastSequence = sequence;
+			sequence = replayLog.nextSequence(lastSequence);
+		}
+	}
+
+	private void appendSequence(StringBuffer buffer, long sequence) {
+		buffer.append(SimplePipeHttpServlet.output(type, key,
+				SimplePipeRequest.PIPE_STATUS_SEQUENCE + sequence + ";"));
+	}
+
+	/**
+	 * Return milliseconds before next step should be taken if there are no
+	 * new pipe data, which is the time of next heart beat, query timeout
+	 * or script breakout.
+	 */
+	long nextStepDelay() {
+		if (!live) {
+			return 1000; // check pipe status again
+		}
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		if (lastPipeDataWritten == -1) {
+			next = beforeLoop + Math.max(pipeQueryTimeout, 1000);
+		} else if (isContinuum || isScripting) {
+			next = lastPipeDataWritten + Math.max(pipeQueryTimeout, 1000);
+		}
+		if (isScripting) {
+			next = Math.min(next, beforeLoop + pipeScriptBreakout);
+		} else if (!isContinuum) {
+			next = Math.min(next, beforeLoop + pipeQueryTimeout);
+		}
+		return Math.max(next - now, 0);
+	}
+
+	/**
+	 * Write the ending status of pipe response.
+	 */
+	void end() {
+		if (connections != null) {
+			connections.decrease();
+			connections = null;
+		}
+		if (SimplePipeHelper.getPipeQueue(key) == null
+				|| !SimplePipeHelper.isPipeLive(key)) { // pipe is tore down!
+			//SimplePipeHelper.notifyPipeStatus(key, false); // Leave for pipe monitor to destroy it
+			SimplePipeHelper.removePipe(key);
+			try {
+				writer.write(SimplePipeHttpServlet.output(type, key, SimplePipeRequest.PIPE_STATUS_DESTROYED));
+				lastPipeDataWritten = System.currentTimeMillis();
+			} catch (Exception e) {
+				// HTTP connection may be closed already!
+			}
+		} else if (isScripting
+				&& (System.currentTimeMillis() - beforeLoop >= pipeScriptBreakout
+						|| (pipeMaxItemsPerQuery > 0 && items >= pipeMaxItemsPerQuery))) {
+			try {
+				writer.write(SimplePipeHttpServlet.output(type, key, SimplePipeRequest.PIPE_STATUS_CONTINUE));
+				lastPipeDataWritten = System.currentTimeMillis();
+			} catch (Exception e) {
+				// HTTP connection may be closed already!
+			}
+		}
+		if (lastPipeDataWritten == -1) {
+			writer.write(SimplePipeHttpServlet.output(type, key, SimplePipeRequest.PIPE_STATUS_OK));
+		}
+		if (isScripting) { // iframe
+			try {
+				writer.write("</body></html>\r\n");
+			} catch (Exception e) {
+				// HTTP connection may be closed already!
+			}
+		}
+	}
+
+}
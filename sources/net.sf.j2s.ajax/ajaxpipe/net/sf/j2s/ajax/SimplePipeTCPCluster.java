@@ -0,0 +1,511 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Pipe directory and channel of a fixed cluster of servers, which talk
+ * to each other over plain TCP connections.
+ *
+ * Nodes are given as "host:port" in the same order on all servers. Keys
+ * of pipes registered on the i-th node start with the i-th key char, so
+ * any server knows which node holds a pipe without lookup, and at most
+ * 62 nodes are supported. Pipe data for other nodes are queued, and sent
+ * in batches, one connection for each node.
+ *
+ * Cluster port only accepts connections from those configured hosts, and
+ * it should not be exposed to public network.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+public class SimplePipeTCPCluster implements ISimplePipeDirectory, ISimplePipeChannel {
+
+	/*
+	 * Same chars as those of SimplePipeHelper#nextPipeKey
+	 */
+	private static final String KEY_CHARS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	private static final int CONNECT_TIMEOUT = 5000; // 5s
+
+	private static final long RECONNECT_INTERVAL = 1000; // 1s
+
+	/*
+	 * Same as the default post limit of SimpleRPCHttpServlet
+	 */
+	private static final int MAX_DATA_LENGTH = 0x1000000; // 16 * 1024 * 1024 // 16M!
+
+	/**
+	 * Pipe data to be forwarded, already serialized.
+	 */
+	static class Item {
+
+		final String key;
+
+		final String data; // null for terminating signal
+
+		Item(String key, String data) {
+			this.key = key;
+			this.data = data;
+		}
+
+	}
+
+	/**
+	 * Connection to other node, with its queue of pipe data.
+	 */
+	class Peer implements Runnable {
+
+		final String node;
+
+		final InetSocketAddress address;
+
+		final BlockingQueue<Item> queue;
+
+		private Socket socket;
+
+		private DataOutputStream out;
+
+		private long lastFailed;
+
+		Peer(String node, InetSocketAddress address) {
+			this.node = node;
+			this.address = address;
+			this.queue = new ArrayBlockingQueue<Item>(maxQueuedItems);
+		}
+
+		public void run() {
+			List<Item> batch = new ArrayList<Item>();
+			while (running) {
+				try {
+					Item item = queue.poll(1000, TimeUnit.MILLISECONDS);
+					if (item == null) {
+						continue;
+					}
+					batch.add(item);
+					queue.drainTo(batch, maxBatchItems - 1);
+					send(batch);
+				} catch (InterruptedException e) {
+					break;
+				}
+				batch.clear();
+			}
+			close();
+		}
+
+		private void send(List<Item> batch) throws InterruptedException {
+			try {
+				if (out == null) {
+					long wait = lastFailed + RECONNECT_INTERVAL - System.currentTimeMillis();
+					if (wait > 0) {
+						Thread.sleep(wait);
+					}
+					socket = new Socket();
+					socket.setTcpNoDelay(true);
+					socket.connect(address, CONNECT_TIMEOUT);
+					out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+				}
+				out.writeInt(batch.size());
+				for (int i = 0; i < batch.size(); i++) {
+					Item item = batch.get(i);
+					out.writeUTF(item.key);
+					if (item.data == null) {
+						out.writeInt(-1);
+					} else {
+						String data = item.data;
+						int length = data.length();
+						out.writeInt(length);
+						for (int j = 0; j < length; j++) {
+							// chars of serialized string are in range 0-255
+							out.write(data.charAt(j));
+						}
+					}
+				}
+				out.flush();
+				forwarded.addAndGet(batch.size());
+			} catch (IOException e) {
+				System.out.println("Failed to forward " + batch.size() + " pipe data to "
+						+ node + ": " + e.getMessage());
+				dropped.addAndGet(batch.size());
+				lastFailed = System.currentTimeMillis();
+				close();
+			}
+		}
+
+		void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+			}
+			socket = null;
+			out = null;
+		}
+
+	}
+
+	private final String[] nodes;
+
+	private final int localIndex;
+
+	private final Peer[] peers;
+
+	private int maxBatchItems = 256;
+
+	private int maxQueuedItems = 65536;
+
+	private volatile boolean running;
+
+	private ServerSocket serverSocket;
+
+	private final Set<Socket> receivers = new HashSet<Socket>();
+
+	private final AtomicLong forwarded = new AtomicLong();
+
+	private final AtomicLong received = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param nodes "host:port" of all nodes
+	 * @param localIndex index of this server in nodes
+	 */
+	public SimplePipeTCPCluster(String[] nodes, int localIndex) {
+		if (nodes.length > KEY_CHARS.length()) {
+			throw new IllegalArgumentException("At most " + KEY_CHARS.length() + " nodes are supported");
+		}
+		if (localIndex < 0 || localIndex >= nodes.length) {
+			throw new IllegalArgumentException("Invalid node index " + localIndex);
+		}
+		this.nodes = nodes;
+		this.localIndex = localIndex;
+		this.peers = new Peer[nodes.length];
+	}
+
+	/**
+	 * Set maximum number of pipe data sent to another node in one batch.
+	 * Should be called before {@link #start()}.
+	 *
+	 * @param maxBatchItems
+	 */
+	public void setMaxBatchItems(int maxBatchItems) {
+		this.maxBatchItems = Math.max(maxBatchItems, 1);
+	}
+
+	/**
+	 * Set maximum number of pipe data waiting to be sent to another node.
+	 * More pipe data are dropped. Should be called before {@link #start()}.
+	 *
+	 * @param maxQueuedItems
+	 */
+	public void setMaxQueuedItems(int maxQueuedItems) {
+		this.maxQueuedItems = Math.max(maxQueuedItems, 1);
+	}
+
+	static InetSocketAddress parseAddress(String node) {
+		int idx = node.lastIndexOf(':');
+		if (idx == -1) {
+			throw new IllegalArgumentException("Invalid node " + node + ", host:port is expected");
+		}
+		return new InetSocketAddress(node.substring(0, idx).trim(),
+				Integer.parseInt(node.substring(idx + 1).trim()));
+	}
+
+	/**
+	 * Start listening on port of this node, and start connections to other
+	 * nodes.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		final Set<InetAddress> hosts = new HashSet<InetAddress>();
+		for (int i = 0; i < nodes.length; i++) {
+			InetSocketAddress address = parseAddress(nodes[i]);
+			if (address.getAddress() != null) {
+				hosts.add(address.getAddress());
+			}
+			if (i != localIndex) {
+				peers[i] = new Peer(nodes[i], address);
+			}
+		}
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(parseAddress(nodes[localIndex]).getPort()));
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept(hosts);
+			}
+		}, "Simple Pipe Cluster Acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		for (int i = 0; i < peers.length; i++) {
+			if (peers[i] != null) {
+				Thread thread = new Thread(peers[i], "Simple Pipe Cluster Forwarder-" + peers[i].node);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Stop listening and close all connections. Queued pipe data are
+	 * discarded.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+			serverSocket = null;
+		}
+		synchronized (receivers) {
+			for (Socket s : receivers) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+			}
+			receivers.clear();
+		}
+	}
+
+	private void accept(Set<InetAddress> hosts) {
+		ServerSocket ss = serverSocket;
+		while (running && ss != null) {
+			final Socket socket;
+			try {
+				socket = ss.accept();
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+				break;
+			}
+			InetAddress remote = socket.getInetAddress();
+			if (!hosts.contains(remote) && !(remote.isLoopbackAddress() && isLocalCluster(hosts))) {
+				System.out.println("Pipe cluster connection from " + remote + " is refused");
+				try {
+					socket.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+				continue;
+			}
+			synchronized (receivers) {
+				receivers.add(socket);
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						receive(socket);
+					} finally {
+						synchronized (receivers) {
+							receivers.remove(socket);
+						}
+						try {
+							socket.close();
+						} catch (IOException e) {
+							//e.printStackTrace();
+						}
+					}
+				}
+			}, "Simple Pipe Cluster Receiver-" + remote.getHostAddress());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/*
+	 * Whether all nodes are on this machine, e.g. in testing.
+	 */
+	private static boolean isLocalCluster(Set<InetAddress> hosts) {
+		for (InetAddress host : hosts) {
+			if (!host.isLoopbackAddress()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Read batches of pipe data, and pipe them in. Successive pipe data of
+	 * the same pipe are piped in together.
+	 */
+	private void receive(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+			List<SimpleSerializable> objs = new ArrayList<SimpleSerializable>();
+			byte[] buffer = new byte[1024];
+			while (running) {
+				int count = in.readInt();
+				String lastKey = null;
+				for (int i = 0; i < count; i++) {
+					String key = in.readUTF();
+					int length = in.readInt();
+					SimpleSerializable ss = null;
+					if (length > MAX_DATA_LENGTH) {
+						/*
+						 * Some malicious node may try to allocate huge buffer!
+						 * Skip the data and keep the connection.
+						 */
+						System.out.println("Pipe data of " + length + " bytes from "
+								+ socket.getInetAddress().getHostAddress() + " reaches the limit!");
+						while (length > 0) {
+							int n = Math.min(length, buffer.length);
+							in.readFully(buffer, 0, n);
+							length -= n;
+						}
+						continue;
+					}
+					if (length >= 0) {
+						if (buffer.length < length) {
+							buffer = new byte[length];
+						}
+						in.readFully(buffer, 0, length);
+						String data = new String(buffer, 0, length, "iso-8859-1");
+						try {
+							ss = SimpleSerializable.parseInstance(data);
+							if (ss == null || ss == SimpleSerializable.UNKNOWN || !ss.deserialize(data)) {
+								continue; // unknown class or malformed data
+							}
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+							continue;
+						}
+					}
+					if (lastKey != null && !lastKey.equals(key)) {
+						pipeIn(lastKey, objs);
+					}
+					lastKey = key;
+					objs.add(ss);
+				}
+				if (lastKey != null) {
+					pipeIn(lastKey, objs);
+				}
+			}
+		} catch (EOFException e) {
+			// connection is closed by other node
+		} catch (SocketException e) {
+			// connection is closed
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void pipeIn(String key, List<SimpleSerializable> objs) {
+		received.addAndGet(objs.size());
+		try {
+			SimplePipeHelper.pipeIn(key, objs.toArray(new SimpleSerializable[objs.size()]));
+		} catch (RuntimeException e) {
+			e.printStackTrace(); // keep receiving other pipes' data
+		} finally {
+			objs.clear();
+		}
+	}
+
+	public String assignPipeKey(String key) {
+		return KEY_CHARS.charAt(localIndex) + key.substring(1);
+	}
+
+	public void pipeRegistered(String key) {
+		// node is encoded in key
+	}
+
+	public void pipeRemoved(String key) {
+		// node is encoded in key
+	}
+
+	public String getPipeNode(String key) {
+		if (key == null || key.length() == 0) {
+			return null;
+		}
+		int index = KEY_CHARS.indexOf(key.charAt(0));
+		if (index < 0 || index >= nodes.length || index == localIndex) {
+			return null;
+		}
+		return nodes[index];
+	}
+
+	public void forward(String node, String key, SimpleSerializable[] ss) {
+		Peer peer = null;
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i].equals(node)) {
+				peer = peers[i];
+				break;
+			}
+		}
+		if (peer == null || !running) {
+			dropped.addAndGet(ss.length);
+			return;
+		}
+		for (int i = 0; i < ss.length; i++) {
+			String data = ss[i] == null ? null : ss[i].serialize(null, true);
+			if (!peer.queue.offer(new Item(key, data))) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return number of pipe data sent to other nodes
+	 */
+	public long getForwardedCount() {
+		return forwarded.get();
+	}
+
+	/**
+	 * @return number of pipe data received from other nodes
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return number of pipe data which are failed to be sent to other nodes
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+}
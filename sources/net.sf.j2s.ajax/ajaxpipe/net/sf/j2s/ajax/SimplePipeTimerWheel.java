@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel, which runs timeouts of many pipe responses in a
+ * single thread. Timeouts are rounded up to the tick duration.
+ *
+ * Tasks are run in the timer thread, so they should return quickly, for
+ * example, by dispatching work to other threads.
+ *
+ * @author zhou renjian
+ */
+final class SimplePipeTimerWheel implements Runnable {
+
+	/**
+	 * Scheduled task, which may be cancelled before it is run.
+	 */
+	static final class Timeout {
+
+		final Runnable task;
+
+		final long deadline;
+
+		long rounds;
+
+		volatile boolean cancelled;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+	}
+
+	private final String name;
+
+	private final long tickDuration;
+
+	private final int mask;
+
+	/*
+	 * Buckets are only accessed by the timer thread. New timeouts are put
+	 * into pending queue first.
+	 */
+	private final List<Timeout>[] wheel;
+
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+	private long startTime;
+
+	private Thread thread;
+
+	private volatile boolean stopped;
+
+	/**
+	 * @param name name of timer thread
+	 * @param tickDuration milliseconds of each tick
+	 * @param ticksPerWheel number of buckets, rounded up to power of 2
+	 */
+	@SuppressWarnings("unchecked")
+	SimplePipeTimerWheel(String name, long tickDuration, int ticksPerWheel) {
+		this.name = name;
+		this.tickDuration = tickDuration;
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		List<Timeout>[] lists = new List[size];
+		wheel = lists;
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new ArrayList<Timeout>();
+		}
+	}
+
+	/**
+	 * Schedule given task to be run after given delay. Timer thread is
+	 * started on first scheduling.
+	 *
+	 * @param task
+	 * @param delay milliseconds
+	 * @return timeout which can be cancelled
+	 */
+	Timeout schedule(Runnable task, long delay) {
+		start();
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(delay, 0));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	private synchronized void start() {
+		if (thread != null || stopped) {
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop timer thread. Those timeouts not yet run are discarded.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		pending.clear();
+	}
+
+	public void run() {
+		long tick = 0;
+		while (!stopped) {
+			long deadline = startTime + (tick + 1) * tickDuration;
+			long sleep = deadline - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					// stopped?
+				}
+				continue;
+			}
+			tick++;
+			transferPending(tick);
+			List<Timeout> bucket = wheel[(int) (tick & mask)];
+			List<Timeout> expired = null;
+			for (Iterator<Timeout> itr = bucket.iterator(); itr.hasNext();) {
+				Timeout timeout = itr.next();
+				if (timeout.cancelled) {
+					itr.remove();
+				} else if (timeout.rounds > 0) {
+					timeout.rounds--;
+				} else {
+					itr.remove();
+					if (expired == null) {
+						expired = new ArrayList<Timeout>();
+					}
+					expired.add(timeout);
+				}
+			}
+			if (expired != null) {
+				long start = System.nanoTime();
+				for (Iterator<Timeout> itr = expired.iterator(); itr.hasNext();) {
+					Timeout timeout = itr.next();
+					if (timeout.cancelled) {
+						continue;
+					}
+					try {
+						timeout.task.run();
+					} catch (Throwable e) {
+						e.printStackTrace();
+					}
+				}
+				SimpleMetrics.histogram(SimpleMetrics.PIPE_TIMER_TICK).recordSince(start);
+			}
+		}
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i].clear();
+		}
+	}
+
+	/*
+	 * Put pending timeouts into buckets. Expired timeouts are put into
+	 * current bucket, which is about to be checked.
+	 */
+	private void transferPending(long currentTick) {
+		Timeout timeout = null;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long ticks = (timeout.deadline - startTime + tickDuration - 1) / tickDuration;
+			if (ticks < currentTick) {
+				ticks = currentTick;
+			}
+			timeout.rounds = (ticks - currentTick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+}
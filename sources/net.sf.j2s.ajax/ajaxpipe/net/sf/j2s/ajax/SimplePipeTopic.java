@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Topic of pipes, to which the same pipe data are published.
+ *
+ * Published data are wrapped into one shared payload, which is put into
+ * queues of all subscribed pipes by reference, and is serialized at most
+ * once for each format, instead of once for each pipe. Pipes which are
+ * removed are unsubscribed on next publishing.
+ *
+ * ISimpleCacheable data are not merged with queued data, and
+ * ISimpleDeltaCacheable data for pipes accepting deltas are serialized
+ * for each pipe. CompoundSerializable data should not be published, as
+ * they belong to pipe sessions. Publishing only blocks on full queues of
+ * those pipes which opt in {@link SimplePipeQueue#POLICY_BLOCK}.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+public class SimplePipeTopic {
+
+	/**
+	 * Shared pipe data of a publishing.
+	 */
+	static final class Payload extends SimpleSerializable implements ISimplePipePriority {
+
+		final SimpleSerializable data;
+
+		private String text;
+
+		private String binary;
+
+		Payload(SimpleSerializable data) {
+			this.data = data;
+		}
+
+		public int getPriority() {
+			return SimplePipeQueue.priorityOf(data);
+		}
+
+		@Override
+		public String serialize(SimpleFilter filter) {
+			return serialize(filter, false);
+		}
+
+		/*
+		 * Serialized string without filter is shared by all pipes.
+		 */
+		@Override
+		public synchronized String serialize(SimpleFilter filter, boolean binary) {
+			if (filter != null) {
+				return data.serialize(filter, binary);
+			}
+			if (binary) {
+				if (this.binary == null) {
+					this.binary = data.serialize(null, true);
+				}
+				return this.binary;
+			}
+			if (text == null) {
+				text = data.serialize(null, false);
+			}
+			return text;
+		}
+
+	}
+
+	private static ConcurrentHashMap<String, SimplePipeTopic> topics = new ConcurrentHashMap<String, SimplePipeTopic>();
+
+	private final String name;
+
+	private final ConcurrentHashMap<String, Boolean> keys;
+
+	private SimplePipeTopic(String name) {
+		this.name = name;
+		this.keys = new ConcurrentHashMap<String, Boolean>();
+	}
+
+	/**
+	 * Return topic of given name, creating it if it does not exist.
+	 *
+	 * @param name
+	 * @return topic
+	 */
+	public static SimplePipeTopic getTopic(String name) {
+		SimplePipeTopic topic = topics.get(name);
+		if (topic == null) {
+			topic = new SimplePipeTopic(name);
+			SimplePipeTopic existed = topics.putIfAbsent(name, topic);
+			if (existed != null) {
+				topic = existed;
+			}
+		}
+		return topic;
+	}
+
+	/**
+	 * Remove topic of given name. Its subscribed pipes are kept.
+	 *
+	 * @param name
+	 * @return removed topic or null
+	 */
+	public static SimplePipeTopic removeTopic(String name) {
+		return topics.remove(name);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Subscribe pipe of given key to this topic.
+	 *
+	 * @param key pipe key
+	 * @return false if it is already subscribed
+	 */
+	public boolean subscribe(String key) {
+		if (key == null) {
+			return false;
+		}
+		return keys.putIfAbsent(key, Boolean.TRUE) == null;
+	}
+
+	/**
+	 * @param key pipe key
+	 * @return false if it is not subscribed
+	 */
+	public boolean unsubscribe(String key) {
+		if (key == null) {
+			return false;
+		}
+		return keys.remove(key) != null;
+	}
+
+	/**
+	 * @return number of subscribed pipes
+	 */
+	public int getSubscriberCount() {
+		return keys.size();
+	}
+
+	/**
+	 * Publish given pipe data to all subscribed pipes.
+	 *
+	 * If cluster is set up, pipes on other servers are piped in through
+	 * {@link ISimplePipeChannel}, one by one.
+	 *
+	 * @param ss
+	 * @return number of pipes to which data are piped in
+	 */
+	public int publish(SimpleSerializable ss) {
+		if (ss == null) {
+			return 0;
+		}
+		Payload payload = new Payload(ss);
+		SimpleSerializable[] data = null;
+		int count = 0;
+		for (Iterator<String> itr = keys.keySet().iterator(); itr.hasNext();) {
+			String key = itr.next();
+			SimplePipeRunnable pipe = SimplePipeHelper.getPipe(key);
+			if (pipe != null && pipe.queue != null) {
+				if (SimplePipeHelper.pipeIn(pipe, payload)) {
+					count++;
+				}
+				continue;
+			}
+			ISimplePipeDirectory dir = SimplePipeHelper.getPipeDirectory();
+			if (pipe == null && dir != null && dir.getPipeNode(key) != null) {
+				if (data == null) {
+					data = new SimpleSerializable[] { ss };
+				}
+				SimplePipeHelper.pipeIn(key, data);
+				count++;
+				continue;
+			}
+			itr.remove(); // pipe is removed
+		}
+		return count;
+	}
+
+}
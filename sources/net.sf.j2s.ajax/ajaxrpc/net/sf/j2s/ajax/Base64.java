@@ -87,8 +87,19 @@ class Base64 {
      *        string.
      */
     static byte[] base64ToByteArray(String s) {
+        return base64ToByteArray(s, 0, s.length());
+    }
+
+    /**
+     * Translates the specified range of Base64 chars into a byte array,
+     * without copying the range into a new string.
+     * 
+     * @throw IllegalArgumentException if the range is not a valid Base64
+     *        string.
+     */
+    static byte[] base64ToByteArray(CharSequence s, int start, int end) {
         byte[] alphaToInt = base64ToInt;
-        int sLen = s.length();
+        int sLen = end - start;
         int numGroups = sLen/4;
         if (4*numGroups != sLen)
             throw new IllegalArgumentException(
@@ -96,17 +107,17 @@ class Base64 {
         int missingBytesInLastGroup = 0;
         int numFullGroups = numGroups;
         if (sLen != 0) {
-            if (s.charAt(sLen-1) == '=') {
+            if (s.charAt(end-1) == '=') {
                 missingBytesInLastGroup++;
                 numFullGroups--;
             }
-            if (s.charAt(sLen-2) == '=')
+            if (s.charAt(end-2) == '=')
                 missingBytesInLastGroup++;
         }
         byte[] result = new byte[3*numGroups - missingBytesInLastGroup];
 
         // Translate all full groups from base64 to byte array elements
-        int inCursor = 0, outCursor = 0;
+        int inCursor = start, outCursor = 0;
         for (int i=0; i<numFullGroups; i++) {
             int ch0 = base64toInt(s.charAt(inCursor++), alphaToInt);
             int ch1 = base64toInt(s.charAt(inCursor++), alphaToInt);
@@ -128,7 +139,7 @@ class Base64 {
                 result[outCursor++] = (byte) ((ch1 << 4) | (ch2 >> 2));
             }
         }
-        // assert inCursor == s.length()-missingBytesInLastGroup;
+        // assert inCursor == end-missingBytesInLastGroup;
         // assert outCursor == result.length;
         return result;
     }
@@ -0,0 +1,636 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.util.BitSet;
+
+import net.sf.j2s.ajax.SimpleSerializableCodec.FieldCodec;
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Compact binary format of SimpleSerializable for Java to Java
+ * communication.
+ *
+ * Format: "WLB101" + ClassName + "#" + size + "$" + fields, in which
+ * size is decimal length of fields, the same as "WLL201" format, so
+ * pipe streams are split in the same way. Each field is written as:
+ * <pre>
+ * varint(name length) name(UTF-8) type(1 byte) value
+ * </pre>
+ * Type byte is the type code of SimpleSerializableCodec. Values are:
+ * <ul>
+ * <li>int, long, short: zigzag varint</li>
+ * <li>char: varint</li>
+ * <li>byte, boolean: 1 byte</li>
+ * <li>float, double: raw IEEE 754 bits, big endian</li>
+ * <li>String: varint(UTF-8 length + 1) + UTF-8 bytes, 0 for null</li>
+ * <li>array: varint(length + 1) + elements, 0 for null</li>
+ * </ul>
+ *
+ * Serialized data is carried as a string of chars in range 0-255, so it
+ * can be transferred by existed HttpRequest and servlets as ISO-8859-1.
+ *
+ * Browsers never receive this format, JavaScript side only knows "WLL201".
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+class SimpleBinaryCodec {
+
+	static final String HEAD = "WLB101";
+
+	private SimpleBinaryCodec() {
+		// only static methods
+	}
+
+	/**
+	 * Serialize given object into "WLB101" string.
+	 *
+	 * @param codec
+	 * @param ss
+	 * @param filter
+	 * @return serialized string, whose chars are all in range 0-255
+	 */
+	static String serialize(SimpleSerializableCodec codec, SimpleSerializable ss, SimpleFilter filter) {
+		StringBuffer body = new StringBuffer();
+		boolean ignoring = (filter == null || filter.ignoreDefaultFields());
+		BitSet indices = filter instanceof SimpleSerializableCodec.FieldsFilter
+				? ((SimpleSerializableCodec.FieldsFilter) filter).indices : null;
+		FieldCodec[] fields = codec.fields;
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				FieldCodec fc = fields[i];
+				if (indices != null ? !indices.get(fc.index)
+						: filter != null && !filter.accept(fc.name)) continue;
+				serializeField(body, ss, fc, ignoring);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		int size = body.length();
+		if (size > 0x1000000) { // 16 * 1024 * 1024
+			throw new RuntimeException("Data size reaches the limit of Java2Script Simple RPC!");
+		}
+		StringBuffer buffer = new StringBuffer(size + codec.clazzName.length() + 16);
+		buffer.append(HEAD);
+		buffer.append(codec.clazzName);
+		buffer.append('#');
+		buffer.append(size);
+		buffer.append('$');
+		buffer.append(body);
+		return buffer.toString();
+	}
+
+	private static void serializeField(StringBuffer buffer, SimpleSerializable ss,
+			FieldCodec fc, boolean ignoring) throws IllegalAccessException, UnsupportedEncodingException {
+		Field field = fc.field;
+		switch (fc.type) {
+		case SimpleSerializableCodec.TYPE_FLOAT: {
+			float f = field.getFloat(ss);
+			if (f == 0.0 && ignoring) return;
+			writeName(buffer, fc);
+			writeFixed(buffer, Float.floatToIntBits(f), 4);
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_DOUBLE: {
+			double d = field.getDouble(ss);
+			if (d == 0.0d && ignoring) return;
+			writeName(buffer, fc);
+			writeFixed(buffer, Double.doubleToLongBits(d), 8);
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_INT: {
+			int n = field.getInt(ss);
+			if (n == 0 && ignoring) return;
+			writeName(buffer, fc);
+			writeVarint(buffer, zigzag(n));
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_LONG: {
+			long l = field.getLong(ss);
+			if (l == 0L && ignoring) return;
+			writeName(buffer, fc);
+			writeVarint(buffer, zigzag(l));
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_SHORT: {
+			short s = field.getShort(ss);
+			if (s == 0 && ignoring) return;
+			writeName(buffer, fc);
+			writeVarint(buffer, zigzag(s));
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_BYTE: {
+			byte b = field.getByte(ss);
+			if (b == 0 && ignoring) return;
+			writeName(buffer, fc);
+			buffer.append((char) (b & 0xff));
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_CHAR: {
+			char c = field.getChar(ss);
+			if (c == 0 && ignoring) return;
+			writeName(buffer, fc);
+			writeVarint(buffer, c);
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_BOOLEAN: {
+			boolean b = field.getBoolean(ss);
+			if (b == false && ignoring) return;
+			writeName(buffer, fc);
+			buffer.append(b ? (char) 1 : (char) 0);
+			return;
+		}
+		case SimpleSerializableCodec.TYPE_STRING: {
+			String s = (String) field.get(ss);
+			if (s == null && ignoring) return;
+			writeName(buffer, fc);
+			writeString(buffer, s);
+			return;
+		}
+		default: { // Array ...
+			Object array = field.get(ss);
+			if (array == null && ignoring) return;
+			writeName(buffer, fc);
+			if (array == null) {
+				buffer.append((char) 0);
+			} else {
+				serializeArray(buffer, fc.type & ~SimpleSerializableCodec.TYPE_ARRAY, array);
+			}
+			return;
+		}
+		}
+	}
+
+	private static void serializeArray(StringBuffer buffer, int type, Object array)
+			throws UnsupportedEncodingException {
+		switch (type) {
+		case SimpleSerializableCodec.TYPE_FLOAT: {
+			float[] fs = (float[]) array;
+			writeVarint(buffer, fs.length + 1);
+			for (int j = 0; j < fs.length; j++) {
+				writeFixed(buffer, Float.floatToIntBits(fs[j]), 4);
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_DOUBLE: {
+			double[] ds = (double[]) array;
+			writeVarint(buffer, ds.length + 1);
+			for (int j = 0; j < ds.length; j++) {
+				writeFixed(buffer, Double.doubleToLongBits(ds[j]), 8);
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_INT: {
+			int[] ns = (int[]) array;
+			writeVarint(buffer, ns.length + 1);
+			for (int j = 0; j < ns.length; j++) {
+				writeVarint(buffer, zigzag(ns[j]));
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_LONG: {
+			long[] ls = (long[]) array;
+			writeVarint(buffer, ls.length + 1);
+			for (int j = 0; j < ls.length; j++) {
+				writeVarint(buffer, zigzag(ls[j]));
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_SHORT: {
+			short[] ss = (short[]) array;
+			writeVarint(buffer, ss.length + 1);
+			for (int j = 0; j < ss.length; j++) {
+				writeVarint(buffer, zigzag(ss[j]));
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_BYTE: {
+			byte[] bs = (byte[]) array;
+			writeVarint(buffer, bs.length + 1);
+			for (int j = 0; j < bs.length; j++) {
+				buffer.append((char) (bs[j] & 0xff));
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_CHAR: {
+			char[] cs = (char[]) array;
+			writeVarint(buffer, cs.length + 1);
+			for (int j = 0; j < cs.length; j++) {
+				writeVarint(buffer, cs[j]);
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_BOOLEAN: {
+			boolean[] bs = (boolean[]) array;
+			writeVarint(buffer, bs.length + 1);
+			for (int j = 0; j < bs.length; j++) {
+				buffer.append(bs[j] ? (char) 1 : (char) 0);
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_STRING: {
+			String[] ss = (String[]) array;
+			writeVarint(buffer, ss.length + 1);
+			for (int j = 0; j < ss.length; j++) {
+				writeString(buffer, ss[j]);
+			}
+			break;
+		}
+		}
+	}
+
+	private static void writeName(StringBuffer buffer, FieldCodec fc) {
+		buffer.append(fc.binaryName);
+	}
+
+	/**
+	 * Encode field name and type for "WLB101" format.
+	 *
+	 * @param alias field name on the wire
+	 * @param type
+	 * @return varint(name length) + name(UTF-8) + type
+	 */
+	static String encodeName(String alias, int type) {
+		StringBuffer buffer = new StringBuffer();
+		byte[] bytes = null;
+		try {
+			bytes = alias.getBytes("utf-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = alias.getBytes(); // should never happen
+		}
+		writeVarint(buffer, bytes.length);
+		writeBytes(buffer, bytes);
+		buffer.append((char) type);
+		return buffer.toString();
+	}
+
+	private static void writeString(StringBuffer buffer, String s) throws UnsupportedEncodingException {
+		if (s == null) {
+			buffer.append((char) 0);
+			return;
+		}
+		byte[] bytes = s.getBytes("utf-8");
+		writeVarint(buffer, bytes.length + 1L);
+		writeBytes(buffer, bytes);
+	}
+
+	private static void writeBytes(StringBuffer buffer, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.append((char) (bytes[i] & 0xff));
+		}
+	}
+
+	private static void writeFixed(StringBuffer buffer, long bits, int count) {
+		for (int i = (count - 1) * 8; i >= 0; i -= 8) {
+			buffer.append((char) ((bits >>> i) & 0xff));
+		}
+	}
+
+	private static void writeVarint(StringBuffer buffer, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.append((char) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.append((char) value);
+	}
+
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	/**
+	 * Deserialize given "WLB101" string into the given object.
+	 *
+	 * @param codec
+	 * @param ss
+	 * @param str
+	 * @param start
+	 * @return false if given string is not completed or is malformed
+	 */
+	static boolean deserialize(SimpleSerializableCodec codec, SimpleSerializable ss, CharSequence str, int start) {
+		int index = SimpleSerializableCodec.indexOf(str, '#', start);
+		if (index == -1) return false;
+		int last = index + 1;
+		index = SimpleSerializableCodec.indexOf(str, '$', last);
+		if (index == -1 || index == last) return false;
+		int size = 0;
+		for (int i = last; i < index; i++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9' || size > 0x1000000) {
+				return false;
+			}
+			size = size * 10 + (c - '0');
+		}
+		index++;
+		if (size > str.length() - index) return false; // not enough string
+		Reader reader = new Reader(str, index, index + size);
+		try {
+			while (reader.index < reader.end) {
+				FieldCodec fc = reader.readField(codec);
+				int type = reader.readByte();
+				if (fc == null) {
+					skipValue(reader, type);
+				} else if (fc.type != type) {
+					skipValue(reader, type); // field type changed? ignore it
+				} else {
+					readValue(reader, ss, fc);
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			return false; // malformed
+		} catch (Exception e) {
+			System.out.println("Parsing: " + str);
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	private static void readValue(Reader reader, SimpleSerializable ss, FieldCodec fc)
+			throws IllegalAccessException, UnsupportedEncodingException {
+		Field field = fc.field;
+		switch (fc.type) {
+		case SimpleSerializableCodec.TYPE_FLOAT:
+			field.setFloat(ss, Float.intBitsToFloat((int) reader.readFixed(4)));
+			return;
+		case SimpleSerializableCodec.TYPE_DOUBLE:
+			field.setDouble(ss, Double.longBitsToDouble(reader.readFixed(8)));
+			return;
+		case SimpleSerializableCodec.TYPE_INT:
+			field.setInt(ss, (int) unzigzag(reader.readVarint()));
+			return;
+		case SimpleSerializableCodec.TYPE_LONG:
+			field.setLong(ss, unzigzag(reader.readVarint()));
+			return;
+		case SimpleSerializableCodec.TYPE_SHORT:
+			field.setShort(ss, (short) unzigzag(reader.readVarint()));
+			return;
+		case SimpleSerializableCodec.TYPE_BYTE:
+			field.setByte(ss, (byte) reader.readByte());
+			return;
+		case SimpleSerializableCodec.TYPE_CHAR:
+			field.setChar(ss, (char) reader.readVarint());
+			return;
+		case SimpleSerializableCodec.TYPE_BOOLEAN:
+			field.setBoolean(ss, reader.readByte() != 0);
+			return;
+		case SimpleSerializableCodec.TYPE_STRING:
+			field.set(ss, reader.readString());
+			return;
+		}
+		int length = reader.readLength() - 1;
+		if (length < 0) {
+			field.set(ss, null);
+			return;
+		}
+		switch (fc.type & ~SimpleSerializableCodec.TYPE_ARRAY) {
+		case SimpleSerializableCodec.TYPE_FLOAT: {
+			reader.checkRemaining(length, 4);
+			float[] fs = new float[length];
+			for (int i = 0; i < length; i++) {
+				fs[i] = Float.intBitsToFloat((int) reader.readFixed(4));
+			}
+			field.set(ss, fs);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_DOUBLE: {
+			reader.checkRemaining(length, 8);
+			double[] ds = new double[length];
+			for (int i = 0; i < length; i++) {
+				ds[i] = Double.longBitsToDouble(reader.readFixed(8));
+			}
+			field.set(ss, ds);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_INT: {
+			reader.checkRemaining(length, 1);
+			int[] ns = new int[length];
+			for (int i = 0; i < length; i++) {
+				ns[i] = (int) unzigzag(reader.readVarint());
+			}
+			field.set(ss, ns);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_LONG: {
+			reader.checkRemaining(length, 1);
+			long[] ls = new long[length];
+			for (int i = 0; i < length; i++) {
+				ls[i] = unzigzag(reader.readVarint());
+			}
+			field.set(ss, ls);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_SHORT: {
+			reader.checkRemaining(length, 1);
+			short[] sts = new short[length];
+			for (int i = 0; i < length; i++) {
+				sts[i] = (short) unzigzag(reader.readVarint());
+			}
+			field.set(ss, sts);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_BYTE: {
+			reader.checkRemaining(length, 1);
+			byte[] bs = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bs[i] = (byte) reader.readByte();
+			}
+			field.set(ss, bs);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_CHAR: {
+			reader.checkRemaining(length, 1);
+			char[] cs = new char[length];
+			for (int i = 0; i < length; i++) {
+				cs[i] = (char) reader.readVarint();
+			}
+			field.set(ss, cs);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_BOOLEAN: {
+			reader.checkRemaining(length, 1);
+			boolean[] bs = new boolean[length];
+			for (int i = 0; i < length; i++) {
+				bs[i] = reader.readByte() != 0;
+			}
+			field.set(ss, bs);
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_STRING: {
+			reader.checkRemaining(length, 1);
+			String[] ss2 = new String[length];
+			for (int i = 0; i < length; i++) {
+				ss2[i] = reader.readString();
+			}
+			field.set(ss, ss2);
+			break;
+		}
+		}
+	}
+
+	/*
+	 * Skip value of unknown field, so later fields can still be read.
+	 */
+	private static void skipValue(Reader reader, int type) {
+		if ((type & SimpleSerializableCodec.TYPE_ARRAY) != 0) {
+			int length = reader.readLength() - 1;
+			type &= ~SimpleSerializableCodec.TYPE_ARRAY;
+			for (int i = 0; i < length; i++) {
+				skipValue(reader, type);
+			}
+			return;
+		}
+		switch (type) {
+		case SimpleSerializableCodec.TYPE_FLOAT: reader.skip(4); break;
+		case SimpleSerializableCodec.TYPE_DOUBLE: reader.skip(8); break;
+		case SimpleSerializableCodec.TYPE_BYTE:
+		case SimpleSerializableCodec.TYPE_BOOLEAN: reader.skip(1); break;
+		case SimpleSerializableCodec.TYPE_STRING: {
+			int length = reader.readLength() - 1;
+			if (length > 0) {
+				reader.skip(length);
+			}
+			break;
+		}
+		case SimpleSerializableCodec.TYPE_INT:
+		case SimpleSerializableCodec.TYPE_LONG:
+		case SimpleSerializableCodec.TYPE_SHORT:
+		case SimpleSerializableCodec.TYPE_CHAR: reader.readVarint(); break;
+		default:
+			throw new IndexOutOfBoundsException("Unknown type " + type);
+		}
+	}
+
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Cursor over serialized chars.
+	 */
+	private static final class Reader {
+
+		final CharSequence str;
+
+		int index;
+
+		final int end;
+
+		Reader(CharSequence str, int index, int end) {
+			this.str = str;
+			this.index = index;
+			this.end = end;
+		}
+
+		int readByte() {
+			if (index >= end) {
+				throw new IndexOutOfBoundsException();
+			}
+			return str.charAt(index++) & 0xff;
+		}
+
+		void skip(int count) {
+			if (count > end - index) {
+				throw new IndexOutOfBoundsException();
+			}
+			index += count;
+		}
+
+		/*
+		 * Guard against malicious length which may try to allocate huge
+		 * size of memory.
+		 */
+		void checkRemaining(int count, int unitSize) {
+			if (count > (end - index) / unitSize) {
+				throw new IndexOutOfBoundsException();
+			}
+		}
+
+		long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IndexOutOfBoundsException("Malformed varint");
+		}
+
+		int readLength() {
+			long length = readVarint();
+			if (length < 0 || length > end - index + 1) {
+				throw new IndexOutOfBoundsException();
+			}
+			return (int) length;
+		}
+
+		long readFixed(int count) {
+			long bits = 0;
+			for (int i = 0; i < count; i++) {
+				bits = (bits << 8) | readByte();
+			}
+			return bits;
+		}
+
+		String readUTF8(int length) throws UnsupportedEncodingException {
+			skip(length);
+			int from = index - length;
+			boolean ascii = true;
+			for (int i = from; i < index; i++) {
+				if (str.charAt(i) >= 0x80) {
+					ascii = false;
+					break;
+				}
+			}
+			if (ascii) {
+				return str.subSequence(from, index).toString();
+			}
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = (byte) str.charAt(from + i);
+			}
+			return new String(bytes, "utf-8");
+		}
+
+		/*
+		 * Read field name and find its field. ASCII names, which are the
+		 * usual ones, are matched in place without creating strings.
+		 */
+		FieldCodec readField(SimpleSerializableCodec codec) throws UnsupportedEncodingException {
+			int length = readLength();
+			skip(length);
+			int from = index - length;
+			for (int i = from; i < index; i++) {
+				if (str.charAt(i) >= 0x80) {
+					index = from;
+					return codec.lookupField(readUTF8(length));
+				}
+			}
+			int found = codec.findField(str, from, index, 0);
+			return found == -1 ? null : codec.fields[found];
+		}
+
+		String readString() throws UnsupportedEncodingException {
+			int length = readLength() - 1;
+			if (length < 0) {
+				return null;
+			}
+			return readUTF8(length);
+		}
+
+	}
+
+}
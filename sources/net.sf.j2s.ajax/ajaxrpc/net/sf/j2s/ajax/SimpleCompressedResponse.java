@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper which compresses content in "gzip" or "deflate"
+ * encoding, as negotiated by request header "Accept-Encoding".
+ *
+ * Content is buffered until it reaches the threshold. Content smaller
+ * than the threshold is written without compression. Flushing of
+ * compressed content is a sync flush if it is supported, so those data
+ * written are delivered to client at once, e.g. for pipes.
+ *
+ * @author zhou renjian
+ */
+public class SimpleCompressedResponse extends HttpServletResponseWrapper {
+
+	public static final String ENCODING_GZIP = "gzip";
+
+	public static final String ENCODING_DEFLATE = "deflate";
+
+	private static final AtomicLong compressedResponses = new AtomicLong();
+
+	private static final AtomicLong rawBytes = new AtomicLong();
+
+	private static final AtomicLong compressedBytes = new AtomicLong();
+
+	private static Constructor<GZIPOutputStream> gzipSyncFlush;
+
+	private static Constructor<DeflaterOutputStream> deflateSyncFlush;
+
+	static {
+		try {
+			// Sync flush is supported since Java 7
+			gzipSyncFlush = GZIPOutputStream.class.getConstructor(OutputStream.class, boolean.class);
+			deflateSyncFlush = DeflaterOutputStream.class.getConstructor(OutputStream.class, boolean.class);
+		} catch (Throwable e) {
+			gzipSyncFlush = null;
+			deflateSyncFlush = null;
+		}
+	}
+
+	/**
+	 * Output stream which decides whether to compress content or not on
+	 * first flushing, closing or reaching the threshold.
+	 */
+	class CompressingOutputStream extends ServletOutputStream {
+
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		private OutputStream out;
+
+		private OutputStream compressed;
+
+		private boolean closed;
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream is closed");
+			}
+			if (out == null) {
+				buffer.write(b, off, len);
+				if (buffer.size() < threshold) {
+					return;
+				}
+				start(true);
+				return;
+			}
+			if (compressed != null) {
+				rawBytes.addAndGet(len);
+				compressed.write(b, off, len);
+			} else {
+				out.write(b, off, len);
+			}
+		}
+
+		/*
+		 * Start writing buffered content to the real response.
+		 */
+		private void start(boolean compressing) throws IOException {
+			if (compressing) {
+				setHeader("Content-Encoding", encoding);
+				addHeader("Vary", "Accept-Encoding");
+				final OutputStream os = SimpleCompressedResponse.super.getOutputStream();
+				// count compressed bytes
+				out = new OutputStream() {
+					public void write(int b) throws IOException {
+						compressedBytes.incrementAndGet();
+						os.write(b);
+					}
+					public void write(byte[] b, int off, int len) throws IOException {
+						compressedBytes.addAndGet(len);
+						os.write(b, off, len);
+					}
+					public void flush() throws IOException {
+						os.flush();
+					}
+					public void close() throws IOException {
+						os.close();
+					}
+				};
+				compressed = createCompressingStream(out, encoding, gzipSyncFlush != null);
+				rawBytes.addAndGet(buffer.size());
+				buffer.writeTo(compressed);
+				compressedResponses.incrementAndGet();
+			} else {
+				out = SimpleCompressedResponse.super.getOutputStream();
+				buffer.writeTo(out);
+			}
+			buffer = null;
+		}
+
+		public void flush() throws IOException {
+			if (closed) {
+				return;
+			}
+			if (out == null) {
+				start(streaming);
+			}
+			if (compressed != null) {
+				compressed.flush(); // sync flush
+			} else {
+				out.flush();
+			}
+		}
+
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			if (out == null) {
+				start(false);
+			}
+			closed = true;
+			if (compressed != null) {
+				compressed.close();
+			} else {
+				out.close();
+			}
+		}
+
+	}
+
+	private final String encoding;
+
+	private final int threshold;
+
+	private final boolean streaming;
+
+	private CompressingOutputStream stream;
+
+	private PrintWriter writer;
+
+	private SimpleCompressedResponse(HttpServletResponse resp, String encoding,
+			int threshold, boolean streaming) {
+		super(resp);
+		this.encoding = encoding;
+		this.threshold = streaming ? 0 : threshold;
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Wrap given response if client accepts compressed content.
+	 *
+	 * @param req
+	 * @param resp
+	 * @param threshold content smaller than this size in bytes is not
+	 * compressed. Not used for streaming responses.
+	 * @param streaming whether response is flushed while it is written
+	 * @return compressed response, or null if content should not be
+	 * compressed
+	 */
+	public static SimpleCompressedResponse wrap(HttpServletRequest req, HttpServletResponse resp,
+			int threshold, boolean streaming) {
+		if (resp instanceof SimpleCompressedResponse) {
+			return null; // already wrapped
+		}
+		if (streaming && gzipSyncFlush == null) {
+			return null; // chunks would not be delivered at once
+		}
+		String encoding = negotiate(req.getHeader("Accept-Encoding"));
+		if (encoding == null) {
+			return null;
+		}
+		return new SimpleCompressedResponse(resp, encoding, threshold, streaming);
+	}
+
+	/**
+	 * Return preferred content encoding of given "Accept-Encoding" header,
+	 * "gzip" before "deflate".
+	 *
+	 * @param accepted
+	 * @return "gzip", "deflate" or null
+	 */
+	static String negotiate(String accepted) {
+		if (accepted == null) {
+			return null;
+		}
+		boolean gzip = false;
+		boolean deflate = false;
+		boolean gzipRefused = false;
+		boolean deflateRefused = false;
+		boolean any = false;
+		String[] items = accepted.split(",");
+		for (int i = 0; i < items.length; i++) {
+			String item = items[i].trim().toLowerCase();
+			boolean refused = false;
+			int idx = item.indexOf(';');
+			if (idx != -1) {
+				String param = item.substring(idx + 1).trim();
+				item = item.substring(0, idx).trim();
+				if (param.startsWith("q=")) {
+					try {
+						refused = Float.parseFloat(param.substring(2).trim()) <= 0;
+					} catch (NumberFormatException e) {
+						refused = true;
+					}
+				}
+			}
+			if (ENCODING_GZIP.equals(item) || "x-gzip".equals(item)) {
+				gzip = !refused;
+				gzipRefused = refused;
+			} else if (ENCODING_DEFLATE.equals(item)) {
+				deflate = !refused;
+				deflateRefused = refused;
+			} else if ("*".equals(item)) {
+				any = !refused;
+			}
+		}
+		if (gzip || (any && !gzipRefused)) {
+			return ENCODING_GZIP;
+		}
+		if (deflate || (any && !deflateRefused)) {
+			return ENCODING_DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether flushing compressed content delivers it at once,
+	 * which is supported since Java 7
+	 */
+	public static boolean isSyncFlushSupported() {
+		return gzipSyncFlush != null;
+	}
+
+	static OutputStream createCompressingStream(OutputStream out, String encoding,
+			boolean syncFlush) throws IOException {
+		boolean gzip = ENCODING_GZIP.equals(encoding);
+		if (syncFlush) {
+			try {
+				if (gzip) {
+					return gzipSyncFlush.newInstance(out, Boolean.TRUE);
+				}
+				return deflateSyncFlush.newInstance(out, Boolean.TRUE);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+			} catch (Exception e) {
+				// should never happen, as constructors are checked
+			}
+		}
+		if (gzip) {
+			return new GZIPOutputStream(out);
+		}
+		return new DeflaterOutputStream(out);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (stream == null) {
+			stream = new CompressingOutputStream();
+		}
+		return stream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			String charset = getCharacterEncoding();
+			if (charset == null) {
+				charset = "iso-8859-1";
+			}
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		// length is unknown before content is compressed
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		} else if (stream != null) {
+			stream.flush();
+		}
+		super.flushBuffer();
+	}
+
+	/**
+	 * Finish writing compressed content. Response should not be written
+	 * after this method.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (writer != null) {
+			writer.close();
+		} else if (stream != null) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return number of compressed responses since started
+	 */
+	public static long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+
+	/**
+	 * @return bytes of content before being compressed
+	 */
+	public static long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	/**
+	 * @return bytes of compressed content
+	 */
+	public static long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/**
+	 * @return bytes saved by compression
+	 */
+	public static long getBytesSaved() {
+		return rawBytes.get() - compressedBytes.get();
+	}
+
+}
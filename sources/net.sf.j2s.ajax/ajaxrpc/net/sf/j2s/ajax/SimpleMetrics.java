@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Registry of counters and histograms of simple RPC and pipe servlets.
+ *
+ * Recording is lock-free, so metrics may be kept on in production. Times
+ * are recorded in microseconds, and sizes in chars. Snapshot of all
+ * metrics is exported by JMX MBean "net.sf.j2s.ajax:type=SimpleMetrics",
+ * see {@link #registerMBean()}, or by {@link Exporter}s periodically.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+public class SimpleMetrics {
+
+	/**
+	 * Histogram of running time of RPC runnables, followed by "." and
+	 * class name of runnable.
+	 */
+	public static final String RPC_LATENCY = "rpc.latency";
+
+	public static final String RPC_REQUEST_SIZE = "rpc.request.size";
+
+	public static final String RPC_RESPONSE_SIZE = "rpc.response.size";
+
+	public static final String RPC_DESERIALIZE = "rpc.deserialize";
+
+	public static final String RPC_SERIALIZE = "rpc.serialize";
+
+	/**
+	 * Number of open pipe connections, followed by "." and pipe type.
+	 */
+	public static final String PIPE_CONNECTIONS = "pipe.connections";
+
+	public static final String PIPE_OPEN = "pipe.open";
+
+	public static final String PIPE_QUEUE_DEPTH = "pipe.queue.depth";
+
+	public static final String PIPE_SERIALIZE = "pipe.serialize";
+
+	public static final String PIPE_FLUSH_ITEMS = "pipe.flush.items";
+
+	public static final String PIPE_HEARTBEATS = "pipe.heartbeats";
+
+	public static final String PIPE_NOTIFIES = "pipe.notifies";
+
+	public static final String PIPE_MONITOR_CHECK = "pipe.monitor.check";
+
+	public static final String PIPE_TIMER_TICK = "pipe.timer.tick";
+
+	public static final String MBEAN_NAME = "net.sf.j2s.ajax:type=SimpleMetrics";
+
+	/**
+	 * Lock-free counter.
+	 */
+	public static class Counter {
+
+		private final AtomicLong value = new AtomicLong();
+
+		public void increase() {
+			value.incrementAndGet();
+		}
+
+		public void decrease() {
+			value.decrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+	}
+
+	/**
+	 * Lock-free histogram of non-negative values, with buckets of powers
+	 * of 2. Percentiles are estimated by upper bounds of buckets.
+	 */
+	public static class Histogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong sum = new AtomicLong();
+
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			// bucket i holds values from 2^(i-1) to 2^i - 1
+			buckets.incrementAndGet(value == 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long m = max.get();
+			while (value > m && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+		}
+
+		/**
+		 * Record microseconds since given time.
+		 *
+		 * @param startNanos time from System#nanoTime
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long c = count.get();
+			return c == 0 ? 0 : (double) sum.get() / c;
+		}
+
+		/**
+		 * @param percent e.g. 99 for p99
+		 * @return estimated value, not more than the maximum value
+		 */
+		public long getPercentile(double percent) {
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(total * percent / 100.0);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+					return Math.min(upper, max.get());
+				}
+			}
+			return max.get();
+		}
+
+	}
+
+	/**
+	 * Source of metrics which are computed on taking snapshot, such as
+	 * number of open pipes.
+	 */
+	public static interface Source {
+		public void collect(Map<String, Number> metrics);
+	}
+
+	/**
+	 * Exporter of metrics snapshots, e.g. to a monitoring system.
+	 */
+	public static interface Exporter {
+		public void export(Map<String, Number> metrics);
+	}
+
+	private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+	private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	private static final List<Source> sources = new CopyOnWriteArrayList<Source>();
+
+	private static final Map<Exporter, TimerTask> exporters = new ConcurrentHashMap<Exporter, TimerTask>();
+
+	private static Timer exportTimer;
+
+	private SimpleMetrics() {
+		//
+	}
+
+	public static Counter counter(String name) {
+		Counter c = counters.get(name);
+		if (c == null) {
+			c = new Counter();
+			Counter existed = counters.putIfAbsent(name, c);
+			if (existed != null) {
+				c = existed;
+			}
+		}
+		return c;
+	}
+
+	public static Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			h = new Histogram();
+			Histogram existed = histograms.putIfAbsent(name, h);
+			if (existed != null) {
+				h = existed;
+			}
+		}
+		return h;
+	}
+
+	public static void addSource(Source source) {
+		if (!sources.contains(source)) {
+			sources.add(source);
+		}
+	}
+
+	public static void removeSource(Source source) {
+		sources.remove(source);
+	}
+
+	/**
+	 * Return values of all metrics, sorted by names. Each histogram is
+	 * given as ".count", ".mean", ".p50", ".p90", ".p99" and ".max".
+	 *
+	 * @return metrics snapshot
+	 */
+	public static Map<String, Number> snapshot() {
+		Map<String, Number> metrics = new TreeMap<String, Number>();
+		for (Iterator<Map.Entry<String, Counter>> itr = counters.entrySet().iterator(); itr.hasNext();) {
+			Map.Entry<String, Counter> entry = itr.next();
+			metrics.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		for (Iterator<Map.Entry<String, Histogram>> itr = histograms.entrySet().iterator(); itr.hasNext();) {
+			Map.Entry<String, Histogram> entry = itr.next();
+			String name = entry.getKey();
+			Histogram h = entry.getValue();
+			metrics.put(name + ".count", Long.valueOf(h.getCount()));
+			metrics.put(name + ".mean", Double.valueOf(h.getMean()));
+			metrics.put(name + ".p50", Long.valueOf(h.getPercentile(50)));
+			metrics.put(name + ".p90", Long.valueOf(h.getPercentile(90)));
+			metrics.put(name + ".p99", Long.valueOf(h.getPercentile(99)));
+			metrics.put(name + ".max", Long.valueOf(h.getMax()));
+		}
+		for (Iterator<Source> itr = sources.iterator(); itr.hasNext();) {
+			try {
+				itr.next().collect(metrics);
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Export snapshots to given exporter every given milliseconds, in a
+	 * daemon timer thread.
+	 *
+	 * @param exporter
+	 * @param interval
+	 */
+	public synchronized static void addExporter(final Exporter exporter, long interval) {
+		removeExporter(exporter);
+		if (exportTimer == null) {
+			exportTimer = new Timer("Simple Metrics Exporter", true);
+		}
+		TimerTask task = new TimerTask() {
+			public void run() {
+				try {
+					exporter.export(snapshot());
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		exporters.put(exporter, task);
+		exportTimer.schedule(task, interval, interval);
+	}
+
+	public synchronized static void removeExporter(Exporter exporter) {
+		TimerTask task = exporters.remove(exporter);
+		if (task != null) {
+			task.cancel();
+		}
+		if (exporters.isEmpty() && exportTimer != null) {
+			exportTimer.cancel();
+			exportTimer = null;
+		}
+	}
+
+	/**
+	 * MBean with each metric of snapshot as a read-only attribute.
+	 */
+	static class MetricsMBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException,
+				MBeanException, ReflectionException {
+			Number value = snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Number> metrics = snapshot();
+			AttributeList list = new AttributeList();
+			for (int i = 0; i < attributes.length; i++) {
+				Number value = metrics.get(attributes[i]);
+				if (value != null) {
+					list.add(new Attribute(attributes[i], value));
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature)
+				throws MBeanException, ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			Map<String, Number> metrics = snapshot();
+			List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+			for (Iterator<Map.Entry<String, Number>> itr = metrics.entrySet().iterator(); itr.hasNext();) {
+				Map.Entry<String, Number> entry = itr.next();
+				infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+						entry.getKey(), true, false, false));
+			}
+			return new MBeanInfo(SimpleMetrics.class.getName(), "Simple RPC and pipe metrics",
+					infos.toArray(new MBeanAttributeInfo[infos.size()]), null,
+					new MBeanOperationInfo[0], null);
+		}
+
+	}
+
+	/**
+	 * Register metrics MBean to platform MBean server, if it is not yet
+	 * registered.
+	 */
+	public synchronized static void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(), name);
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized static void unregisterMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
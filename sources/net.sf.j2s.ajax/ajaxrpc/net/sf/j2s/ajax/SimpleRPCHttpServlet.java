@@ -15,13 +15,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.net.URLDecoder;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -55,6 +58,24 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	
 	protected boolean managingPipe = false;
 	
+	protected int batchLimit = 64;
+	
+	protected boolean batchParallel = false;
+	
+	protected boolean supportCompression = false;
+	
+	protected int compressionThreshold = 1024; // 1k
+	
+	private Boolean compareDiffsOverridden;
+	
+	private boolean metricsRegistered = false;
+	
+	/*
+	 * Latency histograms by runnable class, so metric names are not built
+	 * on every call.
+	 */
+	private ConcurrentHashMap<Class<?>, SimpleMetrics.Histogram> latencies = new ConcurrentHashMap<Class<?>, SimpleMetrics.Histogram>();
+	
 	protected long maxPostLimit() {
 		return postLimit;
 	}
@@ -93,6 +114,39 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		return xssLatency;
 	}
 	
+	/**
+	 * Return maximum number of runnables in one batch request.
+	 * 
+	 * @see SimpleRPCRequest#setBatchWindow(long, int)
+	 */
+	protected int maxBatchCalls() {
+		return batchLimit;
+	}
+	
+	/**
+	 * Return whether runnables in one batch request are run in parallel
+	 * or not. Responses are always written in the order of requests.
+	 */
+	protected boolean supportBatchParallel() {
+		return batchParallel;
+	}
+	
+	/**
+	 * Return whether responses are compressed for those clients accepting
+	 * "gzip" or "deflate" encoding or not.
+	 */
+	protected boolean supportCompression() {
+		return supportCompression;
+	}
+	
+	/**
+	 * Return size in bytes, responses smaller than which are not
+	 * compressed.
+	 */
+	protected int minCompressionSize() {
+		return compressionThreshold;
+	}
+	
 	/**
 	 * Get SimpleRPCRunnable instance correspond to the given request. 
 	 * 
@@ -101,6 +155,7 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	 * specified class name is invalid, null will be returned.
 	 */
 	protected SimpleRPCRunnable getRunnableByRequest(String request) {
+		long start = System.nanoTime();
 		SimpleSerializable instance = SimpleSerializable.parseInstance(request, new SimpleFilter() {
 
 			public boolean accept(String clazzName) {
@@ -114,6 +169,8 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		});
 		if (instance instanceof SimpleRPCRunnable) {
 			instance.deserialize(request);
+			SimpleMetrics.histogram(SimpleMetrics.RPC_DESERIALIZE).recordSince(start);
+			SimpleMetrics.histogram(SimpleMetrics.RPC_REQUEST_SIZE).record(request.length());
 			return (SimpleRPCRunnable) instance;
 		}
 		return null;
@@ -149,6 +206,26 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 			<param-name>simple.pipe.managable</param-name>
 			<param-value>true</param-value>
 		</init-param>
+		<init-param>
+			<param-name>simple.rpc.batch.max.calls</param-name>
+			<param-value>64</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.batch.parallel</param-name>
+			<param-value>false</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.compression</param-name>
+			<param-value>true</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.compression.threshold</param-name>
+			<param-value>1024</param-value>
+		</init-param>
+		<init-param>
+			<param-name>simple.rpc.metrics.jmx</param-name>
+			<param-value>true</param-value>
+		</init-param>
     </servlet>
     <servlet-mapping>
         <servlet-name>simplerpc</servlet-name>
@@ -201,6 +278,34 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		if (managablePipeStr != null) {
 			managingPipe = "true".equals(managablePipeStr);
 		}
+		String batchLimitStr = getInitParameter("simple.rpc.batch.max.calls");
+		if (batchLimitStr != null) {
+			try {
+				batchLimit = Integer.parseInt(batchLimitStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		String batchParallelStr = getInitParameter("simple.rpc.batch.parallel");
+		if (batchParallelStr != null) {
+			batchParallel = "true".equals(batchParallelStr);
+		}
+		String compressionStr = getInitParameter("simple.rpc.compression");
+		if (compressionStr != null) {
+			supportCompression = "true".equals(compressionStr);
+		}
+		String thresholdStr = getInitParameter("simple.rpc.compression.threshold");
+		if (thresholdStr != null) {
+			try {
+				compressionThreshold = Integer.parseInt(thresholdStr);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		if ("true".equals(getInitParameter("simple.rpc.metrics.jmx"))) {
+			SimpleMetrics.registerMBean();
+			metricsRegistered = true;
+		}
 		super.init();
 	}
 
@@ -213,8 +318,33 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		return runnables.contains(clazzName);
 	}
 	
+	/**
+	 * Return whether the request is from a Java client which asks for
+	 * "WLB101" binary serialization or not.
+	 * 
+	 * @param req
+	 * @return
+	 * @see SimpleRPCRequest#switchToBinarySerialization(boolean)
+	 */
+	protected boolean isBinarySerialization(HttpServletRequest req) {
+		return SimpleRPCRequest.SERIALIZATION_BINARY.equals(
+				req.getHeader(SimpleRPCRequest.HEADER_SERIALIZATION));
+	}
+	
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp) 
 			throws ServletException, IOException {
+		if (supportCompression()) {
+			SimpleCompressedResponse compressed = SimpleCompressedResponse.wrap(req, resp,
+					minCompressionSize(), isStreamingRequest(req));
+			if (compressed != null) {
+				try {
+					doPost(req, compressed);
+				} finally {
+					compressed.finish();
+				}
+				return;
+			}
+		}
 		String request = null;
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		byte[] buf = new byte[1024];
@@ -243,29 +373,99 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 				return;
 			}
 		}
-		request = baos.toString();
+		boolean binary = isBinarySerialization(req);
+		if (binary) {
+			request = baos.toString("iso-8859-1");
+		} else {
+			request = baos.toString();
+		}
 		res.close();
 		
+		if (req.getHeader(SimpleRPCRequest.HEADER_BATCH) != null) {
+			doBatch(req, resp, request, binary);
+			return;
+		}
 		SimpleRPCRunnable runnable = getRunnableByRequest(request);
 		if (runnable == null) {
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 			return;
 		}
+		doRunnable(req, resp, runnable, binary);
+	}
+
+	/**
+	 * Return whether response of given request is flushed while it is
+	 * written, e.g. batch responses are flushed call by call.
+	 * 
+	 * @param req
+	 * @return
+	 */
+	protected boolean isStreamingRequest(HttpServletRequest req) {
+		return req.getHeader(SimpleRPCRequest.HEADER_BATCH) != null;
+	}
+
+	/**
+	 * Run given runnable and write its serialized diffs as response.
+	 * Subclasses may override this method to write more data in response.
+	 * 
+	 * @param req
+	 * @param resp
+	 * @param runnable
+	 * @param binary
+	 * @throws IOException
+	 */
+	protected void doRunnable(HttpServletRequest req, HttpServletResponse resp,
+			SimpleRPCRunnable runnable, boolean binary) throws IOException {
 		resp.setHeader("Pragma", "no-cache");
 		resp.setHeader("Cache-Control", "no-cache");
 		resp.setDateHeader("Expires", 0);
-		resp.setContentType("text/plain; charset=utf-8");
+		if (binary) {
+			resp.setContentType("text/plain; charset=iso-8859-1");
+		} else {
+			resp.setContentType("text/plain; charset=utf-8");
+		}
 		//resp.setCharacterEncoding("utf-8");
 		PrintWriter writer = resp.getWriter();
+		String serialize = runAndSerialize(runnable, binary);
+		writer.write(serialize);
+		runnable.ajaxOut();
+	}
+
+	/**
+	 * Run given runnable and serialize those fields which are modified.
+	 * 
+	 * @param runnable
+	 * @param binary
+	 * @return serialized diffs
+	 */
+	protected String runAndSerialize(SimpleRPCRunnable runnable, boolean binary) {
+		if (!isCompareDiffsOverridden()) {
+			BitSet dirty = null;
+			if (runnable.isDirtyTracking()) {
+				runnable.dirtyFields = null;
+				run(runnable);
+				dirty = runnable.dirtyFields;
+				runnable.dirtyFields = null;
+				if (dirty == null) {
+					dirty = new BitSet();
+				}
+			} else {
+				SimpleSerializableCodec codec = SimpleSerializableCodec.getCodec(runnable);
+				Object[] snapshot = codec.snapshot(runnable);
+				run(runnable);
+				dirty = codec.compareSnapshot(runnable, snapshot);
+			}
+			return serialize(runnable, new SimpleSerializableCodec.FieldsFilter(dirty), binary);
+		}
 		SimpleRPCRunnable clonedRunnable = null;
 		try {
 			clonedRunnable = (SimpleRPCRunnable) runnable.clone();
 		} catch (CloneNotSupportedException e) {
 			//e.printStackTrace();
 		}
-		runnable.ajaxRun();
+		run(runnable);
 		final String[] diffs = compareDiffs(runnable, clonedRunnable);
-		String serialize = runnable.serialize(new SimpleFilter() {
+		return serialize(runnable, new SimpleFilter() {
 		
 			public boolean accept(String field) {
 				for (int i = 0; i < diffs.length; i++) {
@@ -280,14 +480,143 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 				return false;
 			}
 		
-		});
+		}, binary);
+	}
+
+	/*
+	 * Run given runnable, and record its running time.
+	 */
+	private void run(SimpleRPCRunnable runnable) {
+		long start = System.nanoTime();
+		runnable.ajaxRun();
+		Class<?> clazz = runnable.getClass();
+		SimpleMetrics.Histogram latency = latencies.get(clazz);
+		if (latency == null) {
+			latency = SimpleMetrics.histogram(SimpleMetrics.RPC_LATENCY + "." + clazz.getName());
+			latencies.put(clazz, latency);
+		}
+		latency.recordSince(start);
+	}
+
+	private String serialize(SimpleRPCRunnable runnable, SimpleFilter filter, boolean binary) {
+		long start = System.nanoTime();
+		String str = runnable.serialize(filter, binary);
+		SimpleMetrics.histogram(SimpleMetrics.RPC_SERIALIZE).recordSince(start);
+		SimpleMetrics.histogram(SimpleMetrics.RPC_RESPONSE_SIZE).record(str.length());
+		return str;
+	}
+
+	/**
+	 * Run runnables of batch request, and write their serialized diffs
+	 * one by one in the order of request. Runnables which are invalid or
+	 * fail in running are responded with
+	 * {@link SimpleRPCRequest#BATCH_CALL_FAILED}.
+	 * 
+	 * @param req
+	 * @param resp
+	 * @param request
+	 * @param binary
+	 * @throws IOException
+	 */
+	protected void doBatch(HttpServletRequest req, HttpServletResponse resp,
+			String request, boolean binary) throws IOException {
+		int limit = maxBatchCalls();
+		SimpleRPCRunnable[] runnables = new SimpleRPCRunnable[Math.max(limit, 0)];
+		int count = 0;
+		int start = 0;
+		while (start < request.length()) {
+			if (count >= limit) {
+				resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+						"Calls reach the limit of Java2Script Simple RPC batch!");
+				return;
+			}
+			int end = SimpleRPCRequest.nextBatchEntry(request, start);
+			if (end == -1) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+			runnables[count++] = getRunnableByRequest(request.substring(start, end));
+			start = end;
+		}
+		if (count == 0) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
 		
-		writer.write(serialize);
-		runnable.ajaxOut();
+		FutureTask<String>[] tasks = createBatchTasks(runnables, count, binary);
+		resp.setHeader("Pragma", "no-cache");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setDateHeader("Expires", 0);
+		if (binary) {
+			resp.setContentType("text/plain; charset=iso-8859-1");
+		} else {
+			resp.setContentType("text/plain; charset=utf-8");
+		}
+		PrintWriter writer = resp.getWriter();
+		for (int i = 0; i < count; i++) {
+			String serialize = null;
+			if (tasks[i] != null) {
+				tasks[i].run(); // run it here if it is not started yet
+				try {
+					serialize = tasks[i].get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+			if (serialize == null) {
+				writer.write(SimpleRPCRequest.BATCH_CALL_FAILED);
+			} else {
+				writer.write(serialize);
+			}
+			writer.flush(); // stream results back as they are ready
+			if (serialize != null) {
+				runnables[i].ajaxOut();
+			}
+		}
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private FutureTask<String>[] createBatchTasks(SimpleRPCRunnable[] runnables,
+			int count, final boolean binary) {
+		FutureTask<String>[] tasks = new FutureTask[count];
+		boolean parallel = supportBatchParallel();
+		for (int i = 0; i < count; i++) {
+			final SimpleRPCRunnable runnable = runnables[i];
+			if (runnable == null) {
+				continue;
+			}
+			tasks[i] = new FutureTask<String>(new Callable<String>() {
+				public String call() throws Exception {
+					return runAndSerialize(runnable, binary);
+				}
+			});
+			if (parallel) {
+				try {
+					SimpleThreadHelper.getExecutor().execute(tasks[i]);
+				} catch (RejectedExecutionException e) {
+					tasks[i].run();
+				}
+			}
+		}
+		return tasks;
 	}
 
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) 
 			throws ServletException, IOException {
+		if (supportCompression()) {
+			SimpleCompressedResponse compressed = SimpleCompressedResponse.wrap(req, resp,
+					minCompressionSize(), false);
+			if (compressed != null) {
+				try {
+					doGet(req, compressed);
+				} finally {
+					compressed.finish();
+				}
+				return;
+			}
+		}
 		String request = req.getQueryString();
 		// a quick check!
 		if (request == null || request.length() < 4) {
@@ -326,30 +655,8 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 			return;
 		}
-		SimpleRPCRunnable clonedRunnable = null;
-		try {
-			clonedRunnable = (SimpleRPCRunnable) runnable.clone();
-		} catch (CloneNotSupportedException e) {
-			//e.printStackTrace();
-		}
-		runnable.ajaxRun();
-		final String[] diffs = compareDiffs(runnable, clonedRunnable);
-		String serialize = runnable.serialize(new SimpleFilter() {
-		
-			public boolean accept(String field) {
-				for (int i = 0; i < diffs.length; i++) {
-					if (diffs[i].equals(field)) {
-						return true;
-					}
-				}
-				return false;
-			}
-
-			public boolean ignoreDefaultFields() {
-				return false;
-			}
-		
-		});
+		boolean binary = !isScriptReuest && isBinarySerialization(req);
+		String serialize = runAndSerialize(runnable, binary);
 		
 		resp.setHeader("Pragma", "no-cache");
 		resp.setHeader("Cache-Control", "no-cache");
@@ -371,7 +678,11 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 		}
 		
 		// normal text response
-		resp.setContentType("text/plain; charset=utf-8");
+		if (binary) {
+			resp.setContentType("text/plain; charset=iso-8859-1");
+		} else {
+			resp.setContentType("text/plain; charset=utf-8");
+		}
 		//resp.setCharacterEncoding("utf-8");
 		PrintWriter writer = resp.getWriter();
 		writer.write(serialize);
@@ -505,92 +816,47 @@ public class SimpleRPCHttpServlet extends HttpServlet {
 	}
 	
 	protected String[] compareDiffs(SimpleRPCRunnable runnable1, SimpleRPCRunnable runnable2) {
-		Set<String> diffSet = new HashSet<String>();
-		Set<Field> fieldSet = new HashSet<Field>();
-		Class<?> clazz = runnable1.getClass();
-		while(clazz != null && !"net.sf.j2s.ajax.SimpleSerializable".equals(clazz.getName())) {
-			Field[] fields = clazz.getDeclaredFields();
-			for (int i = 0; i < fields.length; i++) {
-				fieldSet.add(fields[i]);
-			}
-			clazz = clazz.getSuperclass();
-		}
-		Field[] fields = fieldSet.toArray(new Field[0]);
-		for (int i = 0; i < fields.length; i++) {
-			Field field = fields[i];
-			int modifiers = field.getModifiers();
-			if ((modifiers & (Modifier.PUBLIC | Modifier.PROTECTED)) != 0
-					&& (modifiers & Modifier.TRANSIENT) == 0
-					&& (modifiers & Modifier.STATIC) == 0) {
-				String name = field.getName();
-				Object field1 = null;
-				try {
-					field1 = field.get(runnable1);
-				} catch (IllegalArgumentException e1) {
-					//e1.printStackTrace();
-				} catch (IllegalAccessException e1) {
-					//e1.printStackTrace();
-				}
-				Object field2 = null;
+		return SimpleSerializableCodec.getCodec(runnable1).compareDiffs(runnable1, runnable2);
+	}
+
+	/*
+	 * Whether subclass has its own #compareDiffs, which should be called
+	 * with a cloned runnable.
+	 */
+	private boolean isCompareDiffsOverridden() {
+		if (compareDiffsOverridden == null) {
+			boolean overridden = false;
+			Class<?> clazz = getClass();
+			while (clazz != null && clazz != SimpleRPCHttpServlet.class) {
 				try {
-					field2 = field.get(runnable2);
-				} catch (IllegalArgumentException e) {
-					//e.printStackTrace();
-				} catch (IllegalAccessException e) {
-					//e.printStackTrace();
-				}
-				if (field1 == null) {
-					if (field2 != null) {
-						diffSet.add(name);
-					}
-				} else if (field1.getClass().getName().startsWith("[")) {
-					Class<?> type = field.getType();
-					if (type == float[].class) {
-						if (!Arrays.equals((float[]) field1, (float[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == double[].class) {
-						if (!Arrays.equals((double[]) field1, (double[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == int[].class) {
-						if (!Arrays.equals((int[]) field1, (int[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == long[].class) {
-						if (!Arrays.equals((long[]) field1, (long[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == short[].class) {
-						if (!Arrays.equals((short[]) field1, (short[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == byte[].class) {
-						if (!Arrays.equals((byte[]) field1, (byte[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == char[].class) {
-						if (!Arrays.equals((char[]) field1, (char[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == boolean[].class) {
-						if (!Arrays.equals((boolean[]) field1, (boolean[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == String[].class) {
-						if (!Arrays.equals((String[]) field1, (String[]) field2)) {
-							diffSet.add(name);
-						}
-					} else if (type == Object[].class) {
-						if (!Arrays.equals((Object[]) field1, (Object[]) field2)) {
-							diffSet.add(name);
-						}
-					}
-				} else if (!field1.equals(field2)) {
-					diffSet.add(name);
+					clazz.getDeclaredMethod("compareDiffs", SimpleRPCRunnable.class, SimpleRPCRunnable.class);
+					overridden = true;
+					break;
+				} catch (NoSuchMethodException e) {
+					clazz = clazz.getSuperclass();
 				}
 			}
+			compareDiffsOverridden = Boolean.valueOf(overridden);
 		}
-		return diffSet.toArray(new String[diffSet.size()]);
+		return compareDiffsOverridden.booleanValue();
 	}
+
+	/**
+	 * Release cached field metadata of classes loaded by this web
+	 * application, so that the application's class loader can be
+	 * unloaded on reloading. Metrics MBean registered by this servlet is
+	 * unregistered too.
+	 */
+	@Override
+	public void destroy() {
+		if (metricsRegistered) {
+			SimpleMetrics.unregisterMBean();
+			metricsRegistered = false;
+		}
+		latencies.clear();
+		SimpleSerializableCodec.removeCodecs(getClass().getClassLoader());
+		SimpleSerializable.removeConstructors(getClass().getClassLoader());
+		super.destroy();
+	}
+
 }
\ No newline at end of file
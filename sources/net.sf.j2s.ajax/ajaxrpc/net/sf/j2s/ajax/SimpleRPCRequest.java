@@ -13,6 +13,12 @@ package net.sf.j2s.ajax;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import net.sf.j2s.annotation.J2SIgnore;
 import net.sf.j2s.annotation.J2SNative;
@@ -30,12 +36,68 @@ public class SimpleRPCRequest {
 		public HttpRequest createRequest();
 		
 	}
+	
+	/**
+	 * Runnables queued within batching window, which are sent to the
+	 * same URL in one request.
+	 */
+	@J2SIgnore
+	static class Batch {
+		
+		final String url;
+		
+		final List<SimpleRPCRunnable> runnables = new ArrayList<SimpleRPCRunnable>();
+		
+		final StringBuffer content = new StringBuffer();
+		
+		Batch(String url) {
+			this.url = url;
+		}
+		
+	}
 
 	public static final int MODE_AJAX = 1;
 	public static final int MODE_LOCAL_JAVA_THREAD = 2;
 	
+	/**
+	 * Request header, with which Java clients ask for "WLB101" binary
+	 * serialization in responses.
+	 */
+	@J2SIgnore
+	public static final String HEADER_SERIALIZATION = "X-J2S-Serialization";
+	
+	@J2SIgnore
+	public static final String SERIALIZATION_BINARY = "WLB101";
+	
+	/**
+	 * Request header, with which Java clients send several runnables in
+	 * one request. Request content is serialized runnables one after
+	 * another, and response content is serialized diffs in the same
+	 * order, with {@link #BATCH_CALL_FAILED} for those failed runnables.
+	 */
+	@J2SIgnore
+	public static final String HEADER_BATCH = "X-J2S-Batch";
+	
+	@J2SIgnore
+	public static final char BATCH_CALL_FAILED = '-';
+	
 	private static int runningMode = MODE_LOCAL_JAVA_THREAD;
 	
+	@J2SIgnore
+	private static boolean binarySerialization = false;
+	
+	@J2SIgnore
+	private static long batchWindow = 0;
+	
+	@J2SIgnore
+	private static int batchLimit = 32;
+	
+	@J2SIgnore
+	private static Map<String, Batch> batches = new HashMap<String, Batch>();
+	
+	@J2SIgnore
+	private static Timer batchTimer;
+	
 	protected static IHttpRequestFactory requestFactory;
 	
 	static {
@@ -65,6 +127,70 @@ public class SimpleRPCRequest {
 		runningMode = MODE_LOCAL_JAVA_THREAD;
 	}
 	
+	/**
+	 * Use compact "WLB101" binary serialization for requests and responses
+	 * in AJAX mode. Server should be Java2Script servlets supporting it.
+	 * 
+	 * This method only makes sense for Java client not for
+	 * Java2Script client!
+	 * 
+	 * @param binary
+	 */
+	@J2SIgnore
+	public static void switchToBinarySerialization(boolean binary) {
+		binarySerialization = binary;
+	}
+	
+	@J2SIgnore
+	public static boolean isBinarySerialization() {
+		return binarySerialization;
+	}
+	
+	/**
+	 * Queue POST requests in AJAX mode for given milliseconds, and send
+	 * those queued for the same URL in one request. Server should be
+	 * Java2Script servlets supporting it.
+	 * 
+	 * This method only makes sense for Java client not for
+	 * Java2Script client!
+	 * 
+	 * @param window milliseconds, 0 to disable batching
+	 * @param limit maximum number of runnables in one request
+	 */
+	@J2SIgnore
+	public static void setBatchWindow(long window, int limit) {
+		batchWindow = window;
+		batchLimit = limit > 0 ? limit : 1;
+	}
+	
+	@J2SIgnore
+	public static long getBatchWindow() {
+		return batchWindow;
+	}
+	
+	/**
+	 * Serialize runnable for request, in binary format if it is enabled.
+	 * 
+	 * @param runnable
+	 * @return serialized string
+	 */
+	@J2SIgnore
+	static String serializeRequest(SimpleRPCRunnable runnable) {
+		return runnable.serialize(null, binarySerialization);
+	}
+	
+	/**
+	 * Ask server for binary responses if binary serialization is enabled.
+	 * 
+	 * @param request
+	 */
+	@J2SIgnore
+	static void prepareSerialization(HttpRequest request) {
+		if (binarySerialization) {
+			request.setRequestHeader(HEADER_SERIALIZATION, SERIALIZATION_BINARY);
+		}
+	}
+	
 	/**
 	 * Java2Script client will always requests in AJAX mode. 
 	 * @param runnable
@@ -75,7 +201,7 @@ public class SimpleRPCRequest {
 	public static void request(final SimpleRPCRunnable runnable) {
 		runnable.ajaxIn();
 		if (runningMode == MODE_LOCAL_JAVA_THREAD) {
-			(new Thread("Simple RPC Request") {
+			SimpleThreadHelper.runTask(new Runnable() {
 				public void run() {
 					try {
 						runnable.ajaxRun();
@@ -86,7 +212,7 @@ public class SimpleRPCRequest {
 					}
 					runnable.ajaxOut();
 				}
-			}).start();
+			}, "Simple RPC Request");
 		} else {
 			ajaxRequest(runnable);
 		}
@@ -128,10 +254,21 @@ public class SimpleRPCRequest {
 			url = "";
 		}
 		String method = runnable.getHttpMethod();
-		String serialize = runnable.serialize();
+		String serialize = null;
+		/**
+		 * @j2sNative
+		 * serialize = runnable.serialize();
+		 */ { serialize = serializeRequest(runnable); }
 		if (method == null) {
 			method = "POST";
 		}
+		/**
+		 * @j2sNative
+		 */ {
+			if (batchRequest(runnable, url, method, serialize)) {
+				return;
+			}
+		}
 		if (checkXSS(url, serialize, runnable)) {
 			return;
 		}
@@ -142,6 +279,9 @@ public class SimpleRPCRequest {
 		
 		final HttpRequest request = getRequest();
 		request.open(method, url, true);
+		/**
+		 * @j2sNative
+		 */ { prepareSerialization(request); }
 		request.registerOnReadyStateChange(new XHRCallbackAdapter() {
 			public void onLoaded() {
 				String responseText = request.getResponseText();
@@ -156,6 +296,125 @@ public class SimpleRPCRequest {
 		request.send(serialize);
 	}
 
+	/*
+	 * Queue given runnable if batching is enabled. Return false if it
+	 * should be sent in its own request.
+	 */
+	@J2SIgnore
+	private static boolean batchRequest(SimpleRPCRunnable runnable, String url,
+			String method, String serialize) {
+		if (batchWindow <= 0 || !"POST".equals(method.toUpperCase())) {
+			return false;
+		}
+		Batch batch = null;
+		boolean created = false;
+		boolean full = false;
+		synchronized (batches) {
+			batch = batches.get(url);
+			if (batch == null) {
+				batch = new Batch(url);
+				batches.put(url, batch);
+				created = true;
+			}
+			batch.runnables.add(runnable);
+			batch.content.append(serialize);
+			if (batch.runnables.size() >= batchLimit) {
+				batches.remove(url);
+				full = true;
+			}
+			if (created && !full) {
+				if (batchTimer == null) {
+					batchTimer = new Timer("Simple RPC Batch Timer", true);
+				}
+				final Batch b = batch;
+				batchTimer.schedule(new TimerTask() {
+					public void run() {
+						synchronized (batches) {
+							if (batches.get(b.url) != b) {
+								return; // already sent
+							}
+							batches.remove(b.url);
+						}
+						sendBatch(b);
+					}
+				}, batchWindow);
+			}
+		}
+		if (full) {
+			sendBatch(batch);
+		}
+		return true;
+	}
+	
+	@J2SIgnore
+	private static void sendBatch(Batch batch) {
+		final List<SimpleRPCRunnable> runnables = batch.runnables;
+		final HttpRequest request = getRequest();
+		request.open("POST", batch.url, true);
+		prepareSerialization(request);
+		request.setRequestHeader(HEADER_BATCH, String.valueOf(runnables.size()));
+		request.registerOnReadyStateChange(new XHRCallbackAdapter() {
+			public void onLoaded() {
+				String responseText = request.getResponseText();
+				int start = 0;
+				for (int i = 0; i < runnables.size(); i++) {
+					SimpleRPCRunnable runnable = runnables.get(i);
+					int end = responseText == null ? -1 : nextBatchEntry(responseText, start);
+					if (end == -1) {
+						runnable.ajaxFail(); // should seldom fail!
+						continue;
+					}
+					if (responseText.charAt(start) == BATCH_CALL_FAILED) {
+						runnable.ajaxFail();
+					} else {
+						runnable.deserialize(responseText, start);
+						runnable.ajaxOut();
+					}
+					start = end;
+				}
+			}
+		});
+		request.send(batch.content.toString());
+	}
+	
+	/**
+	 * Return the index of next entry in batch request or response.
+	 * 
+	 * @param str
+	 * @param start
+	 * @return index after given entry, or -1 if entry is malformed or not
+	 * completed
+	 */
+	@J2SIgnore
+	static int nextBatchEntry(String str, int start) {
+		int length = str.length();
+		if (start >= length) {
+			return -1;
+		}
+		if (str.charAt(start) == BATCH_CALL_FAILED) {
+			return start + 1;
+		}
+		// Format: WLL201ClassName#NNNNNNNN$SerializedData...
+		if (!str.startsWith("WL", start)) {
+			return -1;
+		}
+		int idx1 = str.indexOf('#', start) + 1;
+		int idx2 = str.indexOf('$', idx1);
+		if (idx1 == 0 || idx2 == -1 || idx2 == idx1) {
+			return -1;
+		}
+		long size = 0;
+		for (int i = idx1; i < idx2; i++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9' || size > length) {
+				return -1;
+			}
+			size = size * 10 + (c - '0');
+		}
+		long end = idx2 + 1 + size;
+		return end <= length ? (int) end : -1;
+	}
+	
 	protected static String adjustRequestURL(String method, String url, String serialize) {
 		if ("GET".equals(method.toUpperCase())) {
 			try {
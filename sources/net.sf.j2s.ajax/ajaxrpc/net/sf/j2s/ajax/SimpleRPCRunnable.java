@@ -11,6 +11,9 @@
 
 package net.sf.j2s.ajax;
 
+import java.util.BitSet;
+
+import net.sf.j2s.annotation.J2SIgnore;
 
 /**
  * @author zhou renjian
@@ -49,4 +52,42 @@ public abstract class SimpleRPCRunnable extends SimpleSerializable {
 	 */
 	public void ajaxFail() {};
 	
+	/*
+	 * Indices of fields marked by #markDirty, in the order of
+	 * SimpleSerializableCodec members
+	 */
+	@J2SIgnore
+	transient BitSet dirtyFields;
+	
+	/**
+	 * Whether this runnable marks all fields modified in #ajaxRun by
+	 * #markDirty. If true, servlet serializes only those marked fields
+	 * instead of comparing all fields with those before #ajaxRun.
+	 * 
+	 * @return false by default
+	 */
+	@J2SIgnore
+	protected boolean isDirtyTracking() {
+		return false;
+	}
+	
+	/**
+	 * Mark given field as modified, so it will be sent back to client.
+	 * Only works if #isDirtyTracking returns true.
+	 * 
+	 * @param fieldName
+	 * 
+	 * @j2sNative
+	 */
+	protected void markDirty(String fieldName) {
+		int index = SimpleSerializableCodec.getCodec(this).indexOf(fieldName);
+		if (index == -1) {
+			return;
+		}
+		if (dirtyFields == null) {
+			dirtyFields = new BitSet();
+		}
+		dirtyFields.set(index);
+	}
+	
 }
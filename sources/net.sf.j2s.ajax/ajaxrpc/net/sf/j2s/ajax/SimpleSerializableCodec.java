@@ -0,0 +1,1225 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Per-class codec of SimpleSerializable for Java side.
+ *
+ * Fields of a SimpleSerializable class are discovered by reflection only
+ * once, when the class is serialized or deserialized for the first time.
+ * Serializable fields, their type codes, the aliases from
+ * {@link SimpleSerializable#fieldMapping()} and the encoded name prefixes
+ * are kept, so later calls only read or write field values. The output
+ * is the same "WLL201" format as before.
+ *
+ * Only visible in Java. JavaScript side is implemented natively inside
+ * SimpleSerializable.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+class SimpleSerializableCodec {
+
+	static final char BASE_CHAR = 'B';
+
+	/*
+	 * Type codes of fields. Array types are marked by TYPE_ARRAY bit.
+	 */
+	static final int TYPE_FLOAT = 1;
+	static final int TYPE_DOUBLE = 2;
+	static final int TYPE_INT = 3;
+	static final int TYPE_LONG = 4;
+	static final int TYPE_SHORT = 5;
+	static final int TYPE_BYTE = 6;
+	static final int TYPE_CHAR = 7;
+	static final int TYPE_BOOLEAN = 8;
+	static final int TYPE_STRING = 9;
+	/*
+	 * Other types, which are not serialized but are still cloned and
+	 * compared. Only Object[] is considered as an array of such type.
+	 */
+	static final int TYPE_OBJECT = 10;
+	static final int TYPE_ARRAY = 0x10;
+
+	/**
+	 * Public or protected field with its cached type code and encoded name.
+	 */
+	static final class FieldCodec {
+
+		final Field field;
+
+		/**
+		 * Java field name, which is used by SimpleFilter.
+		 */
+		final String name;
+
+		/**
+		 * Field name on the wire, may be an alias from fieldMapping.
+		 */
+		final String alias;
+
+		/**
+		 * Pre-encoded name: (char) (baseChar + alias.length()) + alias
+		 */
+		final String nameStr;
+
+		final int type;
+
+		/**
+		 * Type string on the wire, e.g. "I" or "AI".
+		 */
+		final String typeStr;
+
+		/**
+		 * Pre-encoded name and type for "WLB101" format.
+		 */
+		final String binaryName;
+
+		/**
+		 * Index of this field inside the codec's member array.
+		 */
+		final int index;
+
+		FieldCodec(Field field, String alias, int type, int index) {
+			this.field = field;
+			this.name = field.getName();
+			this.alias = alias;
+			this.nameStr = (char) (BASE_CHAR + alias.length()) + alias;
+			this.type = type;
+			this.typeStr = typeString(type);
+			this.binaryName = SimpleBinaryCodec.encodeName(alias, type);
+			this.index = index;
+		}
+
+	}
+
+	/**
+	 * Filter accepting fields by their indices in the codec's member
+	 * array, which is checked without looking up field names.
+	 */
+	static final class FieldsFilter implements SimpleFilter {
+
+		final BitSet indices;
+
+		FieldsFilter(BitSet indices) {
+			this.indices = indices;
+		}
+
+		public boolean accept(String field) {
+			return true; // checked by indices
+		}
+
+		public boolean ignoreDefaultFields() {
+			return false;
+		}
+
+	}
+
+	private static ConcurrentHashMap<Class<?>, SimpleSerializableCodec> codecs = new ConcurrentHashMap<Class<?>, SimpleSerializableCodec>();
+
+	/**
+	 * Serialized class name, with anonymous class resolved to its super class.
+	 */
+	final String clazzName;
+
+	/**
+	 * "WLL201" + clazzName + "#"
+	 */
+	final String head;
+
+	/**
+	 * All public or protected, non-static and non-transient fields in
+	 * hierarchical order, sub class first.
+	 */
+	final FieldCodec[] members;
+
+	/**
+	 * Serializable fields in hierarchical order, a subset of members.
+	 */
+	final FieldCodec[] fields;
+
+	/**
+	 * Field name on the wire (alias) to field codec.
+	 */
+	final Map<String, FieldCodec> wireFields;
+
+	/**
+	 * Java field name to field codec.
+	 */
+	final Map<String, FieldCodec> namedFields;
+
+	/**
+	 * Whether fields[i] is the field mapped by its alias in wireFields.
+	 */
+	private final boolean[] aliasOwners;
+
+	/**
+	 * Whether fields[i] is the field mapped by its Java name in namedFields.
+	 */
+	private final boolean[] nameOwners;
+
+	private SimpleSerializableCodec(Class<?> clazz, String[] fMap) {
+		String name = clazz.getName();
+		Class<?> clzz = clazz;
+		int idx = -1;
+		while ((idx = name.lastIndexOf('$')) != -1) {
+			if (name.length() > idx + 1) {
+				char ch = name.charAt(idx + 1);
+				if (ch < '0' || ch > '9') { // not a number
+					break; // inner class
+				}
+			}
+			clzz = clzz.getSuperclass();
+			if (clzz == null) {
+				break; // should never happen!
+			}
+			name = clzz.getName();
+		}
+		clazzName = name;
+		head = "WLL201" + clazzName + "#";
+
+		List<FieldCodec> memberList = new ArrayList<FieldCodec>();
+		List<FieldCodec> list = new ArrayList<FieldCodec>();
+		wireFields = new HashMap<String, FieldCodec>();
+		namedFields = new HashMap<String, FieldCodec>();
+		clzz = clazz;
+		while (clzz != null && !"net.sf.j2s.ajax.SimpleSerializable".equals(clzz.getName())) {
+			Field[] declaredFields = clzz.getDeclaredFields();
+			for (int i = 0; i < declaredFields.length; i++) {
+				Field field = declaredFields[i];
+				int modifiers = field.getModifiers();
+				if ((modifiers & (Modifier.PUBLIC | Modifier.PROTECTED)) == 0
+						|| (modifiers & Modifier.TRANSIENT) != 0
+						|| (modifiers & Modifier.STATIC) != 0) {
+					continue;
+				}
+				int type = typeOf(field.getType());
+				try {
+					field.setAccessible(true);
+				} catch (SecurityException e) {
+					// keep Java language access checks
+				}
+				String fieldName = field.getName();
+				String alias = fieldName;
+				if (fMap != null && fMap.length > 1) {
+					for (int j = 0; j < fMap.length / 2; j++) {
+						if (fieldName.equals(fMap[j + j])) {
+							String newName = fMap[j + j + 1];
+							if (newName != null && newName.length() > 0) {
+								alias = newName;
+							}
+							break;
+						}
+					}
+				}
+				FieldCodec fc = new FieldCodec(field, alias, type, memberList.size());
+				memberList.add(fc);
+				if (type == 0 || (type & ~TYPE_ARRAY) == TYPE_OBJECT) {
+					continue; // unknown or unsupported types are not serialized
+				}
+				list.add(fc);
+				if (!wireFields.containsKey(alias)) {
+					wireFields.put(alias, fc);
+				}
+				if (!namedFields.containsKey(fieldName)) {
+					namedFields.put(fieldName, fc);
+				}
+			}
+			clzz = clzz.getSuperclass();
+		}
+		members = memberList.toArray(new FieldCodec[memberList.size()]);
+		fields = list.toArray(new FieldCodec[list.size()]);
+		aliasOwners = new boolean[fields.length];
+		nameOwners = new boolean[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			FieldCodec fc = fields[i];
+			aliasOwners[i] = wireFields.get(fc.alias) == fc;
+			nameOwners[i] = namedFields.get(fc.name) == fc;
+		}
+	}
+
+	/**
+	 * Return codec of the given object's class. Codec is created on first
+	 * request and cached later.
+	 *
+	 * Field mapping is read from the given object, so all instances of the
+	 * same class should return the same {@link SimpleSerializable#fieldMapping()}.
+	 *
+	 * @param ss
+	 * @return codec of the object's class
+	 */
+	static SimpleSerializableCodec getCodec(SimpleSerializable ss) {
+		Class<?> clazz = ss.getClass();
+		SimpleSerializableCodec codec = codecs.get(clazz);
+		if (codec == null) {
+			codec = new SimpleSerializableCodec(clazz, ss.fieldMapping());
+			SimpleSerializableCodec existed = codecs.putIfAbsent(clazz, codec);
+			if (existed != null) {
+				codec = existed;
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * Remove cached codecs of those classes loaded by the given class
+	 * loader or its descendant loaders, so classes can be unloaded.
+	 * 
+	 * Java 1.5 has no ClassValue, codecs are kept in a static map. Web
+	 * applications should call this method when they are stopped or
+	 * reloaded. See SimpleRPCHttpServlet#destroy.
+	 * 
+	 * @param loader class loader, or null to remove all codecs
+	 */
+	static void removeCodecs(ClassLoader loader) {
+		for (Iterator<Class<?>> itr = codecs.keySet().iterator(); itr.hasNext();) {
+			Class<?> clazz = itr.next();
+			if (loader == null) {
+				itr.remove();
+				continue;
+			}
+			ClassLoader l = clazz.getClassLoader();
+			while (l != null) {
+				if (l == loader) {
+					itr.remove();
+					break;
+				}
+				l = l.getParent();
+			}
+		}
+	}
+
+	static int typeOf(Class<?> type) {
+		if (type == float.class) return TYPE_FLOAT;
+		if (type == double.class) return TYPE_DOUBLE;
+		if (type == int.class) return TYPE_INT;
+		if (type == long.class) return TYPE_LONG;
+		if (type == short.class) return TYPE_SHORT;
+		if (type == byte.class) return TYPE_BYTE;
+		if (type == char.class) return TYPE_CHAR;
+		if (type == boolean.class) return TYPE_BOOLEAN;
+		if (type == String.class) return TYPE_STRING;
+		if (type == float[].class) return TYPE_ARRAY | TYPE_FLOAT;
+		if (type == double[].class) return TYPE_ARRAY | TYPE_DOUBLE;
+		if (type == int[].class) return TYPE_ARRAY | TYPE_INT;
+		if (type == long[].class) return TYPE_ARRAY | TYPE_LONG;
+		if (type == short[].class) return TYPE_ARRAY | TYPE_SHORT;
+		if (type == byte[].class) return TYPE_ARRAY | TYPE_BYTE;
+		if (type == char[].class) return TYPE_ARRAY | TYPE_CHAR;
+		if (type == boolean[].class) return TYPE_ARRAY | TYPE_BOOLEAN;
+		if (type == String[].class) return TYPE_ARRAY | TYPE_STRING;
+		if (type == Object[].class) return TYPE_ARRAY | TYPE_OBJECT;
+		if (type.isArray()) return 0;
+		return TYPE_OBJECT;
+	}
+
+	static String typeString(int type) {
+		String str = null;
+		switch (type & ~TYPE_ARRAY) {
+		case TYPE_FLOAT: str = "F"; break;
+		case TYPE_DOUBLE: str = "D"; break;
+		case TYPE_INT: str = "I"; break;
+		case TYPE_LONG: str = "L"; break;
+		case TYPE_SHORT: str = "S"; break;
+		case TYPE_BYTE: str = "B"; break;
+		case TYPE_CHAR: str = "C"; break;
+		case TYPE_BOOLEAN: str = "b"; break;
+		case TYPE_STRING: str = (type & TYPE_ARRAY) != 0 ? "X" : "s"; break; // special
+		default: return null; // not serialized
+		}
+		if ((type & TYPE_ARRAY) != 0) {
+			return "A" + str;
+		}
+		return str;
+	}
+
+	/**
+	 * Serialize given object into "WLB101" binary string.
+	 *
+	 * @param ss
+	 * @param filter
+	 * @return serialized string, whose chars are all in range 0-255
+	 * @see SimpleBinaryCodec
+	 */
+	String serializeBinary(SimpleSerializable ss, SimpleFilter filter) {
+		return SimpleBinaryCodec.serialize(this, ss, filter);
+	}
+
+	/**
+	 * Serialize given object into "WLL201" string.
+	 *
+	 * @param ss
+	 * @param filter
+	 * @return serialized string
+	 */
+	String serialize(SimpleSerializable ss, SimpleFilter filter) {
+		StringBuffer buffer = new StringBuffer();
+		/*
+		 * "WLL" is used to mark Simple RPC, 100 is version 1.0.0,
+		 * # is used to mark the the beginning of serialized data
+		 */
+		buffer.append(head);
+		buffer.append("00000000$"); // later the number of size will be updated!
+		int headSize = buffer.length();
+
+		boolean ignoring = (filter == null || filter.ignoreDefaultFields());
+		BitSet indices = filter instanceof FieldsFilter ? ((FieldsFilter) filter).indices : null;
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				FieldCodec fc = fields[i];
+				if (indices != null ? !indices.get(fc.index)
+						: filter != null && !filter.accept(fc.name)) continue;
+				serializeField(buffer, ss, fc, ignoring);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		int size = buffer.length();
+		if (size > 0x1000000) { // 16 * 1024 * 1024
+			throw new RuntimeException("Data size reaches the limit of Java2Script Simple RPC!");
+		}
+		String sizeStr = String.valueOf(size - headSize);
+		buffer.replace(headSize - sizeStr.length() - 1, headSize - 1, sizeStr); // update size!
+		return buffer.toString();
+	}
+
+	private static void serializeField(StringBuffer buffer, SimpleSerializable ss,
+			FieldCodec fc, boolean ignoring) throws IllegalAccessException, UnsupportedEncodingException {
+		Field field = fc.field;
+		String value = null;
+		switch (fc.type) {
+		case TYPE_FLOAT: {
+			float f = field.getFloat(ss);
+			if (f == 0.0 && ignoring) return;
+			value = String.valueOf(f);
+			break;
+		}
+		case TYPE_DOUBLE: {
+			double d = field.getDouble(ss);
+			if (d == 0.0d && ignoring) return;
+			value = String.valueOf(d);
+			break;
+		}
+		case TYPE_INT: {
+			int n = field.getInt(ss);
+			if (n == 0 && ignoring) return;
+			value = String.valueOf(n);
+			break;
+		}
+		case TYPE_LONG: {
+			long l = field.getLong(ss);
+			if (l == 0L && ignoring) return;
+			value = String.valueOf(l);
+			break;
+		}
+		case TYPE_SHORT: {
+			short s = field.getShort(ss);
+			if (s == 0 && ignoring) return;
+			value = String.valueOf(s);
+			break;
+		}
+		case TYPE_BYTE: {
+			byte b = field.getByte(ss);
+			if (b == 0 && ignoring) return;
+			value = String.valueOf(b);
+			break;
+		}
+		case TYPE_CHAR: {
+			int c = 0 + field.getChar(ss);
+			if (c == 0 && ignoring) return;
+			value = String.valueOf(c);
+			break;
+		}
+		case TYPE_BOOLEAN: {
+			boolean b = field.getBoolean(ss);
+			if (b == false && ignoring) return;
+			value = b ? "1" : "0";
+			break;
+		}
+		case TYPE_STRING: {
+			String s = (String) field.get(ss);
+			if (s == null && ignoring) return;
+			buffer.append(fc.nameStr);
+			serializeString(buffer, s);
+			return;
+		}
+		default: { // Array ...
+			Object array = field.get(ss);
+			if (array == null && ignoring) return;
+			buffer.append(fc.nameStr);
+			buffer.append(fc.typeStr);
+			if (array == null) {
+				buffer.append((char) (BASE_CHAR - 1));
+			} else {
+				serializeArray(buffer, fc.type & ~TYPE_ARRAY, array);
+			}
+			return;
+		}
+		}
+		buffer.append(fc.nameStr);
+		buffer.append(fc.typeStr);
+		buffer.append((char) (BASE_CHAR + value.length()));
+		buffer.append(value);
+	}
+
+	private static void serializeArray(StringBuffer buffer, int type, Object array)
+			throws UnsupportedEncodingException {
+		switch (type) {
+		case TYPE_FLOAT: {
+			float[] fs = (float[]) array;
+			serializeLength(buffer, fs.length);
+			for (int j = 0; j < fs.length; j++) {
+				appendValue(buffer, String.valueOf(fs[j]));
+			}
+			break;
+		}
+		case TYPE_DOUBLE: {
+			double[] ds = (double[]) array;
+			serializeLength(buffer, ds.length);
+			for (int j = 0; j < ds.length; j++) {
+				appendValue(buffer, String.valueOf(ds[j]));
+			}
+			break;
+		}
+		case TYPE_INT: {
+			int[] ns = (int[]) array;
+			serializeLength(buffer, ns.length);
+			for (int j = 0; j < ns.length; j++) {
+				appendValue(buffer, String.valueOf(ns[j]));
+			}
+			break;
+		}
+		case TYPE_LONG: {
+			long[] ls = (long[]) array;
+			serializeLength(buffer, ls.length);
+			for (int j = 0; j < ls.length; j++) {
+				appendValue(buffer, String.valueOf(ls[j]));
+			}
+			break;
+		}
+		case TYPE_SHORT: {
+			short[] ss = (short[]) array;
+			serializeLength(buffer, ss.length);
+			for (int j = 0; j < ss.length; j++) {
+				appendValue(buffer, String.valueOf(ss[j]));
+			}
+			break;
+		}
+		case TYPE_BYTE: {
+			byte[] bs = (byte[]) array;
+			serializeLength(buffer, bs.length);
+			for (int j = 0; j < bs.length; j++) {
+				appendValue(buffer, String.valueOf(bs[j]));
+			}
+			break;
+		}
+		case TYPE_CHAR: {
+			char[] cs = (char[]) array;
+			serializeLength(buffer, cs.length);
+			for (int j = 0; j < cs.length; j++) {
+				appendValue(buffer, String.valueOf((int) cs[j]));
+			}
+			break;
+		}
+		case TYPE_BOOLEAN: {
+			boolean[] bs = (boolean[]) array;
+			serializeLength(buffer, bs.length);
+			for (int j = 0; j < bs.length; j++) {
+				appendValue(buffer, bs[j] ? "1" : "0");
+			}
+			break;
+		}
+		case TYPE_STRING: {
+			String[] ss = (String[]) array;
+			serializeLength(buffer, ss.length);
+			for (int j = 0; j < ss.length; j++) {
+				serializeString(buffer, ss[j]);
+			}
+			break;
+		}
+		}
+	}
+
+	private static void appendValue(StringBuffer buffer, String value) {
+		buffer.append((char) (BASE_CHAR + value.length()));
+		buffer.append(value);
+	}
+
+	static void serializeLength(StringBuffer buffer, int length) {
+		if (length > 52) {
+			if (length > 0x4000) { // 16 * 1024
+				throw new RuntimeException("Array size reaches the limit of Java2Script Simple RPC!");
+			}
+			buffer.append((char) (BASE_CHAR - 2));
+			String value = String.valueOf(length);
+			buffer.append((char) (BASE_CHAR + value.length()));
+			buffer.append(value);
+		} else {
+			buffer.append((char) (BASE_CHAR + length));
+		}
+	}
+
+	static void serializeString(StringBuffer buffer, String s) throws UnsupportedEncodingException {
+		if (s != null) {
+			byte[] bytes = s.getBytes("utf-8");
+			if (s.length() != bytes.length) {
+				buffer.append('u');
+				//s = new String(bytes, "iso-8859-1");
+				s = Base64.byteArrayToBase64(bytes);
+			} else {
+				buffer.append('s');
+			}
+			int l4 = s.length();
+			if (l4 > 52) {
+				buffer.append((char) (BASE_CHAR - 2));
+				String value = String.valueOf(l4);
+				buffer.append((char) (BASE_CHAR + value.length()));
+				buffer.append(value);
+			} else {
+				buffer.append((char) (BASE_CHAR + l4));
+			}
+			buffer.append(s);
+		} else {
+			buffer.append('s');
+			buffer.append((char) (BASE_CHAR - 1));
+		}
+	}
+
+	/**
+	 * Copy array fields of the source object into new arrays of the cloned
+	 * object, so the cloned object does not share arrays with the source.
+	 * 
+	 * @param src
+	 * @param clone object created by Object#clone of the source object
+	 */
+	void cloneArrays(SimpleSerializable src, Object clone) {
+		for (int i = 0; i < members.length; i++) {
+			FieldCodec fc = members[i];
+			if ((fc.type & TYPE_ARRAY) == 0) {
+				continue;
+			}
+			Object value = null;
+			try {
+				value = fc.field.get(src);
+			} catch (Exception e1) {
+				//e1.printStackTrace();
+			}
+			if (value == null) {
+				continue;
+			}
+			try {
+				fc.field.set(clone, copyArray(fc.type, value));
+			} catch (Exception e) {
+				//e.printStackTrace();
+			}
+		}
+	}
+
+	private static Object copyArray(int type, Object value) {
+		switch (type & ~TYPE_ARRAY) {
+		case TYPE_FLOAT: return ((float[]) value).clone();
+		case TYPE_DOUBLE: return ((double[]) value).clone();
+		case TYPE_INT: return ((int[]) value).clone();
+		case TYPE_LONG: return ((long[]) value).clone();
+		case TYPE_SHORT: return ((short[]) value).clone();
+		case TYPE_BYTE: return ((byte[]) value).clone();
+		case TYPE_CHAR: return ((char[]) value).clone();
+		case TYPE_BOOLEAN: return ((boolean[]) value).clone();
+		case TYPE_STRING: return ((String[]) value).clone();
+		case TYPE_OBJECT: return ((Object[]) value).clone();
+		}
+		return null;
+	}
+
+	/**
+	 * Take values of all members of the given object, with arrays copied,
+	 * so the object can be compared later without being cloned.
+	 * 
+	 * @param ss
+	 * @return values in the order of members
+	 * @see #compareSnapshot(SimpleSerializable, Object[])
+	 */
+	Object[] snapshot(SimpleSerializable ss) {
+		Object[] values = new Object[members.length];
+		for (int i = 0; i < members.length; i++) {
+			FieldCodec fc = members[i];
+			Object value = null;
+			try {
+				value = fc.field.get(ss);
+			} catch (Exception e) {
+				//e.printStackTrace();
+			}
+			if (value != null && (fc.type & TYPE_ARRAY) != 0) {
+				value = copyArray(fc.type, value);
+			}
+			values[i] = value;
+		}
+		return values;
+	}
+
+	/**
+	 * Compare members of the given object with its snapshot.
+	 * 
+	 * @param ss
+	 * @param snapshot
+	 * @return indices of those members which are different
+	 */
+	BitSet compareSnapshot(SimpleSerializable ss, Object[] snapshot) {
+		BitSet diffs = new BitSet(members.length);
+		for (int i = 0; i < members.length; i++) {
+			FieldCodec fc = members[i];
+			Object value = null;
+			try {
+				value = fc.field.get(ss);
+			} catch (Exception e) {
+				//e.printStackTrace();
+			}
+			if (!valueEquals(fc.type, value, snapshot[i])) {
+				diffs.set(i);
+			}
+		}
+		return diffs;
+	}
+
+	/**
+	 * Return index of the given field in members.
+	 * 
+	 * @param fieldName Java field name
+	 * @return index or -1 if field is not serializable
+	 */
+	int indexOf(String fieldName) {
+		FieldCodec fc = namedFields.get(fieldName);
+		return fc == null ? -1 : fc.index;
+	}
+
+	/**
+	 * Compare fields of two objects of the same class.
+	 * 
+	 * @param obj1
+	 * @param obj2 may be null
+	 * @return names of those fields which are different
+	 */
+	String[] compareDiffs(SimpleSerializable obj1, SimpleSerializable obj2) {
+		Set<String> diffSet = new HashSet<String>();
+		for (int i = 0; i < members.length; i++) {
+			FieldCodec fc = members[i];
+			Object field1 = null;
+			try {
+				field1 = fc.field.get(obj1);
+			} catch (Exception e1) {
+				//e1.printStackTrace();
+			}
+			Object field2 = null;
+			if (obj2 != null) {
+				try {
+					field2 = fc.field.get(obj2);
+				} catch (Exception e) {
+					//e.printStackTrace();
+				}
+			}
+			if (!valueEquals(fc.type, field1, field2)) {
+				diffSet.add(fc.name);
+			}
+		}
+		return diffSet.toArray(new String[diffSet.size()]);
+	}
+
+	private static boolean valueEquals(int type, Object value1, Object value2) {
+		if (value1 == null) {
+			return value2 == null;
+		} else if (value1.getClass().isArray()) {
+			return arrayEquals(type, value1, value2);
+		}
+		return value1.equals(value2);
+	}
+
+	/*
+	 * Arrays of unknown types are considered as equal.
+	 */
+	private static boolean arrayEquals(int type, Object a1, Object a2) {
+		if ((type & TYPE_ARRAY) == 0) {
+			return true;
+		}
+		switch (type & ~TYPE_ARRAY) {
+		case TYPE_FLOAT: return Arrays.equals((float[]) a1, (float[]) a2);
+		case TYPE_DOUBLE: return Arrays.equals((double[]) a1, (double[]) a2);
+		case TYPE_INT: return Arrays.equals((int[]) a1, (int[]) a2);
+		case TYPE_LONG: return Arrays.equals((long[]) a1, (long[]) a2);
+		case TYPE_SHORT: return Arrays.equals((short[]) a1, (short[]) a2);
+		case TYPE_BYTE: return Arrays.equals((byte[]) a1, (byte[]) a2);
+		case TYPE_CHAR: return Arrays.equals((char[]) a1, (char[]) a2);
+		case TYPE_BOOLEAN: return Arrays.equals((boolean[]) a1, (boolean[]) a2);
+		case TYPE_STRING: return Arrays.equals((String[]) a1, (String[]) a2);
+		case TYPE_OBJECT: return Arrays.equals((Object[]) a1, (Object[]) a2);
+		}
+		return true;
+	}
+
+	/**
+	 * Deserialize given string into the given object.
+	 *
+	 * The string is parsed by a cursor. Field names are matched against
+	 * cached names without creating strings, and numbers are parsed in
+	 * place. Only string values and float or double values are copied.
+	 *
+	 * @param ss
+	 * @param str
+	 * @param start
+	 * @return whether given string is deserialized as expected or not,
+	 * false if given string is truncated or malformed
+	 */
+	boolean deserialize(SimpleSerializable ss, final CharSequence str, int start) {
+		if (str == null || start < 0) return false;
+		int strLength = str.length();
+		int length = strLength - start;
+		if (length > 7 && startsWith(str, start, SimpleBinaryCodec.HEAD)) {
+			return SimpleBinaryCodec.deserialize(this, ss, str, start);
+		}
+		if (length <= 7 || !startsWith(str, start, "WLL")) return false; // Should throw exception!
+		int index = indexOf(str, '#', start);
+		if (index == -1) return false; // Should throw exception!
+		index++;
+		if (index >= strLength) return false; // may be empty string!
+
+		int size = 0;
+		char nextChar = str.charAt(index);
+		if (nextChar >= '0' && nextChar <= '9') {
+			// have size!
+			int last = index;
+			index = indexOf(str, '$', last);
+			if (index == -1) return false; // Should throw exception!
+			for (int i = last + 1; i < index; i++) {
+				char c = str.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+				size = size * 10 + (c - '0');
+			}
+			// all fields are in their default values or no fields
+			if (size == 0) return true;
+			index++;
+			// may be empty string or not enough string!
+			if (size > strLength - index) return false;
+		}
+
+		try {
+			return readFields(ss, str, index, index + size);
+		} catch (IndexOutOfBoundsException e) {
+			return false; // truncated
+		} catch (RuntimeException e) {
+			/*
+			 * Malformed number or array size over the limit. Keep it here
+			 * so servlets, pipes and cluster receivers may go on.
+			 */
+			System.out.println("Parsing: " + str);
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Read fields of "WLL" string in the given range. Runtime exceptions
+	 * are thrown for truncated or malformed string.
+	 */
+	private boolean readFields(SimpleSerializable ss, CharSequence str, int index, int end) {
+		int strLength = str.length();
+		int next = 0; // fields are usually in the same order as serialized
+		while (index < strLength && index < end) {
+			int l1 = str.charAt(index++) - BASE_CHAR;
+			if (l1 < 0) return true;
+			int nameStart = index;
+			int found = -1;
+			while (true) {
+				found = findField(str, nameStart, index + l1, next);
+				if (found != -1 || nameStart == index + l1 || str.charAt(nameStart) != '$') break;
+				nameStart++;
+			}
+			FieldCodec fc = null;
+			if (found != -1) {
+				fc = fields[found];
+				next = found + 1;
+			}
+			index += l1;
+			char c2 = str.charAt(index++);
+			if (c2 == 'A') {
+				c2 = str.charAt(index++);
+				int l2 = str.charAt(index++) - BASE_CHAR;
+				if (l2 < 0 && l2 != -2) {
+					if (fc == null) {
+						continue;
+					}
+					try {
+						fc.field.set(ss, null);
+					} catch (Exception e) {
+						System.out.println("Parsing: " + str);
+						e.printStackTrace();
+					}
+					continue;
+				}
+				if (l2 == -2) {
+					int l3 = str.charAt(index++) - BASE_CHAR;
+					if (l3 < 0) return true;
+					l2 = parseInt(str, index, index + l3);
+					if (l2 > 0x4000) { // 16 * 1024
+						/*
+						 * Some malicious string may try to allocate huge size of array!
+						 * Limit the size of array here!
+						 */
+						throw new RuntimeException("Array size reaches the limit of Java2Script Simple RPC!");
+					}
+					index += l3;
+				}
+				Object array = fc == null ? null : newArray(c2, l2);
+				Exception error = null;
+				for (int i = 0; i < l2; i++) {
+					char c4 = str.charAt(index++);
+					int from = index;
+					int to = -1;
+					if (c2 != 'X') {
+						int l3 = c4 - BASE_CHAR;
+						if (l3 >= 0) {
+							to = index + l3;
+						}
+					} else {
+						int l3 = str.charAt(index++) - BASE_CHAR;
+						from = index;
+						if (l3 >= 0) {
+							to = index + l3;
+						} else if (l3 == -2) {
+							int l4 = str.charAt(index++) - BASE_CHAR;
+							if (l4 < 0) return true;
+							int l5 = parseInt(str, index, index + l4);
+							if (l5 < 0) return true;
+							from = index + l4;
+							to = from + l5;
+						}
+					}
+					if (to == -1) {
+						continue; // null
+					}
+					index = to;
+					if (array == null) {
+						continue;
+					}
+					try {
+						setElement(array, c2, c4, i, str, from, to);
+					} catch (Exception e) {
+						error = e;
+						array = null;
+					}
+				}
+				if (error != null) {
+					System.out.println("Parsing: " + str);
+					error.printStackTrace();
+				} else if (array != null) {
+					try {
+						fc.field.set(ss, array);
+					} catch (Exception e) {
+						System.out.println("Parsing: " + str);
+						e.printStackTrace();
+					}
+				}
+			} else {
+				int l2 = str.charAt(index++) - BASE_CHAR;
+				int from = index;
+				int to = -1;
+				if (l2 >= 0) {
+					to = index + l2;
+				} else if (l2 == -2) {
+					int l3 = str.charAt(index++) - BASE_CHAR;
+					if (l3 < 0) return true;
+					int l4 = parseInt(str, index, index + l3);
+					if (l4 < 0) return true;
+					from = index + l3;
+					to = from + l4;
+				}
+				if (to != -1) {
+					index = to;
+				}
+				if (fc == null) {
+					continue;
+				}
+				try {
+					setValue(ss, fc.field, c2, str, from, to);
+				} catch (Exception e) {
+					System.out.println("Parsing: " + (to == -1 ? null : str.subSequence(from, to)) + "\r\n" + str);
+					e.printStackTrace();
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Field name on the wire is an alias if it is mapped, or the Java field
+	 * name otherwise.
+	 */
+	FieldCodec lookupField(String wireName) {
+		FieldCodec fc = wireFields.get(wireName);
+		if (fc == null) {
+			fc = namedFields.get(wireName);
+		}
+		return fc;
+	}
+
+	/**
+	 * Find field by the wire name in the given range, the same as
+	 * {@link #lookupField(String)} but without creating a string.
+	 *
+	 * @param str
+	 * @param from
+	 * @param to
+	 * @param next index of the expected field, usually the one after the
+	 * last found field
+	 * @return index of the field in fields, or -1
+	 */
+	int findField(CharSequence str, int from, int to, int next) {
+		if (next < fields.length && aliasOwners[next]
+				&& regionEquals(str, from, to, fields[next].alias)) {
+			return next;
+		}
+		for (int i = 0; i < fields.length; i++) {
+			if (aliasOwners[i] && regionEquals(str, from, to, fields[i].alias)) {
+				return i;
+			}
+		}
+		for (int i = 0; i < fields.length; i++) {
+			if (nameOwners[i] && regionEquals(str, from, to, fields[i].name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static boolean regionEquals(CharSequence str, int from, int to, String s) {
+		int length = s.length();
+		if (to - from != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (str.charAt(from + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean startsWith(CharSequence str, int from, String prefix) {
+		int length = prefix.length();
+		if (str.length() - from < length) {
+			return false;
+		}
+		return regionEquals(str, from, from + length, prefix);
+	}
+
+	static int indexOf(CharSequence str, char c, int from) {
+		if (str instanceof String) {
+			return ((String) str).indexOf(c, from);
+		}
+		int length = str.length();
+		for (int i = from; i < length; i++) {
+			if (str.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse decimal integer in the given range without creating a string.
+	 *
+	 * @throws NumberFormatException
+	 */
+	static int parseInt(CharSequence str, int from, int to) {
+		long value = parseLong(str, from, to);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Value out of range: " + str.subSequence(from, to));
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Parse decimal long in the given range without creating a string.
+	 *
+	 * @throws NumberFormatException
+	 */
+	static long parseLong(CharSequence str, int from, int to) {
+		if (from >= to) {
+			throw new NumberFormatException("Empty number");
+		}
+		boolean negative = false;
+		int i = from;
+		char first = str.charAt(i);
+		if (first == '-' || first == '+') {
+			negative = (first == '-');
+			i++;
+			if (i == to) {
+				throw new NumberFormatException("For input string: " + str.subSequence(from, to));
+			}
+		}
+		// accumulate negatively, so Long.MIN_VALUE can be parsed
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = str.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || value < (limit + digit) / 10) {
+				throw new NumberFormatException("For input string: " + str.subSequence(from, to));
+			}
+			value = value * 10 - digit;
+		}
+		return negative ? value : -value;
+	}
+
+	private static Object newArray(char type, int length) {
+		switch (type) {
+		case 'F': return new float[length];
+		case 'D': return new double[length];
+		case 'I': return new int[length];
+		case 'L': return new long[length];
+		case 'S': return new short[length];
+		case 'B': return new byte[length];
+		case 'C': return new char[length];
+		case 'b': return new boolean[length];
+		case 'X': return new String[length];
+		}
+		return null;
+	}
+
+	private static void setElement(Object array, char type, char stringType, int i,
+			CharSequence str, int from, int to) throws UnsupportedEncodingException {
+		switch (type) {
+		case 'F':
+			((float[]) array)[i] = Float.parseFloat(str.subSequence(from, to).toString());
+			break;
+		case 'D':
+			((double[]) array)[i] = Double.parseDouble(str.subSequence(from, to).toString());
+			break;
+		case 'I':
+			((int[]) array)[i] = parseInt(str, from, to);
+			break;
+		case 'L':
+			((long[]) array)[i] = parseLong(str, from, to);
+			break;
+		case 'S':
+			((short[]) array)[i] = toShort(parseInt(str, from, to));
+			break;
+		case 'B':
+			((byte[]) array)[i] = toByte(parseInt(str, from, to));
+			break;
+		case 'C':
+			((char[]) array)[i] = (char) parseInt(str, from, to);
+			break;
+		case 'b':
+			if (to > from) {
+				char c = str.charAt(from);
+				((boolean[]) array)[i] = (c == '1' || c == 't');
+			}
+			break;
+		case 'X':
+			((String[]) array)[i] = decodeString(stringType, str, from, to);
+			break;
+		}
+	}
+
+	private static void setValue(SimpleSerializable ss, Field field, char type,
+			CharSequence str, int from, int to)
+			throws IllegalAccessException, UnsupportedEncodingException {
+		if (to == -1) { // null
+			if (type == 's' || type == 'u' || type == 'U') {
+				field.set(ss, null);
+			}
+			return;
+		}
+		switch (type) {
+		case 'F':
+			field.setFloat(ss, Float.parseFloat(str.subSequence(from, to).toString()));
+			break;
+		case 'D':
+			field.setDouble(ss, Double.parseDouble(str.subSequence(from, to).toString()));
+			break;
+		case 'I':
+			field.setInt(ss, parseInt(str, from, to));
+			break;
+		case 'L':
+			field.setLong(ss, parseLong(str, from, to));
+			break;
+		case 'S':
+			field.setShort(ss, toShort(parseInt(str, from, to)));
+			break;
+		case 'B':
+			field.setByte(ss, toByte(parseInt(str, from, to)));
+			break;
+		case 'C':
+			field.setChar(ss, (char) parseInt(str, from, to));
+			break;
+		case 'b':
+			if (to == from) {
+				throw new NumberFormatException("Empty boolean");
+			}
+			char c = str.charAt(from);
+			field.setBoolean(ss, c == '1' || c == 't');
+			break;
+		case 's':
+		case 'u':
+		case 'U':
+			field.set(ss, decodeString(type, str, from, to));
+			break;
+		}
+	}
+
+	private static String decodeString(char type, CharSequence str, int from, int to)
+			throws UnsupportedEncodingException {
+		switch (type) {
+		case 'u':
+			return new String(Base64.base64ToByteArray(str, from, to), "utf-8");
+		case 'U': {
+			byte[] bytes = new byte[to - from];
+			for (int i = from; i < to; i++) {
+				bytes[i - from] = (byte) str.charAt(i);
+			}
+			return new String(bytes, "utf-8");
+		}
+		}
+		return str.subSequence(from, to).toString();
+	}
+
+	private static short toShort(int value) {
+		if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+			throw new NumberFormatException("Value out of range: " + value);
+		}
+		return (short) value;
+	}
+
+	private static byte toByte(int value) {
+		if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+			throw new NumberFormatException("Value out of range: " + value);
+		}
+		return (byte) value;
+	}
+
+}
@@ -189,7 +189,8 @@ public class SimplePipeSWTRequest extends SimplePipeRequest {
 				
 				SimplePipeHelper.registerPipe(runnable.pipeKey, runnable);
 
-				if (getPipeMode() == MODE_PIPE_CONTINUUM) {
+				if (getPipeMode() == MODE_PIPE_CONTINUUM
+						|| getPipeMode() == MODE_PIPE_WEBSOCKET) { // no WebSocket in SWT mode
 					(new Thread(){
 						public void run() {
 							swtPipeContinuum(runnable);
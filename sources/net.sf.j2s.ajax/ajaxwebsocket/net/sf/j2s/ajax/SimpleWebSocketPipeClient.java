@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.net.URI;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Java client of pipe over WebSocket, see {@link SimpleWebSocketPipeEndpoint}.
+ * Pipe request headers, e.g. {@link SimplePipeRequest#HEADER_PIPE_DELTA},
+ * are sent as query parameters with the same names.
+ *
+ * @author zhou renjian
+ */
+@J2SIgnore
+class SimpleWebSocketPipeClient extends Endpoint {
+
+	private final SimplePipeRunnable runnable;
+
+	/*
+	 * Received but not yet parsed data.
+	 */
+	private StringBuffer pending = new StringBuffer();
+
+	SimpleWebSocketPipeClient(SimplePipeRunnable runnable) {
+		this.runnable = runnable;
+	}
+
+	/**
+	 * Connect to the WebSocket endpoint at pipe URL.
+	 *
+	 * @param runnable
+	 * @return whether connection is open or not
+	 */
+	static boolean connect(SimplePipeRunnable runnable) {
+		String url = runnable.getPipeURL();
+		if (url == null || !url.startsWith("http")) {
+			return false;
+		}
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("ws").append(url.substring(4));
+		buffer.append(url.indexOf('?') != -1 ? '&' : '?');
+		buffer.append(SimplePipeRequest.constructRequest(runnable.pipeKey,
+				SimplePipeRequest.PIPE_TYPE_CONTINUUM));
+		if (SimpleRPCRequest.isBinarySerialization()) {
+			buffer.append('&').append(SimpleRPCRequest.HEADER_SERIALIZATION)
+					.append('=').append(SimpleRPCRequest.SERIALIZATION_BINARY);
+		}
+		boolean reset = runnable.deltaReset;
+		runnable.deltaReset = false;
+		buffer.append('&').append(SimplePipeRequest.HEADER_PIPE_DELTA)
+				.append('=').append(reset ? "reset" : "true");
+		buffer.append('&').append(SimplePipeRequest.HEADER_PIPE_SEQUENCE)
+				.append('=').append(runnable.pipeSequence);
+		try {
+			ContainerProvider.getWebSocketContainer().connectToServer(
+					new SimpleWebSocketPipeClient(runnable),
+					ClientEndpointConfig.Builder.create().build(),
+					new URI(buffer.toString()));
+			return true;
+		} catch (Exception e) {
+			// no client implementation, or server does not support it
+			if (reset) {
+				runnable.deltaReset = true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public void onOpen(Session session, EndpointConfig config) {
+		session.addMessageHandler(new MessageHandler.Whole<String>() {
+			public void onMessage(String message) {
+				pending.append(message);
+				if (!SimplePipeRequest.isReceivedCompleted(pending)) {
+					return; // wait for more data
+				}
+				String resetString = SimplePipeRequest.parseReceived(pending.toString());
+				if (resetString != null) {
+					pending.setLength(0);
+					pending.append(resetString);
+				}
+			}
+		});
+		SimplePipeRequest.keepPipeLive(runnable, true);
+	}
+
+	@Override
+	public void onClose(Session session, CloseReason closeReason) {
+		SimplePipeRequest.webSocketEnded(runnable);
+	}
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Session;
+
+/**
+ * WebSocket endpoint of pipes, registered by {@link SimpleWebSocketPipeHttpServlet}.
+ * Pipe key is given by the same query parameters of continuum pipe
+ * request. Java clients also give those values of pipe request headers,
+ * e.g. {@link SimplePipeRequest#HEADER_PIPE_SEQUENCE}, as query parameters
+ * with the same names.
+ *
+ * Pipe data are sent as text messages in the same format of continuum
+ * pipe. Pipe is kept live as long as the connection is open.
+ *
+ * @author zhou renjian
+ */
+public class SimpleWebSocketPipeEndpoint extends Endpoint {
+
+	static final String SERVLET = "net.sf.j2s.ajax.SimpleWebSocketPipeHttpServlet";
+
+	private SimpleWebSocketPipeSession pipeSession;
+
+	@Override
+	public void onOpen(Session session, EndpointConfig config) {
+		Object servlet = config.getUserProperties().get(SERVLET);
+		Map<String, List<String>> params = session.getRequestParameterMap();
+		String key = getParameter(params, SimplePipeRequest.FORM_PIPE_KEY);
+		if (!(servlet instanceof SimpleWebSocketPipeHttpServlet) || key == null) {
+			close(session, CloseReason.CloseCodes.CANNOT_ACCEPT);
+			return;
+		}
+		boolean binary = SimplePipeRequest.SERIALIZATION_BINARY.equals(
+				getParameter(params, SimplePipeRequest.HEADER_SERIALIZATION));
+		SimplePipeHttpServlet.acceptClientHeaders(key,
+				getParameter(params, SimplePipeRequest.HEADER_PIPE_DELTA),
+				getParameter(params, SimplePipeRequest.HEADER_PIPE_SEQUENCE));
+		SimpleWebSocketPipeSession pipeSession = new SimpleWebSocketPipeSession(
+				(SimpleWebSocketPipeHttpServlet) servlet, session, key, binary);
+		if (!SimplePipeHelper.notifyPipeStatus(key, true)) { // update it!
+			pipeSession.end(); // pipe is already closed or in other statuses
+			pipeSession.writer.flush();
+			close(session, CloseReason.CloseCodes.NORMAL_CLOSURE);
+			return;
+		}
+		this.pipeSession = pipeSession;
+		pipeSession.start();
+	}
+
+	@Override
+	public void onClose(Session session, CloseReason closeReason) {
+		if (pipeSession != null) {
+			pipeSession.complete();
+		}
+	}
+
+	@Override
+	public void onError(Session session, Throwable thr) {
+		if (pipeSession != null) {
+			pipeSession.complete();
+		}
+	}
+
+	private static String getParameter(Map<String, List<String>> params, String name) {
+		List<String> values = params == null ? null : params.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	static void close(Session session, CloseReason.CloseCode code) {
+		try {
+			session.close(new CloseReason(code, null));
+		} catch (IOException e) {
+			// connection may be closed already!
+		}
+	}
+
+}
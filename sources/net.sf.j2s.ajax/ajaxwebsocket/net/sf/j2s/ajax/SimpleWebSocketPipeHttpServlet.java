@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.websocket.DeploymentException;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+/**
+ * Pipe servlet for containers with JSR-356 WebSocket support. Besides
+ * those pipes served by {@link SimpleAsyncPipeHttpServlet}, a WebSocket
+ * endpoint {@link SimpleWebSocketPipeEndpoint} is registered at the same
+ * paths of this servlet, which carries pipe data and keeps pipe live on
+ * one connection, so clients in {@link SimplePipeRequest#MODE_PIPE_WEBSOCKET}
+ * need not send "notify" requests.
+ *
+ * If the container has no WebSocket support, no endpoint is registered,
+ * and clients fall back to continuum or query pipes.
+ *
+ * @author zhou renjian
+ */
+public class SimpleWebSocketPipeHttpServlet extends SimpleAsyncPipeHttpServlet {
+
+	private static final long serialVersionUID = -6370911424155283157L;
+
+	/*
+	 * Example of web.xml:
+    <servlet>
+        <servlet-name>simplepipe</servlet-name>
+        <servlet-class>net.sf.j2s.ajax.SimpleWebSocketPipeHttpServlet</servlet-class>
+        <async-supported>true</async-supported>
+        <load-on-startup>1</load-on-startup>
+		<init-param>
+			<param-name>simple.pipe.websocket.path</param-name>
+			<param-value>/simplepipe</param-value>
+		</init-param>
+    </servlet>
+	 * The endpoint must be registered before the container starts, so the
+	 * servlet should be loaded on startup. Without the path parameter, the
+	 * endpoint is registered at the exact URL patterns of the servlet.
+	 */
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		Object container = getServletContext().getAttribute(ServerContainer.class.getName());
+		if (!(container instanceof ServerContainer)) {
+			return; // no WebSocket support
+		}
+		List<String> paths = new ArrayList<String>();
+		String pathStr = getInitParameter("simple.pipe.websocket.path");
+		if (pathStr != null) {
+			paths.add(pathStr);
+		} else {
+			ServletRegistration registration = getServletContext().getServletRegistration(getServletName());
+			Collection<String> mappings = registration == null ? null : registration.getMappings();
+			if (mappings != null) {
+				for (Iterator<String> itr = mappings.iterator(); itr.hasNext();) {
+					String mapping = itr.next();
+					if (mapping.startsWith("/") && mapping.indexOf('*') == -1) {
+						paths.add(mapping);
+					}
+				}
+			}
+		}
+		for (Iterator<String> itr = paths.iterator(); itr.hasNext();) {
+			ServerEndpointConfig config = ServerEndpointConfig.Builder.create(
+					SimpleWebSocketPipeEndpoint.class, itr.next()).build();
+			config.getUserProperties().put(SimpleWebSocketPipeEndpoint.SERVLET, this);
+			try {
+				((ServerContainer) container).addEndpoint(config);
+			} catch (DeploymentException e) {
+				e.printStackTrace();
+			} catch (IllegalStateException e) {
+				e.printStackTrace(); // container is already started
+			}
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+package net.sf.j2s.ajax;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+
+/**
+ * Continuum pipe over WebSocket connection. Like {@link SimpleAsyncPipeSession},
+ * it holds no thread while waiting, and is stepped in pooled threads when
+ * new pipe data is piped in, or when the timer wheel reaches its next
+ * heart beat. Each flush of pipe data is sent as one text message.
+ *
+ * @author zhou renjian
+ */
+class SimpleWebSocketPipeSession extends SimplePipeSession
+		implements Runnable, SimplePipeHelper.IPipeWaking {
+
+	/*
+	 * Buffer written chars, and send them as text message on flushing.
+	 */
+	static class MessageWriter extends Writer {
+
+		private final Session session;
+
+		private StringBuffer buffer = new StringBuffer();
+
+		MessageWriter(Session session) {
+			this.session = session;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			buffer.append(cbuf, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (buffer.length() == 0) {
+				return;
+			}
+			String text = buffer.toString();
+			buffer.setLength(0);
+			session.getBasicRemote().sendText(text);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+	}
+
+	private final SimplePipeTimerWheel timer;
+
+	private final Session session;
+
+	private SimplePipeTimerWheel.Timeout timeout;
+
+	/**
+	 * Whether a step is already dispatched but not yet started.
+	 */
+	private final AtomicBoolean dispatched = new AtomicBoolean(false);
+
+	private volatile boolean completed;
+
+	SimpleWebSocketPipeSession(SimpleWebSocketPipeHttpServlet servlet, Session session,
+			String key, boolean binary) {
+		super(servlet, new PrintWriter(new MessageWriter(session)), key,
+				SimplePipeRequest.PIPE_TYPE_CONTINUUM, binary);
+		this.timer = servlet.timer;
+		this.session = session;
+	}
+
+	/**
+	 * Start waiting for pipe data after the first step.
+	 */
+	synchronized void start() {
+		if (pipe != null) {
+			pipe.waker = this;
+		}
+		dispatch();
+	}
+
+	/*
+	 * New pipe data or pipe is removed.
+	 */
+	public void helpWaking(SimplePipeRunnable pipe) {
+		dispatch();
+	}
+
+	private void dispatch() {
+		if (completed || !dispatched.compareAndSet(false, true)) {
+			return;
+		}
+		SimpleThreadHelper.runTask(this, "Simple Pipe WebSocket");
+	}
+
+	public void run() {
+		dispatched.set(false);
+		synchronized (this) {
+			if (completed) {
+				return;
+			}
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			boolean more = false;
+			try {
+				more = step();
+				writer.flush(); // heart beat, if any
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (more && !writer.checkError()) {
+				timeout = timer.schedule(new Runnable() {
+					public void run() {
+						dispatch();
+					}
+				}, nextStepDelay());
+				return;
+			}
+			try {
+				end();
+				writer.flush();
+			} catch (RuntimeException e) {
+				// WebSocket connection may be closed already!
+			}
+			complete();
+			SimpleWebSocketPipeEndpoint.close(session, CloseReason.CloseCodes.NORMAL_CLOSURE);
+		}
+	}
+
+	synchronized void complete() {
+		completed = true;
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+		if (pipe != null && pipe.waker == this) {
+			pipe.waker = null;
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+/**
+ * Representative pipe data and runnable payloads of microbenchmarks,
+ * with fields of all serializable types.
+ *
+ * @author zhou renjian
+ */
+public class SimpleBenchmarkPayloads {
+
+	public static class Primitives extends SimpleSerializable {
+		public int i;
+		public long l;
+		public double d;
+		public float f;
+		public short s;
+		public byte b;
+		public char c;
+		public boolean z;
+	}
+
+	public static class Strings extends SimpleSerializable {
+		public String ascii;
+		public String utf8;
+		public String empty;
+		public String nil;
+	}
+
+	public static class Arrays extends SimpleSerializable {
+		public int[] ints;
+		public long[] longs;
+		public double[] doubles;
+		public String[] strings;
+	}
+
+	/**
+	 * Cacheable data, equal by id, so data of the same id are coalesced
+	 * in pipe queues.
+	 */
+	public static class Cacheable extends SimpleSerializable implements ISimpleCacheable {
+
+		public int id;
+
+		public long value;
+
+		private boolean cached;
+
+		public boolean isCached() {
+			return cached;
+		}
+
+		public void setCached(boolean cached) {
+			this.cached = cached;
+		}
+
+		public <T extends ISimpleCacheable> void synchronizeFrom(T another) {
+			value = ((Cacheable) another).value;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Cacheable && ((Cacheable) obj).id == id;
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+
+	}
+
+	private SimpleBenchmarkPayloads() {
+		//
+	}
+
+	public static Primitives createPrimitives() {
+		Primitives p = new Primitives();
+		p.i = 123456789;
+		p.l = 1234567890123456789L;
+		p.d = 3.141592653589793;
+		p.f = 2.71828f;
+		p.s = 12345;
+		p.b = 123;
+		p.c = 'j';
+		p.z = true;
+		return p;
+	}
+
+	public static Strings createStrings(int length) {
+		Strings s = new Strings();
+		s.ascii = createASCII(length);
+		s.utf8 = createUTF8(length);
+		s.empty = "";
+		s.nil = null;
+		return s;
+	}
+
+	/**
+	 * @param size length of each array
+	 * @return arrays, with strings of 16 chars
+	 */
+	public static Arrays createArrays(int size) {
+		Arrays a = new Arrays();
+		a.ints = new int[size];
+		a.longs = new long[size];
+		a.doubles = new double[size];
+		a.strings = new String[size];
+		for (int i = 0; i < size; i++) {
+			a.ints[i] = i * 7919;
+			a.longs[i] = i * 1000000007L;
+			a.doubles[i] = i / 7.0;
+			a.strings[i] = createASCII(16);
+		}
+		return a;
+	}
+
+	public static String createASCII(int length) {
+		StringBuffer buffer = new StringBuffer(length);
+		for (int i = 0; i < length; i++) {
+			buffer.append((char) ('a' + i % 26));
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * @param length
+	 * @return string mixed with Latin, Greek and CJK chars
+	 */
+	public static String createUTF8(int length) {
+		StringBuffer buffer = new StringBuffer(length);
+		for (int i = 0; i < length; i++) {
+			switch (i % 4) {
+			case 0: buffer.append((char) ('a' + i % 26)); break;
+			case 1: buffer.append((char) (0xe0 + i % 16)); break;
+			case 2: buffer.append((char) (0x3b1 + i % 24)); break;
+			default: buffer.append((char) (0x4e00 + i % 1024)); break;
+			}
+		}
+		return buffer.toString();
+	}
+
+	public static byte[] createBytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		return bytes;
+	}
+
+}
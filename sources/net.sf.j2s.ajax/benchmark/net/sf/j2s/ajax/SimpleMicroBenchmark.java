@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Microbenchmark of one operation, which is run by
+ * {@link SimpleMicroBenchmarks}.
+ *
+ * Each iteration invokes the benchmark in batches until iteration time
+ * is over. Time and bytes allocated by current thread are divided by
+ * operations, so results are given in ns/op and B/op. Benchmarks with
+ * other threads doing the work should not report allocations.
+ *
+ * @author zhou renjian
+ */
+public abstract class SimpleMicroBenchmark {
+
+	/**
+	 * Result of a benchmark.
+	 */
+	public static class Result {
+
+		public String name;
+
+		/**
+		 * Mean of iterations, in nanoseconds per operation.
+		 */
+		public double nanos;
+
+		/**
+		 * Standard deviation of iterations.
+		 */
+		public double error;
+
+		/**
+		 * Allocated bytes per operation, or -1 if it is not measured.
+		 */
+		public double bytes;
+
+		public String info;
+
+	}
+
+	/*
+	 * Consumed results, so JIT can not eliminate benchmarked code.
+	 */
+	private static volatile Object sink;
+
+	private static volatile int sinkCount;
+
+	protected final String name;
+
+	/**
+	 * Number of operations of each invocation.
+	 */
+	protected int operations = 1;
+
+	/**
+	 * Whether bytes allocated by current thread are all allocations of
+	 * the benchmark.
+	 */
+	protected boolean measureAllocation = true;
+
+	protected SimpleMicroBenchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setUp() throws Exception {
+		// to be override
+	}
+
+	public void tearDown() throws Exception {
+		// to be override
+	}
+
+	/**
+	 * Run benchmarked operations once.
+	 *
+	 * @return any result, which is consumed
+	 */
+	public abstract Object invoke() throws Exception;
+
+	/**
+	 * @return extra information of benchmark, e.g. size of payload, or null
+	 */
+	public String getInfo() {
+		return null;
+	}
+
+	static void consume(Object o) {
+		if (o == sink) {
+			sinkCount++;
+		}
+	}
+
+	/**
+	 * Run warm-up and measured iterations.
+	 *
+	 * @param warmups number of warm-up iterations
+	 * @param iterations number of measured iterations
+	 * @param millis time of each iteration
+	 * @return result
+	 * @throws Exception
+	 */
+	public Result run(int warmups, int iterations, long millis) throws Exception {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocationBean = null;
+		if (measureAllocation && bean instanceof com.sun.management.ThreadMXBean) {
+			allocationBean = (com.sun.management.ThreadMXBean) bean;
+			if (!allocationBean.isThreadAllocatedMemorySupported()
+					|| !allocationBean.isThreadAllocatedMemoryEnabled()) {
+				allocationBean = null;
+			}
+		}
+		long threadId = Thread.currentThread().getId();
+		double[] nanos = new double[iterations];
+		double bytes = 0;
+		setUp();
+		try {
+			long batch = 1;
+			for (int i = 0; i < warmups + iterations; i++) {
+				long limit = millis * 1000000L;
+				long count = 0;
+				long allocated = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+				long start = System.nanoTime();
+				long elapsed = 0;
+				do {
+					for (long j = 0; j < batch; j++) {
+						consume(invoke());
+					}
+					count += batch;
+					elapsed = System.nanoTime() - start;
+					if (elapsed < limit / 100) {
+						batch <<= 1; // check time about every 1% of iteration
+					}
+				} while (elapsed < limit);
+				if (i >= warmups) {
+					long ops = count * operations;
+					nanos[i - warmups] = (double) elapsed / ops;
+					if (allocationBean != null) {
+						bytes += (double) (allocationBean.getThreadAllocatedBytes(threadId) - allocated) / ops;
+					}
+				}
+			}
+		} finally {
+			tearDown();
+		}
+		Result result = new Result();
+		result.name = name;
+		double sum = 0;
+		for (int i = 0; i < iterations; i++) {
+			sum += nanos[i];
+		}
+		result.nanos = sum / iterations;
+		double variance = 0;
+		for (int i = 0; i < iterations; i++) {
+			variance += (nanos[i] - result.nanos) * (nanos[i] - result.nanos);
+		}
+		result.error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		result.bytes = allocationBean != null ? bytes / iterations : -1;
+		result.info = getInfo();
+		return result;
+	}
+
+}
@@ -0,0 +1,553 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import net.sf.j2s.ajax.SimpleMicroBenchmark.Result;
+
+/**
+ * Microbenchmarks of per-message code of simple RPC and pipe:
+ * <ul>
+ * <li>serialize.{text,binary}.*: SimpleSerializable#serialize in "WLL"
+ * and "WLB101" formats, with sizes in info</li>
+ * <li>deserialize.{text,binary}.*: SimpleSerializable#deserialize</li>
+ * <li>parseInstance.*: SimpleSerializable#parseInstance, which loads
+ * class and creates instance for each message</li>
+ * <li>serializeString.*: SimpleSerializableCodec#serializeString</li>
+ * <li>base64.*: Base64 encoding and decoding</li>
+ * <li>output.*: SimplePipeHttpServlet#output</li>
+ * <li>queue.{block,dropOldest,coalesce}.{1,4,16,64}: SimplePipeQueue
+ * with given number of producers and one consumer, per item</li>
+ * <li>cluster.fanout: pipe data forwarded to 64 pipes of another node by
+ * SimplePipeTCPCluster over loopback, per item</li>
+ * </ul>
+ *
+ * Usage: SimpleMicroBenchmarks [-w warmups] [-i iterations] [-t millis]
+ * [-results file] [-baseline file] [pattern...]
+ *
+ * Benchmarks whose names match any of given regular expressions are run,
+ * or all benchmarks if there are no patterns. With "-results", results
+ * are written to given file, in the format of benchmark/micro-baseline.txt.
+ * With "-baseline", changes to given results are reported.
+ *
+ * @author zhou renjian
+ */
+public class SimpleMicroBenchmarks {
+
+	static class Serialize extends SimpleMicroBenchmark {
+
+		private final SimpleSerializable ss;
+
+		private final boolean binary;
+
+		Serialize(String name, SimpleSerializable ss, boolean binary) {
+			super("serialize." + (binary ? "binary." : "text.") + name);
+			this.ss = ss;
+			this.binary = binary;
+		}
+
+		@Override
+		public Object invoke() {
+			return ss.serialize(null, binary);
+		}
+
+		@Override
+		public String getInfo() {
+			return ss.serialize(null, binary).length() + " chars";
+		}
+
+	}
+
+	static class Deserialize extends SimpleMicroBenchmark {
+
+		private final SimpleSerializable ss;
+
+		private final String str;
+
+		Deserialize(String name, SimpleSerializable ss, boolean binary) {
+			super("deserialize." + (binary ? "binary." : "text.") + name);
+			this.ss = ss;
+			this.str = ss.serialize(null, binary);
+		}
+
+		@Override
+		public Object invoke() {
+			return Boolean.valueOf(ss.deserialize(str)); // fields are overwritten
+		}
+
+	}
+
+	static class ParseInstance extends SimpleMicroBenchmark {
+
+		private final String str;
+
+		private final boolean deserialize;
+
+		ParseInstance(String name, SimpleSerializable ss, boolean deserialize) {
+			super("parseInstance." + name);
+			this.str = ss.serialize();
+			this.deserialize = deserialize;
+		}
+
+		@Override
+		public Object invoke() {
+			SimpleSerializable ss = SimpleSerializable.parseInstance(str);
+			if (deserialize) {
+				ss.deserialize(str);
+			}
+			return ss;
+		}
+
+	}
+
+	static class SerializeString extends SimpleMicroBenchmark {
+
+		private final String str;
+
+		SerializeString(String name, String str) {
+			super("serializeString." + name);
+			this.str = str;
+		}
+
+		@Override
+		public Object invoke() throws Exception {
+			StringBuffer buffer = new StringBuffer();
+			SimpleSerializableCodec.serializeString(buffer, str);
+			return buffer;
+		}
+
+	}
+
+	static class Base64Encode extends SimpleMicroBenchmark {
+
+		private final byte[] bytes;
+
+		Base64Encode(int length) {
+			super("base64.encode." + length);
+			bytes = SimpleBenchmarkPayloads.createBytes(length);
+		}
+
+		@Override
+		public Object invoke() {
+			return Base64.byteArrayToBase64(bytes);
+		}
+
+	}
+
+	static class Base64Decode extends SimpleMicroBenchmark {
+
+		private final String str;
+
+		Base64Decode(int length) {
+			super("base64.decode." + length);
+			str = Base64.byteArrayToBase64(SimpleBenchmarkPayloads.createBytes(length));
+		}
+
+		@Override
+		public Object invoke() {
+			return Base64.base64ToByteArray(str);
+		}
+
+	}
+
+	static class PipeOutput extends SimpleMicroBenchmark {
+
+		private final String type;
+
+		private final String str;
+
+		PipeOutput(String name, String type, SimpleSerializable ss) {
+			super("output." + name);
+			this.type = type;
+			this.str = ss.serialize();
+		}
+
+		@Override
+		public Object invoke() {
+			return SimplePipeHttpServlet.output(type, "0123456789abcdef", str);
+		}
+
+	}
+
+	static class QueueProducers extends SimpleMicroBenchmark {
+
+		private static final int ITEMS = 4096;
+
+		private final int policy;
+
+		private final int producers;
+
+		private ExecutorService pool;
+
+		private SimplePipeQueue queue;
+
+		private SimpleSerializable item;
+
+		QueueProducers(String name, int policy, int producers) {
+			super("queue." + name + "." + producers);
+			this.policy = policy;
+			this.producers = producers;
+			this.operations = ITEMS;
+			this.measureAllocation = false;
+		}
+
+		@Override
+		public void setUp() {
+			pool = Executors.newFixedThreadPool(producers);
+			queue = new SimplePipeQueue(1024, policy);
+			item = SimpleBenchmarkPayloads.createPrimitives();
+		}
+
+		@Override
+		public void tearDown() {
+			pool.shutdownNow();
+		}
+
+		@Override
+		public Object invoke() {
+			final AtomicInteger done = new AtomicInteger();
+			final int count = ITEMS / producers;
+			for (int i = 0; i < producers; i++) {
+				pool.execute(new Runnable() {
+					public void run() {
+						for (int j = 0; j < count; j++) {
+							if (policy == SimplePipeQueue.POLICY_COALESCE) {
+								SimpleBenchmarkPayloads.Cacheable c = new SimpleBenchmarkPayloads.Cacheable();
+								c.id = j & 63;
+								c.value = j;
+								queue.put(c);
+							} else {
+								queue.put(item);
+							}
+						}
+						done.incrementAndGet();
+					}
+				});
+			}
+			int polled = 0;
+			while (true) {
+				boolean finished = done.get() == producers;
+				if (queue.poll() != null) {
+					polled++;
+				} else if (finished) {
+					break;
+				} else {
+					Thread.yield();
+				}
+			}
+			return Integer.valueOf(polled);
+		}
+
+	}
+
+	/**
+	 * Pipe on receiving node of cluster benchmark.
+	 */
+	public static class FanOutPipe extends SimplePipeRunnable {
+
+		@Override
+		public boolean pipeSetup() {
+			return true;
+		}
+
+		@Override
+		public SimpleSerializable[] through(Object... args) {
+			return null;
+		}
+
+		@Override
+		public int pipeQueueCapacity() {
+			return 64;
+		}
+
+		@Override
+		public int pipeQueuePolicy() {
+			return SimplePipeQueue.POLICY_DROP_OLDEST;
+		}
+
+	}
+
+	static class ClusterFanOut extends SimpleMicroBenchmark {
+
+		private static final int PIPES = 64;
+
+		private static final int ITEMS = 4;
+
+		private String[] nodes;
+
+		private SimplePipeTCPCluster receiver;
+
+		private SimplePipeTCPCluster sender;
+
+		private String[] keys;
+
+		private SimpleSerializable[] data;
+
+		ClusterFanOut() {
+			super("cluster.fanout");
+			this.operations = PIPES * ITEMS;
+			this.measureAllocation = false;
+		}
+
+		@Override
+		public void setUp() throws IOException {
+			nodes = new String[] { "127.0.0.1:" + findFreePort(), "127.0.0.1:" + findFreePort() };
+			receiver = new SimplePipeTCPCluster(nodes, 0);
+			sender = new SimplePipeTCPCluster(nodes, 1);
+			receiver.start();
+			sender.start();
+			keys = new String[PIPES];
+			for (int i = 0; i < PIPES; i++) {
+				FanOutPipe pipe = new FanOutPipe();
+				keys[i] = SimplePipeHelper.registerPipe(pipe);
+				pipe.pipeKey = keys[i];
+			}
+			data = new SimpleSerializable[] { SimpleBenchmarkPayloads.createStrings(64) };
+		}
+
+		@Override
+		public void tearDown() {
+			sender.stop();
+			receiver.stop();
+			for (int i = 0; i < PIPES; i++) {
+				SimplePipeHelper.removePipe(keys[i]);
+			}
+		}
+
+		@Override
+		public Object invoke() throws InterruptedException {
+			long expected = receiver.getReceivedCount() + sender.getDroppedCount() + operations;
+			for (int i = 0; i < ITEMS; i++) {
+				for (int j = 0; j < PIPES; j++) {
+					sender.forward(nodes[0], keys[j], data);
+				}
+			}
+			long started = System.currentTimeMillis();
+			while (receiver.getReceivedCount() + sender.getDroppedCount() < expected) {
+				if (System.currentTimeMillis() - started > 10000) {
+					throw new IllegalStateException("Pipe data are not received in 10s");
+				}
+				Thread.yield();
+			}
+			return data;
+		}
+
+	}
+
+	static int findFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	static List<SimpleMicroBenchmark> createBenchmarks() {
+		Map<String, SimpleSerializable> payloads = new LinkedHashMap<String, SimpleSerializable>();
+		payloads.put("primitives", SimpleBenchmarkPayloads.createPrimitives());
+		payloads.put("strings.64", SimpleBenchmarkPayloads.createStrings(64));
+		payloads.put("strings.1024", SimpleBenchmarkPayloads.createStrings(1024));
+		payloads.put("arrays.8", SimpleBenchmarkPayloads.createArrays(8));
+		payloads.put("arrays.64", SimpleBenchmarkPayloads.createArrays(64));
+		payloads.put("arrays.1024", SimpleBenchmarkPayloads.createArrays(1024));
+
+		List<SimpleMicroBenchmark> list = new ArrayList<SimpleMicroBenchmark>();
+		for (int b = 0; b < 2; b++) {
+			boolean binary = b == 1;
+			for (Map.Entry<String, SimpleSerializable> entry : payloads.entrySet()) {
+				list.add(new Serialize(entry.getKey(), entry.getValue(), binary));
+			}
+			for (Map.Entry<String, SimpleSerializable> entry : payloads.entrySet()) {
+				list.add(new Deserialize(entry.getKey(), createLike(entry.getKey()), binary));
+			}
+		}
+		list.add(new ParseInstance("primitives", SimpleBenchmarkPayloads.createPrimitives(), false));
+		list.add(new ParseInstance("primitives.deserialize", SimpleBenchmarkPayloads.createPrimitives(), true));
+		list.add(new SerializeString("ascii.64", SimpleBenchmarkPayloads.createASCII(64)));
+		list.add(new SerializeString("utf8.64", SimpleBenchmarkPayloads.createUTF8(64)));
+		list.add(new SerializeString("utf8.1024", SimpleBenchmarkPayloads.createUTF8(1024)));
+		list.add(new Base64Encode(1024));
+		list.add(new Base64Decode(1024));
+		list.add(new PipeOutput("query", SimplePipeRequest.PIPE_TYPE_QUERY, payloads.get("strings.64")));
+		list.add(new PipeOutput("script", SimplePipeRequest.PIPE_TYPE_SCRIPT, payloads.get("strings.64")));
+		String[] policyNames = { "unbounded", "block", "dropOldest", "coalesce" };
+		int[] policies = { SimplePipeQueue.POLICY_UNBOUNDED, SimplePipeQueue.POLICY_BLOCK,
+				SimplePipeQueue.POLICY_DROP_OLDEST, SimplePipeQueue.POLICY_COALESCE };
+		int[] producers = { 1, 4, 16, 64 };
+		for (int i = 0; i < policies.length; i++) {
+			for (int j = 0; j < producers.length; j++) {
+				list.add(new QueueProducers(policyNames[i], policies[i], producers[j]));
+			}
+		}
+		list.add(new ClusterFanOut());
+		return list;
+	}
+
+	/*
+	 * Create another payload of the given name, so deserializing does not
+	 * modify serialized payloads.
+	 */
+	private static SimpleSerializable createLike(String name) {
+		if (name.startsWith("strings.")) {
+			return SimpleBenchmarkPayloads.createStrings(Integer.parseInt(name.substring(8)));
+		} else if (name.startsWith("arrays.")) {
+			return SimpleBenchmarkPayloads.createArrays(Integer.parseInt(name.substring(7)));
+		}
+		return SimpleBenchmarkPayloads.createPrimitives();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int warmups = 3;
+		int iterations = 5;
+		long millis = 1000;
+		File results = null;
+		File baseline = null;
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-w".equals(args[i]) && i + 1 < args.length) {
+				warmups = Integer.parseInt(args[++i]);
+			} else if ("-i".equals(args[i]) && i + 1 < args.length) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if ("-t".equals(args[i]) && i + 1 < args.length) {
+				millis = Long.parseLong(args[++i]);
+			} else if ("-results".equals(args[i]) && i + 1 < args.length) {
+				results = new File(args[++i]);
+			} else if ("-baseline".equals(args[i]) && i + 1 < args.length) {
+				baseline = new File(args[++i]);
+			} else {
+				patterns.add(Pattern.compile(args[i]));
+			}
+		}
+		Map<String, double[]> base = baseline != null ? loadResults(baseline) : null;
+
+		System.out.println(String.format(Locale.US, "%-36s %12s %10s %12s  %s", "Benchmark", "ns/op", "error", "B/op",
+				base != null ? "ns/op, B/op vs baseline; info" : "info"));
+		List<Result> list = new ArrayList<Result>();
+		List<SimpleMicroBenchmark> benchmarks = createBenchmarks();
+		for (int i = 0; i < benchmarks.size(); i++) {
+			SimpleMicroBenchmark benchmark = benchmarks.get(i);
+			if (!matches(patterns, benchmark.getName())) {
+				continue;
+			}
+			Result result = benchmark.run(warmups, iterations, millis);
+			list.add(result);
+			StringBuffer extra = new StringBuffer();
+			double[] b = base != null ? base.get(result.name) : null;
+			if (b != null) {
+				extra.append(formatChange(result.nanos, b[0])).append(", ")
+						.append(result.bytes < 0 || b[2] < 0 ? "-" : formatChange(result.bytes, b[2]));
+			}
+			if (result.info != null) {
+				extra.append(extra.length() > 0 ? "; " : "").append(result.info);
+			}
+			System.out.println(String.format(Locale.US, "%-36s %12.1f %10.1f %12s  %s", result.name, result.nanos,
+					result.error, result.bytes < 0 ? "-" : String.format(Locale.US, "%.1f", result.bytes), extra));
+		}
+		if (results != null) {
+			writeResults(results, list, warmups, iterations, millis);
+		}
+		System.exit(0); // stop cluster and pipe threads
+	}
+
+	private static boolean matches(List<Pattern> patterns, String name) {
+		if (patterns.isEmpty()) {
+			return true;
+		}
+		for (int i = 0; i < patterns.size(); i++) {
+			if (patterns.get(i).matcher(name).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String formatChange(double value, double baseValue) {
+		if (baseValue <= 0) {
+			return "-";
+		}
+		return String.format(Locale.US, "%+.1f%%", (value - baseValue) * 100 / baseValue);
+	}
+
+	/*
+	 * Load { ns/op, error, B/op } of benchmarks from results file.
+	 */
+	static Map<String, double[]> loadResults(File file) throws IOException {
+		Map<String, double[]> map = new HashMap<String, double[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().length() == 0) {
+					continue;
+				}
+				String[] columns = line.split("\t");
+				if (columns.length < 4) {
+					continue;
+				}
+				try {
+					map.put(columns[0], new double[] {
+							Double.parseDouble(columns[1]),
+							Double.parseDouble(columns[2]),
+							"-".equals(columns[3]) ? -1 : Double.parseDouble(columns[3])
+					});
+				} catch (NumberFormatException e) {
+					// skip invalid line
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return map;
+	}
+
+	static void writeResults(File file, List<Result> list, int warmups, int iterations, long millis)
+			throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println("# SimpleMicroBenchmarks, " + new SimpleDateFormat("yyyy-MM-dd").format(new Date())
+					+ ", Java " + System.getProperty("java.version") + ", " + System.getProperty("os.name")
+					+ " " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors()
+					+ " cpus, " + warmups + " warmups, " + iterations + " iterations of " + millis + "ms");
+			writer.println("# name\tns/op\terror\tB/op\tinfo");
+			for (int i = 0; i < list.size(); i++) {
+				Result r = list.get(i);
+				writer.println(r.name + "\t" + String.format(Locale.US, "%.1f", r.nanos) + "\t"
+						+ String.format(Locale.US, "%.1f", r.error) + "\t"
+						+ (r.bytes < 0 ? "-" : String.format(Locale.US, "%.1f", r.bytes)) + "\t"
+						+ (r.info != null ? r.info : ""));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+/**
+ * Simulated client of a scenario.
+ *
+ * @author zhou renjian
+ */
+abstract class BenchmarkClient {
+
+	final BenchmarkScenario scenario;
+
+	final BenchmarkRecorder recorder;
+
+	volatile boolean running;
+
+	BenchmarkClient(BenchmarkScenario scenario, BenchmarkRecorder recorder) {
+		this.scenario = scenario;
+		this.recorder = recorder;
+	}
+
+	abstract void start();
+
+	void stop() {
+		running = false;
+	}
+
+	static String createPayload(int size) {
+		StringBuffer buffer = new StringBuffer(size);
+		for (int i = 0; i < size; i++) {
+			buffer.append((char) ('a' + i % 26));
+		}
+		return buffer.toString();
+	}
+
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recorder of latencies, failures and received bytes of all clients of a
+ * scenario. Latencies are only recorded while measuring, and are kept
+ * as raw values, so tail percentiles are exact.
+ *
+ * @author zhou renjian
+ */
+class BenchmarkRecorder {
+
+	private long[] latencies = new long[4096];
+
+	private int count;
+
+	private volatile boolean recording;
+
+	private long startTime;
+
+	private long elapsed;
+
+	final AtomicLong failures = new AtomicLong();
+
+	final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Number of connected clients, e.g. created pipes.
+	 */
+	final AtomicLong connected = new AtomicLong();
+
+	synchronized void start() {
+		count = 0;
+		failures.set(0);
+		bytes.set(0);
+		startTime = System.nanoTime();
+		recording = true;
+	}
+
+	synchronized void stop() {
+		recording = false;
+		elapsed = System.nanoTime() - startTime;
+	}
+
+	boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * @param micros latency in microseconds
+	 */
+	void record(long micros) {
+		if (!recording) {
+			return;
+		}
+		synchronized (this) {
+			if (count == latencies.length) {
+				long[] newLatencies = new long[count * 2];
+				System.arraycopy(latencies, 0, newLatencies, 0, count);
+				latencies = newLatencies;
+			}
+			latencies[count++] = micros < 0 ? 0 : micros;
+		}
+	}
+
+	void failed() {
+		if (recording) {
+			failures.incrementAndGet();
+		}
+	}
+
+	void received(int length) {
+		if (recording) {
+			bytes.addAndGet(length);
+		}
+	}
+
+	synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return measured seconds
+	 */
+	synchronized double getSeconds() {
+		return elapsed / 1e9;
+	}
+
+	synchronized long[] sortedLatencies() {
+		long[] sorted = new long[count];
+		System.arraycopy(latencies, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @param sorted
+	 * @param percent e.g. 99.9 for p999
+	 * @return value of given percentile, or 0 if there are no values
+	 */
+	static long percentile(long[] sorted, double percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+}
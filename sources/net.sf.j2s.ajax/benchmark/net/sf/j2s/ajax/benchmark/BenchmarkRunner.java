@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import net.sf.j2s.ajax.SimplePipeRequest;
+import net.sf.j2s.ajax.SimpleRPCRequest;
+
+/**
+ * Runner of benchmark scenarios, see {@link BenchmarkScenario}.
+ *
+ * For each scenario, a {@link BenchmarkServer} process is started, and
+ * clients in this process are started during ramp-up seconds. After
+ * warm-up seconds, latencies are recorded for duration seconds. Report
+ * gives throughput, latency percentiles, and server heap per connection,
+ * which is the difference of used heap after GC of server with and
+ * without clients, divided by connected clients.
+ *
+ * Latency of RPC is the time of a call in microseconds. Latency of pipe
+ * is the time from publishing to receiving pipe data, in milliseconds
+ * resolution, as server and clients are different processes.
+ *
+ * Usage: BenchmarkRunner [-results &lt;file&gt;] &lt;scenario file&gt;...
+ *
+ * With "-results", a tab separated line is appended to given file for
+ * each scenario, so results may be tracked across changes.
+ *
+ * @author zhou renjian
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * Base URL of benchmark server, with trailing "/".
+	 */
+	static volatile String baseURL = "http://127.0.0.1:8080/";
+
+	public static void main(String[] args) throws Exception {
+		File results = null;
+		List<BenchmarkScenario> scenarios = new ArrayList<BenchmarkScenario>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-results".equals(args[i]) && i + 1 < args.length) {
+				results = new File(args[++i]);
+			} else {
+				scenarios.add(BenchmarkScenario.load(new File(args[i])));
+			}
+		}
+		if (scenarios.isEmpty()) {
+			System.out.println("Usage: BenchmarkRunner [-results <file>] <scenario file>...");
+			return;
+		}
+		for (int i = 0; i < scenarios.size(); i++) {
+			BenchmarkScenario scenario = scenarios.get(i);
+			System.out.println("Running " + scenario);
+			String report = run(scenario, results);
+			System.out.println(report);
+		}
+		System.exit(0); // stop client threads
+	}
+
+	static String run(BenchmarkScenario scenario, File results) throws IOException, InterruptedException {
+		Process server = null;
+		Properties before = null;
+		long heapBefore = 0;
+		if (scenario.isServerRequired()) {
+			int port = findFreePort();
+			server = startServer(scenario, port);
+			baseURL = "http://127.0.0.1:" + port + "/";
+			before = waitForServer(server);
+			SimpleRPCRequest.switchToAJAXMode();
+		} else {
+			SimpleRPCRequest.switchToLocalJavaThreadMode();
+			heapBefore = usedHeap();
+		}
+		SimpleRPCRequest.switchToBinarySerialization(scenario.binary);
+		if (BenchmarkScenario.CLIENT_QUERY.equals(scenario.pipeMode)) {
+			SimplePipeRequest.switchToQueryMode();
+		} else {
+			SimplePipeRequest.switchToContinuumMode();
+		}
+
+		BenchmarkRecorder recorder = new BenchmarkRecorder();
+		List<BenchmarkClient> clients = new ArrayList<BenchmarkClient>();
+		long rampUpInterval = scenario.rampUp * 1000000000L / scenario.clients;
+		long rampUpStarted = System.nanoTime();
+		for (int i = 0; i < scenario.clients; i++) {
+			BenchmarkClient client = createClient(scenario, recorder);
+			clients.add(client);
+			client.start();
+			long wait = rampUpStarted + (i + 1) * rampUpInterval - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+		Thread.sleep(scenario.warmup * 1000L);
+		recorder.start();
+		Thread.sleep(scenario.duration * 1000L);
+		recorder.stop();
+
+		long connected = recorder.connected.get();
+		Properties after = null;
+		long heapAfter = 0;
+		if (server != null) {
+			after = getStats();
+		} else {
+			heapAfter = usedHeap();
+		}
+		for (int i = 0; i < clients.size(); i++) {
+			clients.get(i).stop();
+		}
+		if (server != null) {
+			stopServer(server);
+			heapBefore = parseLong(before, "heap.used");
+			heapAfter = parseLong(after, "heap.used");
+		}
+		return report(scenario, recorder, connected, heapAfter - heapBefore, after, results);
+	}
+
+	static BenchmarkClient createClient(BenchmarkScenario scenario, BenchmarkRecorder recorder) {
+		if (BenchmarkScenario.TYPE_RPC.equals(scenario.type)) {
+			return new JavaRPCClient(scenario, recorder);
+		} else if (BenchmarkScenario.CLIENT_JAVA.equals(scenario.client)) {
+			return new JavaPipeClient(scenario, recorder);
+		}
+		return new RawPipeClient(scenario, recorder);
+	}
+
+	static String report(BenchmarkScenario scenario, BenchmarkRecorder recorder, long connected,
+			long heap, Properties stats, File results) throws IOException {
+		long[] latencies = recorder.sortedLatencies();
+		double seconds = recorder.getSeconds();
+		double throughput = latencies.length / seconds;
+		String unit = BenchmarkScenario.TYPE_RPC.equals(scenario.type) ? "us" : "us (ms resolution)";
+		long p50 = BenchmarkRecorder.percentile(latencies, 50);
+		long p90 = BenchmarkRecorder.percentile(latencies, 90);
+		long p99 = BenchmarkRecorder.percentile(latencies, 99);
+		long p999 = BenchmarkRecorder.percentile(latencies, 99.9);
+		long max = latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+		// RPC clients are not connected
+		long perConnection = heap / (connected > 0 ? connected : scenario.clients);
+
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("  scenario:       ").append(scenario.name).append('\n');
+		buffer.append("  clients:        ").append(scenario.clients);
+		if (BenchmarkScenario.TYPE_PIPE.equals(scenario.type)) {
+			buffer.append(" (").append(connected).append(" connected)");
+		}
+		buffer.append('\n');
+		buffer.append("  measured:       ").append(format(seconds)).append(" s, ")
+				.append(latencies.length).append(" ops, ").append(recorder.failures.get()).append(" failures\n");
+		buffer.append("  throughput:     ").append(format(throughput)).append(" ops/s, ")
+				.append(format(recorder.bytes.get() / seconds / 1024)).append(" KB/s received\n");
+		buffer.append("  latency ").append(unit).append(": p50 ").append(p50).append(", p90 ").append(p90)
+				.append(", p99 ").append(p99).append(", p999 ").append(p999).append(", max ").append(max).append('\n');
+		buffer.append("  heap:           ").append(format(heap / 1024.0)).append(" KB, ")
+				.append(format(perConnection / 1024.0)).append(" KB per connection");
+		if (stats != null) {
+			buffer.append(", ").append(stats.getProperty("threads")).append(" server threads");
+		}
+		buffer.append('\n');
+
+		if (results != null) {
+			boolean existed = results.exists();
+			PrintWriter writer = new PrintWriter(new FileWriter(results, true));
+			try {
+				if (!existed) {
+					writer.println("# date\tscenario\tclients\tconnected\tops/s\tp50\tp90\tp99\tp999\tmax\tfailures\tbytes/connection");
+				}
+				writer.println(new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date()) + "\t"
+						+ scenario.name + "\t" + scenario.clients + "\t" + connected + "\t"
+						+ format(throughput) + "\t" + p50 + "\t" + p90 + "\t" + p99 + "\t" + p999 + "\t"
+						+ max + "\t" + recorder.failures.get() + "\t" + perConnection);
+			} finally {
+				writer.close();
+			}
+		}
+		return buffer.toString();
+	}
+
+	private static String format(double value) {
+		return String.valueOf(Math.round(value * 10) / 10.0);
+	}
+
+	private static long parseLong(Properties props, String key) {
+		String value = props == null ? null : props.getProperty(key);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static int findFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	static Process startServer(BenchmarkScenario scenario, int port) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (scenario.serverJVMArgs.length() > 0) {
+			String[] jvmArgs = scenario.serverJVMArgs.split("\\s+");
+			for (int i = 0; i < jvmArgs.length; i++) {
+				command.add(jvmArgs[i]);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(BenchmarkServer.class.getName());
+		command.add(String.valueOf(port));
+		command.add(String.valueOf(BenchmarkScenario.TYPE_PIPE.equals(scenario.type) ? scenario.publishInterval : 0));
+		command.add(String.valueOf(scenario.payloadSize));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		final Process process = builder.start();
+		Thread thread = new Thread("Benchmark Server Output") {
+			public void run() {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				try {
+					String line = null;
+					while ((line = reader.readLine()) != null) {
+						System.out.println("[server] " + line);
+					}
+				} catch (IOException e) {
+					// server is stopped
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return process;
+	}
+
+	private static Properties waitForServer(Process server) throws IOException, InterruptedException {
+		long started = System.currentTimeMillis();
+		while (true) {
+			try {
+				return getStats();
+			} catch (IOException e) {
+				if (System.currentTimeMillis() - started > 30000) {
+					server.destroy();
+					throw e;
+				}
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	static Properties getStats() throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(baseURL + "stats").openConnection();
+		conn.setConnectTimeout(5000);
+		Properties props = new Properties();
+		InputStream in = conn.getInputStream();
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	private static void stopServer(Process server) throws InterruptedException {
+		try {
+			server.getOutputStream().close();
+		} catch (IOException e) {
+			// already stopped
+		}
+		long started = System.currentTimeMillis();
+		while (System.currentTimeMillis() - started < 10000) {
+			try {
+				server.exitValue();
+				return;
+			} catch (IllegalThreadStateException e) {
+				Thread.sleep(100);
+			}
+		}
+		server.destroy();
+	}
+
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Benchmark scenario, which is loaded from a properties file, e.g.
+ * <pre>
+ * # 1000 Java clients calling echo runnable through servlet
+ * type = rpc
+ * client = java
+ * clients = 1000
+ * warmup = 5
+ * duration = 30
+ * payload.size = 256
+ * </pre>
+ *
+ * Keys:
+ * <ul>
+ * <li>type: "rpc" or "pipe"</li>
+ * <li>client: "java" for simulated Java clients in AJAX mode, "local" for
+ * Java clients in local Java thread mode without servlets (RPC only),
+ * "query", "script" or "continuum" for raw HTTP clients emulating
+ * browsers (pipe only)</li>
+ * <li>pipe.mode: "continuum" or "query", pipe mode of Java clients</li>
+ * <li>clients: number of clients</li>
+ * <li>ramp.up: seconds in which clients are started</li>
+ * <li>warmup: seconds before measuring</li>
+ * <li>duration: seconds of measuring</li>
+ * <li>payload.size: chars of payload of each call or pipe data</li>
+ * <li>publish.interval: milliseconds between publishings to all pipes</li>
+ * <li>binary: "true" for "WLB101" serialization of Java clients</li>
+ * <li>server.jvm.args: JVM arguments of server process</li>
+ * </ul>
+ *
+ * @author zhou renjian
+ */
+public class BenchmarkScenario {
+
+	public static final String TYPE_RPC = "rpc";
+
+	public static final String TYPE_PIPE = "pipe";
+
+	public static final String CLIENT_JAVA = "java";
+
+	public static final String CLIENT_LOCAL = "local";
+
+	public static final String CLIENT_QUERY = "query";
+
+	public static final String CLIENT_SCRIPT = "script";
+
+	public static final String CLIENT_CONTINUUM = "continuum";
+
+	String name;
+
+	String type;
+
+	String client;
+
+	String pipeMode;
+
+	int clients;
+
+	int rampUp;
+
+	int warmup;
+
+	int duration;
+
+	int payloadSize;
+
+	long publishInterval;
+
+	boolean binary;
+
+	String serverJVMArgs;
+
+	public static BenchmarkScenario load(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		String name = file.getName();
+		int idx = name.lastIndexOf('.');
+		if (idx > 0) {
+			name = name.substring(0, idx);
+		}
+		return parse(name, props);
+	}
+
+	public static BenchmarkScenario parse(String name, Properties props) {
+		BenchmarkScenario s = new BenchmarkScenario();
+		s.name = props.getProperty("name", name).trim();
+		s.type = props.getProperty("type", TYPE_RPC).trim();
+		s.client = props.getProperty("client", CLIENT_JAVA).trim();
+		s.pipeMode = props.getProperty("pipe.mode", CLIENT_CONTINUUM).trim();
+		s.clients = parseInt(props, "clients", 100);
+		s.rampUp = parseInt(props, "ramp.up", 5);
+		s.warmup = parseInt(props, "warmup", 5);
+		s.duration = parseInt(props, "duration", 30);
+		s.payloadSize = parseInt(props, "payload.size", 256);
+		s.publishInterval = parseInt(props, "publish.interval", 100);
+		s.binary = "true".equals(props.getProperty("binary", "false").trim());
+		s.serverJVMArgs = props.getProperty("server.jvm.args", "").trim();
+		if (!TYPE_RPC.equals(s.type) && !TYPE_PIPE.equals(s.type)) {
+			throw new IllegalArgumentException("Unknown type: " + s.type);
+		}
+		if (TYPE_RPC.equals(s.type)) {
+			if (!CLIENT_JAVA.equals(s.client) && !CLIENT_LOCAL.equals(s.client)) {
+				throw new IllegalArgumentException("RPC clients should be java or local: " + s.client);
+			}
+		} else if (!CLIENT_JAVA.equals(s.client) && !CLIENT_QUERY.equals(s.client)
+				&& !CLIENT_SCRIPT.equals(s.client) && !CLIENT_CONTINUUM.equals(s.client)) {
+			throw new IllegalArgumentException("Pipe clients should be java, query, script or continuum: " + s.client);
+		}
+		if (!CLIENT_CONTINUUM.equals(s.pipeMode) && !CLIENT_QUERY.equals(s.pipeMode)) {
+			throw new IllegalArgumentException("Unknown pipe mode: " + s.pipeMode);
+		}
+		if (s.clients <= 0 || s.duration <= 0) {
+			throw new IllegalArgumentException("Clients and duration should be positive");
+		}
+		return s;
+	}
+
+	private static int parseInt(Properties props, String key, int defaultValue) {
+		String value = props.getProperty(key);
+		if (value == null || value.trim().length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + key + ": " + value);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return whether clients call servlets in a server process
+	 */
+	public boolean isServerRequired() {
+		return !CLIENT_LOCAL.equals(client);
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer();
+		buffer.append(name).append(": ").append(clients).append(' ').append(client)
+				.append(' ').append(type).append(" clients");
+		if (TYPE_PIPE.equals(type) && CLIENT_JAVA.equals(client)) {
+			buffer.append(" in ").append(pipeMode).append(" mode");
+		}
+		if (binary) {
+			buffer.append(", binary");
+		}
+		buffer.append(", payload ").append(payloadSize).append(" chars");
+		if (TYPE_PIPE.equals(type)) {
+			buffer.append(" every ").append(publishInterval).append("ms");
+		}
+		return buffer.toString();
+	}
+
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.sf.j2s.ajax.SimpleMetrics;
+import net.sf.j2s.ajax.SimplePipeHttpServlet;
+import net.sf.j2s.ajax.SimplePipeRPCHttpServlet;
+import net.sf.j2s.ajax.SimplePipeTopic;
+import net.sf.j2s.ajax.SimpleRPCHttpServlet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Benchmark server process, which runs simple RPC and pipe servlets in
+ * {@link LocalServletContainer}:
+ * <ul>
+ * <li>/simplerpc: {@link SimpleRPCHttpServlet}</li>
+ * <li>/piperpc: {@link SimplePipeRPCHttpServlet}</li>
+ * <li>/simplepipe: {@link SimplePipeHttpServlet}</li>
+ * <li>/stats: used heap after GC, threads and {@link SimpleMetrics}
+ * snapshot, in properties format</li>
+ * </ul>
+ * and publishes {@link FeedItem}s to topic {@link #TOPIC} periodically.
+ *
+ * Server is run in its own process, as pipes of Java clients and server
+ * are registered in the same {@link net.sf.j2s.ajax.SimplePipeHelper}.
+ * Server stops when its standard input is closed.
+ *
+ * Usage: BenchmarkServer &lt;port&gt; &lt;publish interval&gt; &lt;payload size&gt;
+ *
+ * @author zhou renjian
+ */
+public class BenchmarkServer {
+
+	public static final String TOPIC = "benchmark";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: BenchmarkServer <port> <publish interval> <payload size>");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		long interval = Long.parseLong(args[1]);
+		final int payloadSize = Integer.parseInt(args[2]);
+
+		LocalServletContainer container = new LocalServletContainer(port);
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("simple.rpc.runnables", EchoRunnable.class.getName() + ";"
+				+ FeedPipeRunnable.class.getName());
+		container.addServlet("/simplerpc", new SimpleRPCHttpServlet(), params);
+		container.addServlet("/piperpc", new SimplePipeRPCHttpServlet(), params);
+		container.addServlet("/simplepipe", new SimplePipeHttpServlet(), null);
+		container.addHandler("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] bytes = getStats().getBytes("ISO-8859-1");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		container.start();
+
+		Timer publisher = new Timer("Benchmark Publisher", true);
+		if (interval > 0) {
+			publisher.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					SimplePipeTopic.getTopic(TOPIC).publish(FeedItem.create(payloadSize));
+				}
+			}, interval, interval);
+		}
+		System.out.println("Benchmark server is listening on port " + container.getPort());
+
+		while (System.in.read() != -1) {
+			// wait until runner process closes the pipe
+		}
+		publisher.cancel();
+		container.stop();
+		System.exit(0);
+	}
+
+	static String getStats() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("heap.used=").append(runtime.totalMemory() - runtime.freeMemory()).append('\n');
+		buffer.append("threads=").append(ManagementFactory.getThreadMXBean().getThreadCount()).append('\n');
+		buffer.append("topic.subscribers=").append(SimplePipeTopic.getTopic(TOPIC).getSubscriberCount()).append('\n');
+		Map<String, Number> metrics = SimpleMetrics.snapshot();
+		for (Iterator<Map.Entry<String, Number>> itr = metrics.entrySet().iterator(); itr.hasNext();) {
+			Map.Entry<String, Number> entry = itr.next();
+			buffer.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		return buffer.toString();
+	}
+
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import net.sf.j2s.ajax.SimpleRPCRunnable;
+
+/**
+ * Simple RPC runnable which returns its payload.
+ *
+ * @author zhou renjian
+ */
+public class EchoRunnable extends SimpleRPCRunnable {
+
+	public String payload;
+
+	public String reply;
+
+	/*
+	 * Client side fields, which are not serialized.
+	 */
+	JavaRPCClient client;
+
+	long started;
+
+	@Override
+	public String getHttpURL() {
+		return BenchmarkRunner.baseURL + "simplerpc";
+	}
+
+	@Override
+	public void ajaxRun() {
+		reply = payload;
+	}
+
+	@Override
+	public void ajaxOut() {
+		if (client != null) {
+			client.finished(this);
+		}
+	}
+
+	@Override
+	public void ajaxFail() {
+		if (client != null) {
+			client.failed(this);
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Pipe data published to benchmark pipes.
+ *
+ * Payload starts with a "~<sent>~" marker, so raw HTTP clients may get
+ * latency without deserializing data.
+ *
+ * @author zhou renjian
+ */
+public class FeedItem extends SimpleSerializable {
+
+	/**
+	 * Publishing time, in milliseconds. Clients run in other processes, so
+	 * wall clock time is used.
+	 */
+	public long sent;
+
+	public String payload;
+
+	public static FeedItem create(int payloadSize) {
+		FeedItem item = new FeedItem();
+		item.sent = System.currentTimeMillis();
+		StringBuffer buffer = new StringBuffer(payloadSize + 16);
+		buffer.append('~').append(item.sent).append('~');
+		while (buffer.length() < payloadSize) {
+			buffer.append('x');
+		}
+		item.payload = buffer.toString();
+		return item;
+	}
+
+}
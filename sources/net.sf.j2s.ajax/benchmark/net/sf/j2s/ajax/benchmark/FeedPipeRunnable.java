@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import net.sf.j2s.ajax.SimplePipeRunnable;
+import net.sf.j2s.ajax.SimplePipeTopic;
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Pipe runnable which subscribes to a topic, to which the benchmark
+ * server publishes {@link FeedItem}s.
+ *
+ * @author zhou renjian
+ */
+public class FeedPipeRunnable extends SimplePipeRunnable {
+
+	public String topic;
+
+	/*
+	 * Client side field, which is not serialized.
+	 */
+	JavaPipeClient client;
+
+	@Override
+	public String getHttpURL() {
+		return BenchmarkRunner.baseURL + "piperpc";
+	}
+
+	@Override
+	public String getPipeURL() {
+		return BenchmarkRunner.baseURL + "simplepipe";
+	}
+
+	@Override
+	public boolean pipeSetup() {
+		if (topic == null) {
+			return false;
+		}
+		SimplePipeTopic.getTopic(topic).subscribe(pipeKey);
+		return true;
+	}
+
+	@Override
+	public boolean pipeDestroy() {
+		if (topic != null && pipeKey != null && client == null) {
+			SimplePipeTopic.getTopic(topic).unsubscribe(pipeKey);
+		}
+		return super.pipeDestroy();
+	}
+
+	@Override
+	public SimpleSerializable[] through(Object... args) {
+		return null; // data are published to topic
+	}
+
+	public boolean deal(FeedItem item) {
+		if (client != null) {
+			client.received(item);
+		}
+		return true;
+	}
+
+	@Override
+	public void pipeCreated() {
+		super.pipeCreated();
+		if (client != null) {
+			client.created();
+		}
+	}
+
+	@Override
+	public void pipeFailed() {
+		super.pipeFailed();
+		if (client != null) {
+			client.lost();
+		}
+	}
+
+	@Override
+	public void pipeLost() {
+		super.pipeLost();
+		if (client != null) {
+			client.lost();
+		}
+	}
+
+	@Override
+	public void pipeClosed() {
+		super.pipeClosed();
+		if (client != null) {
+			client.lost();
+		}
+	}
+
+}
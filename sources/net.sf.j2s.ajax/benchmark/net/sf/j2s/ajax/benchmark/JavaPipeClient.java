@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sf.j2s.ajax.SimplePipeRequest;
+import net.sf.j2s.ajax.SimpleThreadHelper;
+
+/**
+ * Java client receiving {@link FeedItem}s through
+ * {@link SimplePipeRequest}. Lost pipe is set up again in one second.
+ *
+ * @author zhou renjian
+ */
+class JavaPipeClient extends BenchmarkClient {
+
+	private AtomicBoolean connected = new AtomicBoolean();
+
+	private FeedPipeRunnable runnable;
+
+	JavaPipeClient(BenchmarkScenario scenario, BenchmarkRecorder recorder) {
+		super(scenario, recorder);
+	}
+
+	void start() {
+		running = true;
+		connect();
+	}
+
+	private void connect() {
+		runnable = new FeedPipeRunnable();
+		runnable.topic = BenchmarkServer.TOPIC;
+		runnable.client = this;
+		SimplePipeRequest.pipe(runnable);
+	}
+
+	@Override
+	void stop() {
+		super.stop();
+		FeedPipeRunnable r = runnable;
+		if (r != null) {
+			r.pipeDestroy();
+		}
+	}
+
+	void created() {
+		if (connected.compareAndSet(false, true)) {
+			recorder.connected.incrementAndGet();
+		}
+	}
+
+	void received(FeedItem item) {
+		recorder.record((System.currentTimeMillis() - item.sent) * 1000);
+		if (item.payload != null) {
+			recorder.received(item.payload.length());
+		}
+	}
+
+	void lost() {
+		if (connected.compareAndSet(true, false)) {
+			recorder.connected.decrementAndGet();
+		}
+		if (!running) {
+			return;
+		}
+		recorder.failed();
+		SimpleThreadHelper.runTask(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (running) {
+					connect();
+				}
+			}
+		}, "Benchmark Pipe Reconnecting");
+	}
+
+}
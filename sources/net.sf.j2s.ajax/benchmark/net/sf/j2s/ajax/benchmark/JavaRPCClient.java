@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import net.sf.j2s.ajax.SimpleRPCRequest;
+
+/**
+ * Java client calling {@link EchoRunnable} through
+ * {@link SimpleRPCRequest}, one call after another.
+ *
+ * @author zhou renjian
+ */
+class JavaRPCClient extends BenchmarkClient {
+
+	private String payload;
+
+	JavaRPCClient(BenchmarkScenario scenario, BenchmarkRecorder recorder) {
+		super(scenario, recorder);
+		payload = createPayload(scenario.payloadSize);
+	}
+
+	void start() {
+		running = true;
+		call();
+	}
+
+	private void call() {
+		EchoRunnable runnable = new EchoRunnable();
+		runnable.payload = payload;
+		runnable.client = this;
+		runnable.started = System.nanoTime();
+		SimpleRPCRequest.request(runnable);
+	}
+
+	void finished(EchoRunnable runnable) {
+		if (runnable.reply == null || runnable.reply.length() != payload.length()) {
+			recorder.failed();
+		} else {
+			recorder.record((System.nanoTime() - runnable.started) / 1000);
+			recorder.received(runnable.reply.length());
+		}
+		if (running) {
+			call();
+		}
+	}
+
+	void failed(EchoRunnable runnable) {
+		recorder.failed();
+		if (running) {
+			try {
+				Thread.sleep(100); // server may be overloaded
+			} catch (InterruptedException e) {
+				return;
+			}
+			call();
+		}
+	}
+
+}
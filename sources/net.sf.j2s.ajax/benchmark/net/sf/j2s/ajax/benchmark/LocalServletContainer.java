@@ -0,0 +1,607 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal embedded servlet container on top of JDK's HTTP server, which
+ * is enough to run simple RPC and pipe servlets for benchmarks.
+ *
+ * Each request is served in its own pooled thread, so long pipe requests
+ * in continuum or script mode hold threads, as they do in classic
+ * containers. Requests, responses and configurations are dynamic proxies,
+ * those methods not used by simple servlets return default values.
+ * Response bodies are always sent in chunks and are flushed to clients
+ * on flushing writer or output stream. Asynchronous requests, sessions
+ * and form encoded bodies are not supported.
+ *
+ * @author zhou renjian
+ */
+public class LocalServletContainer {
+
+	static {
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true"); // as servlet containers do
+		}
+	}
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private List<HttpServlet> servlets = new ArrayList<HttpServlet>();
+
+	private Map<String, Object> contextAttributes = new ConcurrentHashMap<String, Object>();
+
+	private ServletContext context;
+
+	/**
+	 * Create container listening on loopback address.
+	 *
+	 * @param port 0 for any free port
+	 * @throws IOException
+	 */
+	public LocalServletContainer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 1024);
+		context = (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ServletContext.class }, new ContextHandler());
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Initialize given servlet with given init parameters, and map it to
+	 * given path, e.g. "/simplerpc".
+	 *
+	 * @param path
+	 * @param servlet
+	 * @param params init parameters, may be null
+	 * @throws ServletException
+	 */
+	public void addServlet(String path, final HttpServlet servlet, Map<String, String> params)
+			throws ServletException {
+		final String name = path.startsWith("/") ? path.substring(1) : path;
+		final Map<String, String> initParams = params != null ? params : new HashMap<String, String>();
+		ServletConfig config = (ServletConfig) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String m = method.getName();
+						if ("getInitParameter".equals(m)) {
+							return initParams.get(args[0]);
+						} else if ("getInitParameterNames".equals(m)) {
+							return Collections.enumeration(initParams.keySet());
+						} else if ("getServletName".equals(m)) {
+							return name;
+						} else if ("getServletContext".equals(m)) {
+							return context;
+						}
+						return objectMethod(proxy, method, args, "ServletConfig " + name);
+					}
+				});
+		servlet.init(config);
+		servlets.add(servlet);
+		server.createContext(path, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				service(servlet, exchange);
+			}
+		});
+	}
+
+	/**
+	 * Map given plain handler to given path, e.g. for statistics.
+	 *
+	 * @param path
+	 * @param handler
+	 */
+	public void addHandler(String path, HttpHandler handler) {
+		server.createContext(path, handler);
+	}
+
+	public void start() {
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Local Servlet Container Worker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		for (HttpServlet servlet : servlets) {
+			try {
+				servlet.destroy();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+		servlets.clear();
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	void service(HttpServlet servlet, HttpExchange exchange) throws IOException {
+		Exchange ex = new Exchange(exchange);
+		ClassLoader loader = getClass().getClassLoader();
+		HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(loader,
+				new Class<?>[] { HttpServletRequest.class }, new RequestHandler(ex));
+		HttpServletResponse resp = (HttpServletResponse) Proxy.newProxyInstance(loader,
+				new Class<?>[] { HttpServletResponse.class }, new ResponseHandler(ex));
+		try {
+			servlet.service(req, resp);
+			ex.finish();
+		} catch (ServletException e) {
+			e.printStackTrace();
+			if (!ex.committed) {
+				ex.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+				ex.finish();
+			}
+		} catch (IOException e) {
+			// client is gone
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			if (!ex.committed) {
+				ex.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+				ex.finish();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	static Object objectMethod(Object proxy, Method method, Object[] args, String desc) {
+		String m = method.getName();
+		if ("equals".equals(m)) {
+			return Boolean.valueOf(proxy == args[0]);
+		} else if ("hashCode".equals(m)) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if ("toString".equals(m)) {
+			return desc;
+		}
+		return defaultValue(method.getReturnType());
+	}
+
+	static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == Void.TYPE) {
+			return null;
+		} else if (type == Boolean.TYPE) {
+			return Boolean.FALSE;
+		} else if (type == Long.TYPE) {
+			return Long.valueOf(-1);
+		} else if (type == Integer.TYPE) {
+			return Integer.valueOf(-1);
+		} else if (type == Character.TYPE) {
+			return Character.valueOf((char) 0);
+		} else if (type == Double.TYPE) {
+			return Double.valueOf(0);
+		} else if (type == Float.TYPE) {
+			return Float.valueOf(0);
+		} else if (type == Short.TYPE) {
+			return Short.valueOf((short) 0);
+		}
+		return Byte.valueOf((byte) 0);
+	}
+
+	/**
+	 * State of a request and its response.
+	 */
+	static class Exchange {
+
+		final HttpExchange exchange;
+
+		Map<String, String> parameters;
+
+		Map<String, Object> attributes;
+
+		int status = HttpServletResponse.SC_OK;
+
+		String contentType;
+
+		String charset;
+
+		boolean committed;
+
+		OutputStream body;
+
+		PrintWriter writer;
+
+		ServletOutputStream output;
+
+		Exchange(HttpExchange exchange) {
+			this.exchange = exchange;
+			body = new OutputStream() {
+				public void write(int b) throws IOException {
+					commit();
+					Exchange.this.exchange.getResponseBody().write(b);
+				}
+				public void write(byte[] b, int off, int len) throws IOException {
+					commit();
+					Exchange.this.exchange.getResponseBody().write(b, off, len);
+				}
+				public void flush() throws IOException {
+					commit();
+					Exchange.this.exchange.getResponseBody().flush();
+				}
+			};
+		}
+
+		String getParameter(String name) {
+			if (parameters == null) {
+				parameters = new HashMap<String, String>();
+				String query = exchange.getRequestURI().getRawQuery();
+				if (query != null) {
+					String[] pairs = query.split("&");
+					for (int i = 0; i < pairs.length; i++) {
+						int idx = pairs[i].indexOf('=');
+						String key = idx == -1 ? pairs[i] : pairs[i].substring(0, idx);
+						String value = idx == -1 ? "" : pairs[i].substring(idx + 1);
+						try {
+							key = URLDecoder.decode(key, "UTF-8");
+							value = URLDecoder.decode(value, "UTF-8");
+						} catch (UnsupportedEncodingException e) {
+							e.printStackTrace();
+						} catch (IllegalArgumentException e) {
+							// keep raw string
+						}
+						if (!parameters.containsKey(key)) {
+							parameters.put(key, value);
+						}
+					}
+				}
+			}
+			return parameters.get(name);
+		}
+
+		void setHeader(String name, String value, boolean add) {
+			if (committed || "Content-Length".equalsIgnoreCase(name)
+					|| "Transfer-Encoding".equalsIgnoreCase(name)) {
+				return; // body is always chunked
+			}
+			if ("Content-Type".equalsIgnoreCase(name)) {
+				setContentType(value);
+				return;
+			}
+			if (add) {
+				exchange.getResponseHeaders().add(name, value);
+			} else {
+				exchange.getResponseHeaders().set(name, value);
+			}
+		}
+
+		void setContentType(String type) {
+			if (committed || type == null) {
+				return;
+			}
+			contentType = type;
+			int idx = type.toLowerCase().indexOf("charset=");
+			if (idx != -1) {
+				charset = type.substring(idx + 8).trim();
+			}
+		}
+
+		String getCharacterEncoding() {
+			return charset != null ? charset : "ISO-8859-1";
+		}
+
+		PrintWriter getWriter() throws UnsupportedEncodingException {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(body, getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		ServletOutputStream getOutputStream() {
+			if (output == null) {
+				output = new ServletOutputStream() {
+					public void write(int b) throws IOException {
+						body.write(b);
+					}
+					public void write(byte[] b, int off, int len) throws IOException {
+						body.write(b, off, len);
+					}
+					public void flush() throws IOException {
+						body.flush();
+					}
+				};
+			}
+			return output;
+		}
+
+		void commit() throws IOException {
+			if (committed) {
+				return;
+			}
+			committed = true;
+			if (contentType != null) {
+				String type = contentType;
+				if (charset != null && type.toLowerCase().indexOf("charset=") == -1) {
+					type += "; charset=" + charset;
+				}
+				exchange.getResponseHeaders().set("Content-Type", type);
+			}
+			exchange.sendResponseHeaders(status, 0);
+		}
+
+		void sendError(int code, String message) throws IOException {
+			if (committed) {
+				throw new IllegalStateException("Response is already committed");
+			}
+			status = code;
+			contentType = "text/plain";
+			writer = null;
+			output = null;
+			if (message != null) {
+				body.write(message.getBytes("UTF-8"));
+			}
+			finish();
+		}
+
+		void finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (!committed) {
+				committed = true;
+				exchange.sendResponseHeaders(status, -1);
+			}
+			exchange.getResponseBody().flush();
+		}
+
+	}
+
+	class RequestHandler implements InvocationHandler {
+
+		private final Exchange ex;
+
+		RequestHandler(Exchange ex) {
+			this.ex = ex;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String m = method.getName();
+			HttpExchange exchange = ex.exchange;
+			URI uri = exchange.getRequestURI();
+			if ("getParameter".equals(m)) {
+				return ex.getParameter((String) args[0]);
+			} else if ("getMethod".equals(m)) {
+				return exchange.getRequestMethod();
+			} else if ("getHeader".equals(m)) {
+				return exchange.getRequestHeaders().getFirst((String) args[0]);
+			} else if ("getHeaders".equals(m)) {
+				List<String> values = exchange.getRequestHeaders().get(args[0]);
+				return Collections.enumeration(values != null ? values : new ArrayList<String>());
+			} else if ("getHeaderNames".equals(m)) {
+				return Collections.enumeration(exchange.getRequestHeaders().keySet());
+			} else if ("getIntHeader".equals(m)) {
+				String value = exchange.getRequestHeaders().getFirst((String) args[0]);
+				return Integer.valueOf(value != null ? Integer.parseInt(value.trim()) : -1);
+			} else if ("getContentLength".equals(m)) {
+				String value = exchange.getRequestHeaders().getFirst("Content-Length");
+				return Integer.valueOf(value != null ? Integer.parseInt(value.trim()) : -1);
+			} else if ("getContentType".equals(m)) {
+				return exchange.getRequestHeaders().getFirst("Content-Type");
+			} else if ("getInputStream".equals(m)) {
+				final InputStream in = exchange.getRequestBody();
+				return new ServletInputStream() {
+					public int read() throws IOException {
+						return in.read();
+					}
+					public int read(byte[] b, int off, int len) throws IOException {
+						return in.read(b, off, len);
+					}
+				};
+			} else if ("getQueryString".equals(m)) {
+				return uri.getRawQuery();
+			} else if ("getRequestURI".equals(m)) {
+				return uri.getRawPath();
+			} else if ("getServletPath".equals(m)) {
+				return exchange.getHttpContext().getPath();
+			} else if ("getContextPath".equals(m)) {
+				return "";
+			} else if ("getRequestURL".equals(m)) {
+				return new StringBuffer("http://127.0.0.1:" + getPort() + uri.getRawPath());
+			} else if ("getRemoteAddr".equals(m) || "getRemoteHost".equals(m)) {
+				return exchange.getRemoteAddress().getAddress().getHostAddress();
+			} else if ("getRemotePort".equals(m)) {
+				return Integer.valueOf(exchange.getRemoteAddress().getPort());
+			} else if ("getServerName".equals(m) || "getLocalAddr".equals(m)) {
+				return "127.0.0.1";
+			} else if ("getServerPort".equals(m) || "getLocalPort".equals(m)) {
+				return Integer.valueOf(getPort());
+			} else if ("getScheme".equals(m)) {
+				return "http";
+			} else if ("getProtocol".equals(m)) {
+				return exchange.getProtocol();
+			} else if ("getAttribute".equals(m)) {
+				return ex.attributes != null ? ex.attributes.get(args[0]) : null;
+			} else if ("setAttribute".equals(m)) {
+				if (ex.attributes == null) {
+					ex.attributes = new HashMap<String, Object>();
+				}
+				ex.attributes.put((String) args[0], args[1]);
+				return null;
+			} else if ("removeAttribute".equals(m)) {
+				if (ex.attributes != null) {
+					ex.attributes.remove(args[0]);
+				}
+				return null;
+			} else if ("getServletContext".equals(m)) {
+				return context;
+			} else if ("startAsync".equals(m)) {
+				throw new IllegalStateException("Asynchronous requests are not supported");
+			}
+			return objectMethod(proxy, method, args, exchange.getRequestMethod() + " " + uri);
+		}
+
+	}
+
+	class ResponseHandler implements InvocationHandler {
+
+		private final Exchange ex;
+
+		ResponseHandler(Exchange ex) {
+			this.ex = ex;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String m = method.getName();
+			if ("getWriter".equals(m)) {
+				return ex.getWriter();
+			} else if ("getOutputStream".equals(m)) {
+				return ex.getOutputStream();
+			} else if ("setContentType".equals(m)) {
+				ex.setContentType((String) args[0]);
+				return null;
+			} else if ("getContentType".equals(m)) {
+				return ex.contentType;
+			} else if ("setCharacterEncoding".equals(m)) {
+				if (!ex.committed && ex.writer == null) {
+					ex.charset = (String) args[0];
+				}
+				return null;
+			} else if ("getCharacterEncoding".equals(m)) {
+				return ex.getCharacterEncoding();
+			} else if ("setHeader".equals(m) || "addHeader".equals(m)) {
+				ex.setHeader((String) args[0], (String) args[1], "addHeader".equals(m));
+				return null;
+			} else if ("setIntHeader".equals(m) || "addIntHeader".equals(m)) {
+				ex.setHeader((String) args[0], String.valueOf(args[1]), "addIntHeader".equals(m));
+				return null;
+			} else if ("setDateHeader".equals(m) || "addDateHeader".equals(m)) {
+				SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+				format.setTimeZone(TimeZone.getTimeZone("GMT"));
+				ex.setHeader((String) args[0], format.format(new Date(((Long) args[1]).longValue())),
+						"addDateHeader".equals(m));
+				return null;
+			} else if ("containsHeader".equals(m)) {
+				return Boolean.valueOf(ex.exchange.getResponseHeaders().containsKey(args[0]));
+			} else if ("setStatus".equals(m)) {
+				if (!ex.committed) {
+					ex.status = ((Integer) args[0]).intValue();
+				}
+				return null;
+			} else if ("getStatus".equals(m)) {
+				return Integer.valueOf(ex.status);
+			} else if ("sendError".equals(m)) {
+				ex.sendError(((Integer) args[0]).intValue(), args.length > 1 ? (String) args[1] : null);
+				return null;
+			} else if ("sendRedirect".equals(m)) {
+				ex.setHeader("Location", (String) args[0], false);
+				ex.status = 302;
+				ex.finish();
+				return null;
+			} else if ("flushBuffer".equals(m)) {
+				if (ex.writer != null) {
+					ex.writer.flush();
+				}
+				ex.body.flush();
+				return null;
+			} else if ("isCommitted".equals(m)) {
+				return Boolean.valueOf(ex.committed);
+			} else if ("encodeURL".equals(m) || "encodeRedirectURL".equals(m)
+					|| "encodeUrl".equals(m) || "encodeRedirectUrl".equals(m)) {
+				return args[0];
+			} else if ("getBufferSize".equals(m)) {
+				return Integer.valueOf(0);
+			}
+			return objectMethod(proxy, method, args, "Response of " + ex.exchange.getRequestURI());
+		}
+
+	}
+
+	class ContextHandler implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String m = method.getName();
+			if ("getAttribute".equals(m)) {
+				return contextAttributes.get(args[0]);
+			} else if ("setAttribute".equals(m)) {
+				if (args[1] == null) {
+					contextAttributes.remove(args[0]);
+				} else {
+					contextAttributes.put((String) args[0], args[1]);
+				}
+				return null;
+			} else if ("removeAttribute".equals(m)) {
+				contextAttributes.remove(args[0]);
+				return null;
+			} else if ("getAttributeNames".equals(m)) {
+				return Collections.enumeration(contextAttributes.keySet());
+			} else if ("log".equals(m)) {
+				System.out.println(args[0]);
+				if (args.length > 1 && args[1] instanceof Throwable) {
+					((Throwable) args[1]).printStackTrace();
+				}
+				return null;
+			} else if ("getContextPath".equals(m)) {
+				return "";
+			} else if ("getServerInfo".equals(m)) {
+				return "LocalServletContainer";
+			} else if ("getMajorVersion".equals(m)) {
+				return Integer.valueOf(3);
+			} else if ("getMinorVersion".equals(m)) {
+				return Integer.valueOf(0);
+			}
+			return objectMethod(proxy, method, args, "ServletContext");
+		}
+
+	}
+
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2007 java2script.org and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Zhou Renjian - initial API and implementation
+ *******************************************************************************/
+
+package net.sf.j2s.ajax.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.sf.j2s.ajax.SimplePipeRequest;
+
+/**
+ * Raw HTTP client emulating browser pipe in query, script or continuum
+ * mode. Pipe is set up by posting serialized {@link FeedPipeRunnable} as
+ * browsers do, and then pipe requests are sent one after another in its
+ * own thread. Pipe data are not deserialized, latencies are got from
+ * "~<sent>~" markers of {@link FeedItem} payloads.
+ *
+ * @author zhou renjian
+ */
+class RawPipeClient extends BenchmarkClient implements Runnable {
+
+	/**
+	 * Interval of notify requests, as browsers do.
+	 */
+	static final long NOTIFY_INTERVAL = 25000;
+
+	private static Timer notifyTimer;
+
+	private String pipeType;
+
+	private String pipeKey;
+
+	private Thread thread;
+
+	private TimerTask notifyTask;
+
+	private HttpURLConnection connection;
+
+	/*
+	 * Unmatched tail of received text, which may be the beginning of a
+	 * marker.
+	 */
+	private StringBuffer tail = new StringBuffer();
+
+	RawPipeClient(BenchmarkScenario scenario, BenchmarkRecorder recorder) {
+		super(scenario, recorder);
+		if (BenchmarkScenario.CLIENT_QUERY.equals(scenario.client)) {
+			pipeType = SimplePipeRequest.PIPE_TYPE_QUERY;
+		} else if (BenchmarkScenario.CLIENT_SCRIPT.equals(scenario.client)) {
+			pipeType = SimplePipeRequest.PIPE_TYPE_SCRIPT;
+		} else {
+			pipeType = SimplePipeRequest.PIPE_TYPE_CONTINUUM;
+		}
+	}
+
+	void start() {
+		running = true;
+		thread = new Thread(this, "Raw Pipe Client");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	void stop() {
+		super.stop();
+		if (notifyTask != null) {
+			notifyTask.cancel();
+		}
+		HttpURLConnection conn = connection;
+		if (conn != null) {
+			conn.disconnect();
+		}
+	}
+
+	public void run() {
+		pipeKey = setup();
+		if (pipeKey == null) {
+			recorder.failed();
+			return;
+		}
+		recorder.connected.incrementAndGet();
+		scheduleNotify();
+		while (running) {
+			boolean ok = false;
+			try {
+				ok = pipe();
+			} catch (IOException e) {
+				// connection is broken or reset
+			}
+			if (!running) {
+				break;
+			}
+			if (!ok) {
+				recorder.failed();
+			}
+			if (!ok || SimplePipeRequest.PIPE_TYPE_QUERY.equals(pipeType)) {
+				try {
+					Thread.sleep(ok ? SimplePipeRequest.getQueryInterval() : 1000);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		recorder.connected.decrementAndGet();
+	}
+
+	/*
+	 * Post serialized pipe runnable, and return pipe key or null.
+	 */
+	private String setup() {
+		FeedPipeRunnable runnable = new FeedPipeRunnable();
+		runnable.topic = BenchmarkServer.TOPIC;
+		try {
+			HttpURLConnection conn = (HttpURLConnection) new URL(BenchmarkRunner.baseURL + "piperpc").openConnection();
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+			OutputStream out = conn.getOutputStream();
+			out.write(runnable.serialize().getBytes("UTF-8"));
+			out.close();
+			if (conn.getResponseCode() != 200) {
+				conn.disconnect();
+				return null;
+			}
+			InputStream in = conn.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int read = 0;
+			while ((read = in.read(buf)) != -1) {
+				baos.write(buf, 0, read);
+			}
+			in.close();
+			runnable.deserialize(new String(baos.toByteArray(), "UTF-8"));
+		} catch (IOException e) {
+			return null;
+		}
+		return runnable.pipeAlive ? runnable.pipeKey : null;
+	}
+
+	/*
+	 * Send a pipe request, and scan pipe data until response is completed.
+	 */
+	private boolean pipe() throws IOException {
+		String url = BenchmarkRunner.baseURL + "simplepipe?" + SimplePipeRequest.FORM_PIPE_KEY + "="
+				+ pipeKey + "&" + SimplePipeRequest.FORM_PIPE_TYPE + "=" + pipeType + "&"
+				+ SimplePipeRequest.FORM_PIPE_RANDOM + "=" + Math.round(Math.random() * 1e9);
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		connection = conn;
+		try {
+			if (conn.getResponseCode() != 200) {
+				return false;
+			}
+			Reader reader = new InputStreamReader(conn.getInputStream(), "UTF-8");
+			char[] buf = new char[8192];
+			int read = 0;
+			tail.setLength(0);
+			while ((read = reader.read(buf)) != -1) {
+				recorder.received(read);
+				scan(buf, read);
+			}
+			reader.close();
+			return true;
+		} finally {
+			connection = null;
+		}
+	}
+
+	private void scan(char[] buf, int length) {
+		tail.append(buf, 0, length);
+		int end = 0;
+		int idx = -1;
+		while ((idx = tail.indexOf("~", end)) != -1) {
+			int close = idx + 14;
+			if (close >= tail.length()) {
+				end = idx;
+				break; // marker may continue in next chunk
+			}
+			end = idx + 1;
+			if (tail.charAt(close) != '~') {
+				continue;
+			}
+			long sent = 0;
+			boolean digits = true;
+			for (int i = idx + 1; i < close; i++) {
+				char c = tail.charAt(i);
+				if (c < '0' || c > '9') {
+					digits = false;
+					break;
+				}
+				sent = sent * 10 + (c - '0');
+			}
+			if (digits) {
+				recorder.record((System.currentTimeMillis() - sent) * 1000);
+				end = close + 1;
+			}
+		}
+		if (idx == -1) {
+			end = tail.length();
+		}
+		tail.delete(0, end);
+	}
+
+	private void scheduleNotify() {
+		synchronized (RawPipeClient.class) {
+			if (notifyTimer == null) {
+				notifyTimer = new Timer("Raw Pipe Notifier", true);
+			}
+		}
+		notifyTask = new TimerTask() {
+			public void run() {
+				if (!running) {
+					cancel();
+					return;
+				}
+				try {
+					HttpURLConnection conn = (HttpURLConnection) new URL(BenchmarkRunner.baseURL
+							+ "simplepipe?" + SimplePipeRequest.FORM_PIPE_KEY + "=" + pipeKey + "&"
+							+ SimplePipeRequest.FORM_PIPE_TYPE + "=" + SimplePipeRequest.PIPE_TYPE_NOTIFY)
+							.openConnection();
+					InputStream in = conn.getInputStream();
+					while (in.read() != -1) {
+						// read notify result
+					}
+					in.close();
+				} catch (IOException e) {
+					// next notify may succeed
+				}
+			}
+		};
+		notifyTimer.schedule(notifyTask, NOTIFY_INTERVAL, NOTIFY_INTERVAL);
+	}
+
+}
@@ -41,7 +41,7 @@ if (!isLocal && cookieURL != null && !isOldIE) {
 }
 		 */ {
 			File storeFile = new File(System.getProperty("user.home"), ".java2script.store");
-			this.store = new INIFileStore(storeFile.getAbsolutePath()); 
+			this.store = new WriteBehindINIFileStore(storeFile.getAbsolutePath()); 
 		}
 	}
 	
@@ -0,0 +1,254 @@
+package net.sf.j2s.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * INI file store which keeps properties in memory and writes them to file
+ * in background. Changes within {@link #WRITE_DELAY} are coalesced into one
+ * writing. File is written to a temporary file first, which is synced to
+ * disk and then renamed to the store file, so a crash never leaves a broken
+ * store file. Pending changes are written when store is closed or JVM exits.
+ *
+ * External changes of the store file are detected by a watcher which checks
+ * the file every {@link #WATCH_INTERVAL}, instead of on every reading.
+ *
+ * @author zhou renjian
+ */
+class WriteBehindINIFileStore implements IStore {
+
+	static final long WRITE_DELAY = 500;
+
+	static final long WATCH_INTERVAL = 1000;
+
+	private File file;
+
+	private File tempFile;
+
+	private Properties properties;
+
+	/**
+	 * Changes which are not written to file yet. Null value for removal.
+	 */
+	private Map<String, String> pendings = new HashMap<String, String>();
+
+	private boolean writeScheduled;
+
+	private boolean closed;
+
+	private long lastModified;
+
+	private long lastLength;
+
+	private Object saveLock = new Object();
+
+	private Timer timer;
+
+	private Thread shutdownHook;
+
+	public WriteBehindINIFileStore(String path) {
+		this.file = new File(path).getAbsoluteFile();
+		this.tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		lastModified = file.lastModified();
+		lastLength = file.length();
+		properties = load();
+		timer = new Timer("Java2Script Simple Store", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				watch();
+			}
+		}, WATCH_INTERVAL, WATCH_INTERVAL);
+		shutdownHook = new Thread("Java2Script Simple Store Closer") {
+			public void run() {
+				flush();
+			}
+		};
+		try {
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// JVM is already shutting down
+			shutdownHook = null;
+		}
+	}
+
+	private Properties load() {
+		Properties props = new Properties();
+		File source = this.file;
+		if (!source.exists() && tempFile.exists()) {
+			// Crashed after store file was deleted but before temporary
+			// file was renamed, see #save
+			source = tempFile;
+		}
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(source);
+			props.load(fis);
+		} catch (FileNotFoundException e) {
+			//e.printStackTrace();
+		} catch (IOException e) {
+			//e.printStackTrace();
+		} finally {
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+			}
+		}
+		return props;
+	}
+
+	/*
+	 * Reload properties if store file is modified by others, keeping those
+	 * pending changes. It is checked again before writing, so external
+	 * changes are not overwritten.
+	 */
+	private void watch() {
+		synchronized (saveLock) {
+			long modified = file.lastModified();
+			long length = file.length();
+			if (modified == lastModified && length == lastLength) {
+				return;
+			}
+			lastModified = modified;
+			lastLength = length;
+			Properties props = load();
+			synchronized (this) {
+				for (Iterator<Map.Entry<String, String>> itr = pendings.entrySet().iterator(); itr.hasNext();) {
+					Map.Entry<String, String> entry = itr.next();
+					if (entry.getValue() == null) {
+						props.remove(entry.getKey());
+					} else {
+						props.setProperty(entry.getKey(), entry.getValue());
+					}
+				}
+				properties = props;
+			}
+		}
+	}
+
+	public synchronized String getProperty(String name) {
+		return properties.getProperty(name);
+	}
+
+	public synchronized void setProperty(String name, String value) {
+		if (value == null) {
+			properties.remove(name);
+		} else {
+			properties.setProperty(name, value);
+		}
+		pendings.put(name, value);
+		if (writeScheduled || closed) {
+			return; // coalesced into scheduled writing
+		}
+		writeScheduled = true;
+		timer.schedule(new TimerTask() {
+			public void run() {
+				flush();
+			}
+		}, WRITE_DELAY);
+	}
+
+	/**
+	 * Write pending changes to file now.
+	 */
+	public void flush() {
+		synchronized (saveLock) {
+			watch();
+			Properties props = null;
+			Map<String, String> written = null;
+			synchronized (this) {
+				writeScheduled = false;
+				if (pendings.isEmpty()) {
+					return;
+				}
+				props = new Properties();
+				props.putAll(properties);
+				written = pendings;
+				pendings = new HashMap<String, String>();
+			}
+			if (!save(props)) {
+				synchronized (this) {
+					// Keep them pending, retry on next writing
+					for (Iterator<Map.Entry<String, String>> itr = written.entrySet().iterator(); itr.hasNext();) {
+						Map.Entry<String, String> entry = itr.next();
+						if (!pendings.containsKey(entry.getKey())) {
+							pendings.put(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private boolean save(Properties props) {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(this.tempFile);
+			props.store(fos, "Java2Script Simple Store");
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			if (!tempFile.renameTo(file)) {
+				// Windows does not rename to an existed file
+				file.delete();
+				if (!tempFile.renameTo(file)) {
+					return false;
+				}
+			}
+			lastModified = file.lastModified();
+			lastLength = file.length();
+			return true;
+		} catch (IOException e) {
+			//e.printStackTrace();
+			return false;
+		} finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write pending changes and stop writing behind. Later changes are
+	 * written only on {@link #flush()}.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		timer.cancel();
+		flush();
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// JVM is already shutting down
+			}
+			shutdownHook = null;
+		}
+	}
+
+	public boolean isReady() {
+		return true;
+	}
+
+}